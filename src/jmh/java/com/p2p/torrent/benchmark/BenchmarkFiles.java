@@ -0,0 +1,106 @@
+package com.p2p.torrent.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.p2p.torrent.config.TorrentConfig;
+import com.p2p.torrent.service.DiskWriter;
+import com.p2p.torrent.service.FileService;
+import com.p2p.torrent.service.ManifestService;
+import com.p2p.torrent.service.PieceCache;
+import com.p2p.torrent.service.PiecePicker;
+import com.p2p.torrent.service.TransferMetrics;
+
+/**
+ * Fixtures of the storage benchmarks. Services are built by hand, without Spring, and file content
+ * comes from a fixed seed so every run reads and writes the same bytes.
+ *
+ * The piece store works relative to the working directory, which the {@code benchmarks} profile
+ * sets to {@code target/jmh}.
+ */
+final class BenchmarkFiles {
+    static final long SEED = 42;
+    static final int PIECE_SIZE = 1024 * 1024;
+    // 32 full pieces and a short last one
+    static final int FILE_SIZE = 32 * PIECE_SIZE + PIECE_SIZE / 2;
+    static final int TOTAL_PIECES = 33;
+
+    static final String FILE_NAME = "bench.bin";
+
+    private BenchmarkFiles() {
+    }
+
+    static TorrentConfig config(String fileName, TorrentConfig.StorageMode storageMode, long cacheMaxBytes) {
+        TorrentConfig config = new TorrentConfig();
+        config.setFileName(fileName);
+        config.setFileSize(FILE_SIZE);
+        config.setPieceSize(PIECE_SIZE);
+        config.setStorageMode(storageMode);
+        config.setCacheMaxBytes(cacheMaxBytes);
+        return config;
+    }
+
+    static FileService fileService(TorrentConfig config) {
+        TransferMetrics transferMetrics = new TransferMetrics();
+        return new FileService(config, new PiecePicker(), new PieceCache(config, transferMetrics),
+                               manifestService(), transferMetrics, new DiskWriter(config, transferMetrics));
+    }
+
+    static ManifestService manifestService() {
+        return new ManifestService(new ObjectMapper());
+    }
+
+    static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes the shared source file unless it is already there.
+     */
+    static Path source(String fileName) throws IOException {
+        Path file = Path.of(fileName);
+        if (Files.isRegularFile(file) && Files.size(file) == FILE_SIZE) {
+            return file;
+        }
+        Random random = new Random(SEED);
+        byte[] chunk = new byte[PIECE_SIZE];
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long written = 0; written < FILE_SIZE; written += chunk.length) {
+                random.nextBytes(chunk);
+                out.write(chunk, 0, (int) Math.min(chunk.length, FILE_SIZE - written));
+            }
+        }
+        return file;
+    }
+
+    static byte[] piece(byte[] file, int pieceIndex) {
+        int from = pieceIndex * PIECE_SIZE;
+        int to = Math.min(file.length, from + PIECE_SIZE);
+        byte[] piece = new byte[to - from];
+        System.arraycopy(file, from, piece, 0, piece.length);
+        return piece;
+    }
+
+    /**
+     * Removes the directory of a benchmark peer, so no run starts from the leftovers of another.
+     */
+    static void deletePeer(String peerId) throws IOException {
+        Path peerDir = Path.of("peer_" + peerId);
+        if (!Files.exists(peerDir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(peerDir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.p2p.torrent.benchmark;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.p2p.torrent.model.BitfieldCodec;
+
+/**
+ * Bitfield strings as sent in BITFIELD and HAVE_BATCH messages and shown by the status endpoints,
+ * in every encoding, for a fresh leecher, a half-done download drawn from a fixed seed, and a seeder.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgs = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Thread)
+public class BitfieldCodecBenchmark {
+    @Param({"ASCII", "PACKED", "RLE"})
+    public BitfieldCodec.Format format;
+
+    @Param({"1000", "100000"})
+    public int totalPieces;
+
+    @Param({"empty", "random", "full"})
+    public String pieces;
+
+    private BitSet bitfield;
+    private String encoded;
+
+    @Setup
+    public void setUp() {
+        bitfield = new BitSet(totalPieces);
+        if (pieces.equals("full")) {
+            bitfield.set(0, totalPieces);
+        } else if (pieces.equals("random")) {
+            Random random = new Random(BenchmarkFiles.SEED);
+            for (int i = 0; i < totalPieces; i++) {
+                if (random.nextBoolean()) {
+                    bitfield.set(i);
+                }
+            }
+        }
+        encoded = BitfieldCodec.encode(bitfield, totalPieces, format);
+    }
+
+    @Benchmark
+    public String encode() {
+        return BitfieldCodec.encode(bitfield, totalPieces, format);
+    }
+
+    @Benchmark
+    public BitSet decode() {
+        return BitfieldCodec.decode(encoded, totalPieces, format);
+    }
+}
@@ -0,0 +1,246 @@
+package com.p2p.torrent.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.p2p.torrent.config.TorrentConfig;
+import com.p2p.torrent.model.Manifest;
+import com.p2p.torrent.service.FileService;
+import com.p2p.torrent.service.ManifestService;
+
+/**
+ * A file of {@code fileGiB} GiB (8 by default) plus one and a half pieces, so piece offsets no
+ * longer fit in an int. It covers the piece math of {@link TorrentConfig}, {@link Manifest} and
+ * {@link FileService} past {@code Integer.MAX_VALUE} bytes, and positional reads
+ * ({@link FileService#getPiece}, {@link FileService#readBlock}) and writes
+ * ({@link FileService#savePieceToDisk}) of pieces past the 2 GiB and 4 GiB offsets and at the end
+ * of the file.
+ *
+ * The source and the download are sparse files, so only the pieces touched take up disk space.
+ * Setup checks that the layout is right and that blocks written past 4 GiB and in the last full
+ * piece read back from there, so an offset that overflows fails the run instead of timing the wrong
+ * bytes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgs = {"-Xms1g", "-Xmx1g"})
+public class LargeFileBenchmark {
+    private static final int PIECE_SIZE = BenchmarkFiles.PIECE_SIZE;
+    private static final int BLOCK_SIZE = 16 * 1024;
+    private static final int PIECES_PER_GIB = (1 << 30) / PIECE_SIZE;
+
+    private static final String FILE_NAME = "large.bin";
+    private static final String DOWNLOAD_FILE_NAME = "large-download.bin";
+
+    @State(Scope.Benchmark)
+    public static class Size {
+        // At least 5, so there are full pieces past 4 GiB
+        @Param({"8"})
+        public int fileGiB;
+
+        long fileSize;
+        int totalPieces;
+        // 16 pieces right past 2 GiB, 16 right past 4 GiB and the 16 full pieces before the last one
+        int[] pieces;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            check(fileGiB >= 5, "fileGiB of at least 5");
+            fileSize = ((long) fileGiB << 30) + PIECE_SIZE + PIECE_SIZE / 2;
+            totalPieces = fileGiB * PIECES_PER_GIB + 2;
+            pieces = new int[48];
+            for (int i = 0; i < 16; i++) {
+                pieces[i] = 2 * PIECES_PER_GIB + i;
+                pieces[16 + i] = 4 * PIECES_PER_GIB + i;
+                pieces[32 + i] = totalPieces - 17 + i;
+            }
+        }
+
+        int next(int counter) {
+            return pieces[counter % pieces.length];
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Layout {
+        TorrentConfig config;
+        Manifest manifest;
+
+        @Setup(Level.Trial)
+        public void setUp(Size size) {
+            config = config(size, FILE_NAME);
+            manifest = manifest(size);
+
+            check(config.getAdjustedTotalPieces() == size.totalPieces, "config piece count");
+            check(ManifestService.pieceCount(size.fileSize, PIECE_SIZE) == size.totalPieces, "manifest piece count");
+            check(BenchmarkFiles.manifestService().isConsistent(manifest), "manifest consistency");
+            check(manifest.pieceLength(size.totalPieces - 1) == PIECE_SIZE / 2, "last piece length");
+            check(manifest.pieceLength(size.totalPieces - 2) == PIECE_SIZE, "last full piece length");
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Seeder {
+        final String peerId = "bench-large-seeder";
+        FileService fileService;
+        int pieceIndex;
+
+        @Setup(Level.Trial)
+        public void setUp(Size size) throws IOException {
+            BenchmarkFiles.deletePeer(peerId);
+            Path source = sparse(Path.of(FILE_NAME), size.fileSize);
+
+            // Known blocks in the piece that starts at 4 GiB and in the last full piece, the rest of
+            // the file reads as zeros
+            int at4GiB = 4 * PIECES_PER_GIB;
+            int lastFull = size.totalPieces - 2;
+            byte[] marker = BenchmarkFiles.randomBytes(BLOCK_SIZE, BenchmarkFiles.SEED);
+            try (FileChannel channel = FileChannel.open(source, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.wrap(marker), (long) at4GiB * PIECE_SIZE);
+                channel.write(ByteBuffer.wrap(marker), (long) lastFull * PIECE_SIZE);
+            }
+
+            // No cache, every read is a positional read of the source; the handed-over manifest
+            // spares hashing the whole file
+            fileService = BenchmarkFiles.fileService(config(size, FILE_NAME));
+            fileService.setSourceManifest(manifest(size));
+            fileService.initialize(peerId, true);
+
+            check(fileService.getTotalPieces() == size.totalPieces, "seeder piece count");
+            check(fileService.getFileLength() == size.fileSize, "seeder file length");
+            check(Arrays.equals(fileService.readBlock(at4GiB, 0, BLOCK_SIZE), marker), "block read at 4 GiB");
+            check(Arrays.equals(fileService.readBlock(lastFull, 0, BLOCK_SIZE), marker), "block read at the end");
+            check(fileService.readBlock(size.totalPieces - 1, 0, PIECE_SIZE).length == PIECE_SIZE / 2,
+                  "last piece read");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            fileService.close();
+            BenchmarkFiles.deletePeer(peerId);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Leecher {
+        final String peerId = "bench-large-leecher";
+        FileService fileService;
+        byte[] piece;
+        int pieceIndex;
+
+        @Setup(Level.Trial)
+        public void setUp(Size size) throws IOException {
+            BenchmarkFiles.deletePeer(peerId);
+            // Single-file storage preallocates the whole download as a sparse file
+            fileService = BenchmarkFiles.fileService(config(size, DOWNLOAD_FILE_NAME));
+            fileService.initialize(peerId, false);
+            piece = BenchmarkFiles.randomBytes(PIECE_SIZE, BenchmarkFiles.SEED);
+
+            check(Files.size(fileService.getDataFile()) >= size.fileSize, "preallocated download");
+            int lastFull = size.totalPieces - 2;
+            fileService.savePieceToDisk(peerId, lastFull, piece);
+            byte[] stored = new byte[PIECE_SIZE];
+            try (FileChannel channel = FileChannel.open(fileService.getDataFile(), StandardOpenOption.READ)) {
+                channel.read(ByteBuffer.wrap(stored), (long) lastFull * PIECE_SIZE);
+            }
+            check(Arrays.equals(stored, piece), "piece write at the end");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            fileService.close();
+            BenchmarkFiles.deletePeer(peerId);
+        }
+    }
+
+    /**
+     * Piece count from the configured and the manifest layout, and offset and length of every piece
+     * past 2 GiB.
+     */
+    @Benchmark
+    public long pieceMath(Size size, Layout layout) {
+        long sum = layout.config.getAdjustedTotalPieces()
+            + ManifestService.pieceCount(layout.manifest.getFileLength(), layout.manifest.getPieceSize());
+        for (int i = 2 * PIECES_PER_GIB; i < size.totalPieces; i++) {
+            long offset = (long) i * layout.manifest.getPieceSize();
+            sum += offset + layout.manifest.pieceLength(i);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public byte[] readPiecePast2GiB(Size size, Seeder seeder) {
+        return seeder.fileService.getPiece(seeder.peerId, size.next(seeder.pieceIndex++));
+    }
+
+    @Benchmark
+    public byte[] readBlockPast2GiB(Size size, Seeder seeder) {
+        int pieceIndex = size.next(seeder.pieceIndex++);
+        return seeder.fileService.readBlock(pieceIndex, (pieceIndex % 64) * BLOCK_SIZE, BLOCK_SIZE);
+    }
+
+    @Benchmark
+    public void writePiecePast2GiB(Size size, Leecher leecher) {
+        leecher.fileService.savePieceToDisk(leecher.peerId, size.next(leecher.pieceIndex++), leecher.piece);
+    }
+
+    private static TorrentConfig config(Size size, String fileName) {
+        TorrentConfig config = BenchmarkFiles.config(fileName, TorrentConfig.StorageMode.SINGLE_FILE, 0);
+        config.setFileSize(size.fileSize);
+        return config;
+    }
+
+    /**
+     * A manifest with the layout of the file; the hashes are placeholders, nothing here verifies pieces.
+     */
+    private static Manifest manifest(Size size) {
+        List<String> hashes = new ArrayList<>(Collections.nCopies(size.totalPieces, "00"));
+        return BenchmarkFiles.manifestService().fromHashes(FILE_NAME, size.fileSize, PIECE_SIZE, hashes);
+    }
+
+    /**
+     * Creates the sparse file unless it is already there: writing the last byte sets the length
+     * without allocating the blocks before it.
+     */
+    private static Path sparse(Path file, long fileSize) throws IOException {
+        if (Files.isRegularFile(file) && Files.size(file) == fileSize) {
+            return file;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.SPARSE)) {
+            channel.write(ByteBuffer.wrap(new byte[1]), fileSize - 1);
+        }
+        return file;
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new IllegalStateException("Large file check failed: " + what);
+        }
+    }
+}
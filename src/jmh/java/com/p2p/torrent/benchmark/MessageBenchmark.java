@@ -0,0 +1,72 @@
+package com.p2p.torrent.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.p2p.torrent.model.Message;
+import com.p2p.torrent.model.MessageCodec;
+
+/**
+ * A PIECE message carrying 1 MiB of data, serialized and read back as JSON with Jackson (the
+ * WebSocket path, payload in base64) and as a binary frame with {@link MessageCodec}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgs = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Thread)
+public class MessageBenchmark {
+    private static final int PAYLOAD_SIZE = 1024 * 1024;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private Message message;
+    private byte[] json;
+    private ByteBuffer frame;
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] data = BenchmarkFiles.randomBytes(PAYLOAD_SIZE, BenchmarkFiles.SEED);
+        message = new Message(Message.MessageType.PIECE, "1001", 7, data, null, 0, data.length);
+        json = objectMapper.writeValueAsBytes(message);
+        frame = MessageCodec.encode(message);
+    }
+
+    @Benchmark
+    public byte[] jsonWrite() throws IOException {
+        return objectMapper.writeValueAsBytes(message);
+    }
+
+    @Benchmark
+    public Message jsonRead() throws IOException {
+        return objectMapper.readValue(json, Message.class);
+    }
+
+    @Benchmark
+    public Message jsonRoundTrip() throws IOException {
+        return objectMapper.readValue(objectMapper.writeValueAsBytes(message), Message.class);
+    }
+
+    @Benchmark
+    public Message binaryRoundTrip() {
+        return MessageCodec.decode(MessageCodec.encode(message), PAYLOAD_SIZE, PAYLOAD_SIZE);
+    }
+
+    @Benchmark
+    public Message binaryRead() {
+        return MessageCodec.decode(frame.duplicate(), PAYLOAD_SIZE, PAYLOAD_SIZE);
+    }
+}
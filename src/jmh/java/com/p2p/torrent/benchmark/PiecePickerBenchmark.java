@@ -0,0 +1,89 @@
+package com.p2p.torrent.benchmark;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.p2p.torrent.service.PiecePicker;
+
+/**
+ * Choosing the next missing piece to request from a peer, as the download scheduler does for every
+ * free request slot: rarest first, or in order for video.
+ *
+ * The swarm is drawn from a fixed seed. The picker breaks ties between equally rare pieces at random,
+ * which is why the benchmark forks more than once.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 3, jvmArgs = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Thread)
+public class PiecePickerBenchmark {
+    private static final int SWARM_PEERS = 20;
+
+    @Param({"1000", "10000"})
+    public int totalPieces;
+
+    // Share of the pieces the local peer already has
+    @Param({"0.1", "0.9"})
+    public double completed;
+
+    private PiecePicker piecePicker;
+    private BitSet peerHas;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(BenchmarkFiles.SEED);
+
+        BitSet have = bits(random, completed);
+        piecePicker = new PiecePicker();
+        piecePicker.reset(totalPieces, have);
+        for (int i = 0; i < SWARM_PEERS; i++) {
+            piecePicker.addBitfield(bits(random, random.nextDouble()));
+        }
+
+        // The peer asked has half of the file, and a few of our missing pieces are already being fetched
+        peerHas = bits(random, 0.5);
+        for (int i = 0; i < 32; i++) {
+            piecePicker.pieceStarted(random.nextInt(totalPieces));
+        }
+    }
+
+    @Benchmark
+    public int pickRarest() {
+        return piecePicker.pickRarest(peerHas);
+    }
+
+    @Benchmark
+    public int pickSequential() {
+        return piecePicker.pickSequential(peerHas);
+    }
+
+    @Benchmark
+    public boolean hasPieceFor() {
+        return piecePicker.hasPieceFor(peerHas);
+    }
+
+    private BitSet bits(Random random, double density) {
+        BitSet bits = new BitSet(totalPieces);
+        for (int i = 0; i < totalPieces; i++) {
+            if (random.nextDouble() < density) {
+                bits.set(i);
+            }
+        }
+        return bits;
+    }
+}
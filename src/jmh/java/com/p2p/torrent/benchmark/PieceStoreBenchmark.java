@@ -0,0 +1,251 @@
+package com.p2p.torrent.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.p2p.torrent.config.TorrentConfig;
+import com.p2p.torrent.model.FilePiece;
+import com.p2p.torrent.model.Peer;
+import com.p2p.torrent.service.FileService;
+
+/**
+ * One piece in and out of the piece store: {@link FileService#getPiece} from the cache, from disk
+ * and regenerated from the source file, and {@link FileService#savePieceToDisk} into piece files
+ * and into the single data file. A whole download through the disk writer with
+ * {@link FileService#receivePiece}, per sync policy: until every piece is handed over, and until
+ * every piece is durable.
+ *
+ * Reads from "disk" are served by the OS page cache once the first iteration has touched the file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgs = {"-Xms1g", "-Xmx1g"})
+public class PieceStoreBenchmark {
+    // A name of its own: a leecher finding a file of its name in the working directory would use that
+    private static final String DOWNLOAD_FILE_NAME = "download.bin";
+
+    @State(Scope.Thread)
+    public static class CachedSeeder {
+        final String peerId = "bench-cached";
+        FileService fileService;
+        int pieceIndex;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            BenchmarkFiles.deletePeer(peerId);
+            BenchmarkFiles.source(BenchmarkFiles.FILE_NAME);
+            fileService = BenchmarkFiles.fileService(BenchmarkFiles.config(
+                BenchmarkFiles.FILE_NAME, TorrentConfig.StorageMode.SINGLE_FILE, 64L * 1024 * 1024));
+            fileService.initialize(peerId, true);
+            // Twice, so every piece sits in the cache's protected segment
+            for (int round = 0; round < 2; round++) {
+                for (int i = 0; i < BenchmarkFiles.TOTAL_PIECES; i++) {
+                    fileService.getPiece(peerId, i);
+                }
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            fileService.close();
+            BenchmarkFiles.deletePeer(peerId);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class DiskSeeder {
+        @Param({"SINGLE_FILE", "PIECE_FILES"})
+        public TorrentConfig.StorageMode storageMode;
+
+        final String peerId = "bench-disk";
+        FileService fileService;
+        int pieceIndex;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            BenchmarkFiles.deletePeer(peerId);
+            BenchmarkFiles.source(BenchmarkFiles.FILE_NAME);
+            // No cache, every read goes to the data file or the piece files
+            fileService = BenchmarkFiles.fileService(BenchmarkFiles.config(BenchmarkFiles.FILE_NAME, storageMode, 0));
+            fileService.initialize(peerId, true);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            fileService.close();
+            BenchmarkFiles.deletePeer(peerId);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class SourceSeeder {
+        final String peerId = "bench-source";
+        FileService fileService;
+        int pieceIndex;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            BenchmarkFiles.deletePeer(peerId);
+            BenchmarkFiles.source(BenchmarkFiles.FILE_NAME);
+            fileService = BenchmarkFiles.fileService(BenchmarkFiles.config(
+                BenchmarkFiles.FILE_NAME, TorrentConfig.StorageMode.PIECE_FILES, 0));
+            fileService.initialize(peerId, true);
+            // The source file is only read for a peer known to have the file
+            fileService.setPeers(Map.of(peerId, new Peer(peerId, "localhost", 0, true)));
+        }
+
+        /**
+         * Removes the piece file the next call reads, so it has to be cut out of the source file again.
+         */
+        @Setup(Level.Invocation)
+        public void dropPiece() throws IOException {
+            Files.deleteIfExists(Path.of("peer_" + peerId, "piece_" + pieceIndex));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            fileService.close();
+            BenchmarkFiles.deletePeer(peerId);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Leecher {
+        @Param({"piece-files", "single-file"})
+        public String target;
+
+        final String peerId = "bench-leecher";
+        FileService fileService;
+        byte[] piece;
+        int pieceIndex;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            BenchmarkFiles.deletePeer(peerId);
+            TorrentConfig.StorageMode storageMode = target.equals("single-file")
+                ? TorrentConfig.StorageMode.SINGLE_FILE : TorrentConfig.StorageMode.PIECE_FILES;
+            fileService = BenchmarkFiles.fileService(BenchmarkFiles.config(BenchmarkFiles.FILE_NAME, storageMode, 0));
+            fileService.initialize(peerId, false);
+            piece = BenchmarkFiles.randomBytes(BenchmarkFiles.PIECE_SIZE, BenchmarkFiles.SEED);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            fileService.close();
+            BenchmarkFiles.deletePeer(peerId);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Download {
+        @Param({"SINGLE_FILE", "PIECE_FILES"})
+        public TorrentConfig.StorageMode storageMode;
+
+        @Param({"NONE", "PERIODIC", "ON_COMPLETION"})
+        public TorrentConfig.SyncPolicy syncPolicy;
+
+        final String peerId = "bench-download";
+        FileService fileService;
+        byte[][] pieces;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            TorrentConfig config = BenchmarkFiles.config(DOWNLOAD_FILE_NAME, storageMode, 0);
+            config.setDiskSyncPolicy(syncPolicy);
+            fileService = BenchmarkFiles.fileService(config);
+            byte[] file = BenchmarkFiles.randomBytes(BenchmarkFiles.FILE_SIZE, BenchmarkFiles.SEED);
+            pieces = new byte[BenchmarkFiles.TOTAL_PIECES][];
+            for (int i = 0; i < pieces.length; i++) {
+                pieces[i] = BenchmarkFiles.piece(file, i);
+            }
+        }
+
+        /**
+         * Starts every download from scratch, once the writes of the last one are done.
+         */
+        @Setup(Level.Invocation)
+        public void restart() throws IOException {
+            fileService.close();
+            BenchmarkFiles.deletePeer(peerId);
+            fileService.initialize(peerId, false);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            fileService.close();
+            BenchmarkFiles.deletePeer(peerId);
+        }
+
+        void receiveAll() {
+            for (int i = 0; i < pieces.length; i++) {
+                fileService.receivePiece(peerId, new FilePiece(i, pieces[i]));
+            }
+        }
+    }
+
+    @Benchmark
+    public byte[] getPieceCacheHit(CachedSeeder seeder) {
+        return seeder.fileService.getPiece(seeder.peerId, next(seeder.pieceIndex++));
+    }
+
+    @Benchmark
+    public byte[] getPieceDiskHit(DiskSeeder seeder) {
+        return seeder.fileService.getPiece(seeder.peerId, next(seeder.pieceIndex++));
+    }
+
+    @Benchmark
+    public byte[] getPieceSourceFallback(SourceSeeder seeder) {
+        byte[] piece = seeder.fileService.getPiece(seeder.peerId, seeder.pieceIndex);
+        seeder.pieceIndex = next(seeder.pieceIndex + 1);
+        return piece;
+    }
+
+    @Benchmark
+    public void savePieceToDisk(Leecher leecher) {
+        // Full pieces only, the last one is shorter
+        leecher.fileService.savePieceToDisk(leecher.peerId, leecher.pieceIndex++ % (BenchmarkFiles.TOTAL_PIECES - 1),
+                                            leecher.piece);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void receivePieces(Download download) {
+        download.receiveAll();
+    }
+
+    /**
+     * Includes the wait for the sync policy, e.g. up to one sync interval for the last pieces.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public boolean receivePiecesDurable(Download download) throws InterruptedException {
+        download.receiveAll();
+        while (!download.fileService.isDownloadDurable()) {
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    private static int next(int counter) {
+        return counter % BenchmarkFiles.TOTAL_PIECES;
+    }
+}
@@ -0,0 +1,110 @@
+package com.p2p.torrent.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.p2p.torrent.config.TorrentConfig;
+import com.p2p.torrent.model.Manifest;
+import com.p2p.torrent.service.FileService;
+
+/**
+ * Whole-file work of the piece-file storage: initializing a seeder, which serves from its file or
+ * first splits it into piece files depending on the seed mode, and a leecher merging its piece files
+ * back into the file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgs = {"-Xms1g", "-Xmx1g"})
+public class SplitMergeBenchmark {
+    private static final String MERGED_FILE_NAME = "merged.bin";
+
+    @State(Scope.Thread)
+    public static class Seeder {
+        @Param({"SOURCE", "COPY"})
+        public TorrentConfig.SeedMode seedMode;
+
+        final String peerId = "bench-split";
+        FileService fileService;
+        Manifest manifest;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            BenchmarkFiles.deletePeer(peerId);
+            Path source = BenchmarkFiles.source(BenchmarkFiles.FILE_NAME);
+            TorrentConfig config = BenchmarkFiles.config(BenchmarkFiles.FILE_NAME, TorrentConfig.StorageMode.PIECE_FILES, 0);
+            config.setSeedMode(seedMode);
+            fileService = BenchmarkFiles.fileService(config);
+            manifest = BenchmarkFiles.manifestService().build(source, BenchmarkFiles.FILE_NAME, BenchmarkFiles.PIECE_SIZE);
+        }
+
+        /**
+         * Hands over the manifest so the split is measured without hashing the file.
+         */
+        @Setup(Level.Invocation)
+        public void skipHashing() {
+            fileService.setSourceManifest(manifest);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            fileService.close();
+            BenchmarkFiles.deletePeer(peerId);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Leecher {
+        final String peerId = "bench-merge";
+        FileService fileService;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            BenchmarkFiles.deletePeer(peerId);
+            Path source = BenchmarkFiles.source(BenchmarkFiles.FILE_NAME);
+            // A name of its own: a leecher that finds the file in the working directory merges onto its path
+            fileService = BenchmarkFiles.fileService(BenchmarkFiles.config(
+                MERGED_FILE_NAME, TorrentConfig.StorageMode.PIECE_FILES, 0));
+            // Stored before initializing, so the leecher finds them all and merges a complete download
+            byte[] file = Files.readAllBytes(source);
+            for (int i = 0; i < BenchmarkFiles.TOTAL_PIECES; i++) {
+                fileService.savePieceToDisk(peerId, i, BenchmarkFiles.piece(file, i));
+            }
+            fileService.initialize(peerId, false);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            fileService.close();
+            BenchmarkFiles.deletePeer(peerId);
+        }
+    }
+
+    @Benchmark
+    public int initializeSeeder(Seeder seeder) {
+        seeder.fileService.initialize(seeder.peerId, true);
+        return seeder.fileService.getTotalPieces();
+    }
+
+    @Benchmark
+    public void mergeFile(Leecher leecher) {
+        leecher.fileService.mergeFile(leecher.peerId);
+    }
+}
@@ -0,0 +1,441 @@
+package com.p2p.torrent.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.RestTemplate;
+
+import com.p2p.torrent.TorrentApplication;
+
+/**
+ * Runs whole swarms in this JVM and measures how long the download takes end to end. A run is one
+ * seeder and {@code peers - 1} leechers, each a complete node on an ephemeral localhost port. They
+ * are set up through the REST API the way the Postman collection does it and exchange pieces over
+ * the real peer protocol, every leecher connecting to the seeder and to the leechers started before
+ * it.
+ *
+ * Every combination of the listed peer counts, piece sizes and file sizes is one run, so one command
+ * gives a scaling curve:
+ * <pre>
+ * --peers 2,4,8         nodes per swarm, the seeder included (default 4)
+ * --piece-size 1MB      piece sizes (default 1MB)
+ * --file-size 64MB      file sizes (default 64MB)
+ * --timeout 600         seconds before a run is given up (default 600)
+ * --stream 4MB          have the last leecher stream this many bytes from the start of the file
+ *                       while it downloads, like a player would (default off)
+ * --set key=value       any other node property, e.g. --set p2p.unchokingInterval=1
+ * </pre>
+ * Each run prints the time every leecher took, aggregate throughput (file bytes delivered to all
+ * leechers over the time the last one took), the share of received bytes that were duplicates, and
+ * the peak heap of this JVM, which holds every node. With {@code --stream} it also prints how long the
+ * streamed bytes took from the moment the leecher connected. All runs are also written to
+ * {@code swarm-results.csv}, and what the nodes log at WARN and above to {@code swarm-nodes.log}. The file content comes from a fixed seed and each leecher's copy is
+ * checked against it.
+ */
+public final class SwarmHarness {
+    private static final String SOURCE_FILE_NAME = "swarm-source.bin";
+    private static final String LEECHER_FILE_NAME = "swarm.bin";
+    private static final String RESULTS_FILE = "swarm-results.csv";
+    private static final String NODE_LOG_FILE = "swarm-nodes.log";
+    private static final long POLL_MILLIS = 20;
+    private static final int FIRST_PEER_ID = 1001;
+
+    private final RestTemplate restTemplate = new RestTemplate();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final Map<String, String> nodeProperties = new LinkedHashMap<>();
+    private long timeoutMillis = TimeUnit.SECONDS.toMillis(600);
+    private long streamBytes;
+
+    public static void main(String[] args) throws Exception {
+        List<Integer> peerCounts = List.of(4);
+        List<Integer> pieceSizes = List.of((int) DataSize.ofMegabytes(1).toBytes());
+        List<Long> fileSizes = List.of(DataSize.ofMegabytes(64).toBytes());
+        SwarmHarness harness = new SwarmHarness();
+
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            String value = i + 1 < args.length ? args[++i] : null;
+            if (value == null) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            switch (option) {
+                case "--peers":
+                    peerCounts = parseList(value, Integer::parseInt);
+                    break;
+                case "--piece-size":
+                    pieceSizes = parseList(value, size -> Math.toIntExact(DataSize.parse(size).toBytes()));
+                    break;
+                case "--file-size":
+                    fileSizes = parseList(value, size -> DataSize.parse(size).toBytes());
+                    break;
+                case "--timeout":
+                    harness.timeoutMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+                    break;
+                case "--stream":
+                    harness.streamBytes = DataSize.parse(value).toBytes();
+                    break;
+                case "--set":
+                    int equals = value.indexOf('=');
+                    if (equals <= 0) {
+                        throw new IllegalArgumentException("Expected key=value after --set: " + value);
+                    }
+                    harness.nodeProperties.put(value.substring(0, equals), value.substring(equals + 1));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+
+        List<RunResult> results = new ArrayList<>();
+        for (int peers : peerCounts) {
+            if (peers < 2) {
+                throw new IllegalArgumentException("A swarm needs a seeder and at least one leecher: " + peers);
+            }
+            for (int pieceSize : pieceSizes) {
+                for (long fileSize : fileSizes) {
+                    results.add(harness.run(peers, pieceSize, fileSize));
+                }
+            }
+        }
+
+        System.out.println();
+        System.out.println(RunResult.HEADER);
+        results.forEach(result -> System.out.println(result.row()));
+        try (PrintWriter csv = new PrintWriter(Files.newBufferedWriter(Path.of(RESULTS_FILE)))) {
+            csv.println(RunResult.CSV_HEADER);
+            results.forEach(result -> csv.println(result.csv()));
+        }
+        System.out.println("Results written to " + Path.of(RESULTS_FILE).toAbsolutePath());
+        // Websocket client threads of the last nodes may still be winding down
+        System.exit(0);
+    }
+
+    private RunResult run(int peers, int pieceSize, long fileSize) throws Exception {
+        System.out.printf(Locale.ROOT, "%nSwarm of %d peers, %s file, %s pieces%n",
+                          peers, describe(fileSize), describe(pieceSize));
+        List<String> peerIds = new ArrayList<>();
+        for (int i = 0; i < peers; i++) {
+            peerIds.add(String.valueOf(FIRST_PEER_ID + i));
+        }
+        deletePeers(peerIds);
+        Path source = writeSource(fileSize);
+        String sourceDigest = digest(source);
+
+        List<ConfigurableApplicationContext> nodes = new ArrayList<>();
+        try {
+            List<Integer> ports = new ArrayList<>();
+            for (int i = 0; i < peers; i++) {
+                String fileName = i == 0 ? source.toAbsolutePath().toString() : LEECHER_FILE_NAME;
+                ConfigurableApplicationContext node = start(fileName, pieceSize, fileSize);
+                nodes.add(node);
+                ports.add(node.getEnvironment().getRequiredProperty("local.server.port", Integer.class));
+            }
+
+            // Like the Postman collection: initialize every node, then tell each about the others
+            for (int i = 0; i < peers; i++) {
+                post(ports.get(i), "/api/torrent/init/" + peerIds.get(i), peerBody(null, ports.get(i), i == 0));
+            }
+            for (int i = 0; i < peers; i++) {
+                for (int j = 0; j < peers; j++) {
+                    if (i != j) {
+                        post(ports.get(i), "/api/torrent/peer", peerBody(peerIds.get(j), ports.get(j), j == 0));
+                    }
+                }
+            }
+
+            System.gc();
+            long peakHeap = memory.getHeapMemoryUsage().getUsed();
+            long startedAt = System.nanoTime();
+            for (int j = 1; j < peers; j++) {
+                for (int i = 0; i < j; i++) {
+                    post(ports.get(j), "/api/torrent/connect/" + peerIds.get(i), Map.of());
+                }
+            }
+            CompletableFuture<Long> stream = streamBytes > 0
+                ? CompletableFuture.supplyAsync(() -> stream(ports.get(peers - 1), source, startedAt))
+                : CompletableFuture.completedFuture(-1L);
+
+            long[] completedMillis = new long[peers];
+            Arrays.fill(completedMillis, -1);
+            int remaining = peers - 1;
+            long deadline = startedAt + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (remaining > 0 && System.nanoTime() < deadline) {
+                for (int i = 1; i < peers; i++) {
+                    if (completedMillis[i] < 0 && Boolean.TRUE.equals(get(ports.get(i), "/api/torrent/status?format=rle").get("isComplete"))) {
+                        completedMillis[i] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+                        remaining--;
+                        System.out.printf(Locale.ROOT, "  peer %s complete after %d ms%n", peerIds.get(i), completedMillis[i]);
+                    }
+                }
+                peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+                Thread.sleep(POLL_MILLIS);
+            }
+
+            long received = 0;
+            for (int i = 1; i < peers; i++) {
+                received += ((Number) get(ports.get(i), "/api/torrent/bandwidth").get("downloaded")).longValue();
+            }
+            int verified = 0;
+            for (int i = 1; i < peers; i++) {
+                if (completedMillis[i] >= 0 && sourceDigest.equals(downloadedDigest(peerIds.get(i)))) {
+                    verified++;
+                }
+            }
+            if (remaining > 0) {
+                System.out.printf("  %d of %d leechers did not finish within %d s%n",
+                                  remaining, peers - 1, TimeUnit.MILLISECONDS.toSeconds(timeoutMillis));
+            }
+            long streamMillis = stream.get();
+            return new RunResult(peers, pieceSize, fileSize, completedMillis, received, verified, peakHeap,
+                                 streamMillis);
+        } finally {
+            for (ConfigurableApplicationContext node : nodes) {
+                node.close();
+            }
+            deletePeers(peerIds);
+            Files.deleteIfExists(source);
+        }
+    }
+
+    private ConfigurableApplicationContext start(String fileName, int pieceSize, long fileSize) {
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("server.port", "0");
+        properties.put("spring.main.banner-mode", "off");
+        // Node logs go to a file of their own, the console is for the results
+        properties.put("logging.file.name", NODE_LOG_FILE);
+        properties.put("logging.pattern.console", "");
+        properties.put("logging.level.root", "WARN");
+        properties.put("logging.level.com.p2p.torrent", "WARN");
+        properties.put("logging.level.org.springframework.web.socket", "WARN");
+        properties.put("logging.level.org.springframework.messaging", "WARN");
+        properties.put("p2p.fileName", fileName);
+        properties.put("p2p.fileSize", String.valueOf(fileSize));
+        properties.put("p2p.pieceSize", String.valueOf(pieceSize));
+        properties.putAll(nodeProperties);
+
+        // As command line arguments, so they win over application.properties
+        String[] args = properties.entrySet().stream()
+            .map(entry -> "--" + entry.getKey() + "=" + entry.getValue())
+            .toArray(String[]::new);
+        return new SpringApplicationBuilder(TorrentApplication.class).run(args);
+    }
+
+    /**
+     * Reads the first {@code streamBytes} of the file from the leecher's stream endpoint, asking again
+     * while it does not know the file yet.
+     *
+     * @return milliseconds from {@code startedAt} until they were all read, -1 if they did not match
+     */
+    private long stream(int port, Path source, long startedAt) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RANGE, "bytes=0-" + (streamBytes - 1));
+        long deadline = startedAt + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            while (true) {
+                try {
+                    byte[] body = restTemplate.exchange("http://localhost:" + port + "/api/files/stream", HttpMethod.GET,
+                                                        new HttpEntity<>(headers), byte[].class)
+                        .getBody();
+                    long streamMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+                    byte[] expected = new byte[(int) Math.min(streamBytes, Files.size(source))];
+                    try (InputStream in = Files.newInputStream(source)) {
+                        in.readNBytes(expected, 0, expected.length);
+                    }
+                    if (!Arrays.equals(expected, body)) {
+                        System.out.println("  streamed bytes do not match the file");
+                        return -1;
+                    }
+                    System.out.printf(Locale.ROOT, "  first %s streamed after %d ms%n", describe(streamBytes), streamMillis);
+                    return streamMillis;
+                } catch (HttpStatusCodeException e) {
+                    if (e.getStatusCode() != HttpStatus.SERVICE_UNAVAILABLE || System.nanoTime() > deadline) {
+                        throw e;
+                    }
+                    Thread.sleep(POLL_MILLIS);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("  streaming failed: " + e);
+            return -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+    private static Map<String, Object> peerBody(String peerId, int port, boolean hasFile) {
+        Map<String, Object> body = new HashMap<>();
+        if (peerId != null) {
+            body.put("peerId", peerId);
+        }
+        body.put("hostname", "localhost");
+        body.put("port", port);
+        body.put("hasFile", hasFile);
+        return body;
+    }
+
+    private void post(int port, String path, Map<String, Object> body) {
+        restTemplate.postForObject("http://localhost:" + port + path, body, String.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> get(int port, String path) {
+        return restTemplate.getForObject("http://localhost:" + port + path, Map.class);
+    }
+
+    private static Path writeSource(long fileSize) throws IOException {
+        Path file = Path.of(SOURCE_FILE_NAME);
+        Random random = new Random(BenchmarkFiles.SEED);
+        byte[] chunk = new byte[1024 * 1024];
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long written = 0; written < fileSize; written += chunk.length) {
+                random.nextBytes(chunk);
+                out.write(chunk, 0, (int) Math.min(chunk.length, fileSize - written));
+            }
+        }
+        return file;
+    }
+
+    /**
+     * @return the digest of the leecher's completed file, null if there is none yet
+     */
+    private static String downloadedDigest(String peerId) throws IOException, InterruptedException {
+        Path file = Path.of("peer_" + peerId, LEECHER_FILE_NAME);
+        // The file is renamed into place just after the last piece is counted
+        for (int attempt = 0; attempt < 100 && !Files.isRegularFile(file); attempt++) {
+            Thread.sleep(POLL_MILLIS);
+        }
+        return Files.isRegularFile(file) ? digest(file) : null;
+    }
+
+    private static String digest(Path file) throws IOException {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            try (InputStream in = new DigestInputStream(Files.newInputStream(file), sha256)) {
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : sha256.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void deletePeers(List<String> peerIds) throws IOException {
+        for (String peerId : peerIds) {
+            BenchmarkFiles.deletePeer(peerId);
+        }
+    }
+
+    private static <T> List<T> parseList(String value, Function<String, T> parser) {
+        List<T> values = new ArrayList<>();
+        for (String item : value.split(",")) {
+            values.add(parser.apply(item.trim()));
+        }
+        return values;
+    }
+
+    private static String describe(long bytes) {
+        if (bytes % (1024 * 1024) == 0) {
+            return bytes / (1024 * 1024) + "MB";
+        }
+        return bytes % 1024 == 0 ? bytes / 1024 + "KB" : bytes + "B";
+    }
+
+    private static final class RunResult {
+        static final String HEADER = String.format(Locale.ROOT, "%5s %8s %8s %10s %10s %10s %10s %8s %9s %8s %10s",
+            "peers", "piece", "file", "first ms", "median ms", "last ms", "MB/s", "dup %", "heap MB", "verified",
+            "stream ms");
+        static final String CSV_HEADER = "peers,piece_bytes,file_bytes,first_ms,median_ms,last_ms,"
+            + "throughput_bytes_per_s,duplicate_ratio,peak_heap_bytes,leechers,completed,verified,stream_ms";
+
+        final int peers;
+        final int pieceSize;
+        final long fileSize;
+        final long[] completed;
+        final long received;
+        final int verified;
+        final long peakHeap;
+        final long streamMillis;
+
+        RunResult(int peers, int pieceSize, long fileSize, long[] completedMillis, long received, int verified,
+                  long peakHeap, long streamMillis) {
+            this.peers = peers;
+            this.pieceSize = pieceSize;
+            this.fileSize = fileSize;
+            this.completed = Arrays.stream(completedMillis, 1, completedMillis.length).filter(ms -> ms >= 0).sorted().toArray();
+            this.received = received;
+            this.verified = verified;
+            this.peakHeap = peakHeap;
+            this.streamMillis = streamMillis;
+        }
+
+        long first() {
+            return completed.length > 0 ? completed[0] : -1;
+        }
+
+        long median() {
+            return completed.length > 0 ? completed[completed.length / 2] : -1;
+        }
+
+        /**
+         * -1 unless every leecher finished.
+         */
+        long last() {
+            return completed.length == peers - 1 ? completed[completed.length - 1] : -1;
+        }
+
+        double throughput() {
+            return last() > 0 ? (double) fileSize * (peers - 1) * 1000 / last() : 0;
+        }
+
+        double duplicateRatio() {
+            long useful = fileSize * completed.length;
+            return received > 0 ? Math.max(0, received - useful) / (double) received : 0;
+        }
+
+        String row() {
+            return String.format(Locale.ROOT, "%5d %8s %8s %10d %10d %10d %10.1f %8.2f %9d %5d/%d %10d",
+                peers, describe(pieceSize), describe(fileSize), first(), median(), last(),
+                throughput() / (1024 * 1024), duplicateRatio() * 100, peakHeap / (1024 * 1024), verified, peers - 1,
+                streamMillis);
+        }
+
+        String csv() {
+            return String.format(Locale.ROOT, "%d,%d,%d,%d,%d,%d,%.0f,%.4f,%d,%d,%d,%d,%d",
+                peers, pieceSize, fileSize, first(), median(), last(), throughput(), duplicateRatio(), peakHeap,
+                peers - 1, completed.length, verified, streamMillis);
+        }
+    }
+}
@@ -8,6 +8,8 @@ import org.springframework.util.unit.DataSize;
 import org.springframework.web.multipart.MultipartResolver;
 import org.springframework.web.multipart.support.StandardServletMultipartResolver;
 
+import com.p2p.torrent.config.TorrentConfig;
+
 import javax.servlet.MultipartConfigElement;
 
 @SpringBootApplication
@@ -23,10 +25,12 @@ public class TorrentApplication {
     }
 
     @Bean
-    public MultipartConfigElement multipartConfigElement() {
+    public MultipartConfigElement multipartConfigElement(TorrentConfig config) {
         MultipartConfigFactory factory = new MultipartConfigFactory();
-        factory.setMaxFileSize(DataSize.ofMegabytes(200));
-        factory.setMaxRequestSize(DataSize.ofMegabytes(200));
+        factory.setMaxFileSize(config.getMaxUploadSize());
+        factory.setMaxRequestSize(config.getMaxUploadSize());
+        // Spool every upload to disk instead of buffering small ones in memory
+        factory.setFileSizeThreshold(DataSize.ofBytes(0));
         return factory.createMultipartConfig();
     }
 }
\ No newline at end of file
@@ -2,6 +2,7 @@ package com.p2p.torrent.config;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
 
 import lombok.Data;
 
@@ -9,19 +10,82 @@ import lombok.Data;
 @ConfigurationProperties(prefix = "p2p")
 @Data
 public class TorrentConfig {
+    public enum StorageMode {
+        // Pieces are written into one preallocated file at pieceIndex * pieceSize
+        SINGLE_FILE,
+        // Every piece in its own piece_N file, merged once the download completes
+        PIECE_FILES
+    }
+    
+    public enum SeedMode {
+        // Pieces are read out of the source file when they are requested, nothing is copied
+        SOURCE,
+        // Piece-files storage also splits the source into piece_N files when seeding starts
+        COPY
+    }
+    
+    public enum SyncPolicy {
+        // A written piece counts as stored, the OS decides when it reaches the disk
+        NONE,
+        // Written pieces are synced together every diskSyncIntervalMillis or diskSyncBytes
+        PERIODIC,
+        // Written pieces are synced once, when the download is complete
+        ON_COMPLETION
+    }
+    
     private int numberOfPreferredNeighbors;
     private int unchokingInterval;
     private int optimisticUnchokingInterval;
+    // Half-life of the per-peer transfer rates the choker ranks peers by
+    private int rateHalfLifeSeconds = 10;
     private String fileName;
-    private int fileSize;
+    private long fileSize;
     private int pieceSize;
+    private int blockSize = 16384;
+    // Block requests a peer has not answered within this time are asked of other peers
+    private long requestTimeoutMillis = 10000;
+    private long cacheMaxBytes = 64L * 1024 * 1024;
+    private StorageMode storageMode = StorageMode.SINGLE_FILE;
+    private SeedMode seedMode = SeedMode.SOURCE;
+    private DataSize maxUploadSize = DataSize.ofGigabytes(20);
+    
+    // Inbound message handling: worker threads (0 = one per core), tasks queued per peer, and
+    // whether to use virtual threads instead of a fixed pool when the JDK has them
+    private int dispatchThreads;
+    private int dispatchQueueDepth = 256;
+    private boolean dispatchVirtualThreads;
+    
+    // HAVEs for the same peer within this window go out as one HAVE_BATCH (0 = send each at once)
+    private long haveBatchWindowMillis = 100;
+    
+    // Received pieces go to disk on a writer thread, through a queue of at most this many pieces, and
+    // are only announced once synced according to the policy
+    private int diskQueueDepth = 64;
+    private SyncPolicy diskSyncPolicy = SyncPolicy.PERIODIC;
+    private long diskSyncIntervalMillis = 250;
+    private long diskSyncBytes = 32L * 1024 * 1024;
+    
+    // Streaming an unfinished download: how far ahead of the reader pieces get deadlines, the rate
+    // a player is assumed to read at, and how long a read waits for a missing piece
+    private long streamReadaheadBytes = 16L * 1024 * 1024;
+    private long streamBytesPerSecond = 2L * 1024 * 1024;
+    private long streamWaitMillis = 30000;
+    
+    // Piece traffic limits in bytes per second, for the whole node and for each peer (0 = unlimited)
+    private long uploadRateLimit;
+    private long downloadRateLimit;
+    private long peerUploadRateLimit;
+    private long peerDownloadRateLimit;
     
     /**
-     * Override the calculated total pieces based on actual file size.
-     * This is important for proper bitfield and download tracking.
+     * Piece count implied by the configured file size. Only a starting point: a seeder counts the
+     * pieces of its actual file, and once a manifest is known (hashed locally or received in a
+     * handshake) its piece count is used instead.
      */
     public int getAdjustedTotalPieces() {
-        // The ACTUAL number of pieces based on scans of the peer_1001 directory
-        return 91;
+        if (pieceSize <= 0 || fileSize <= 0) {
+            return 0;
+        }
+        return Math.toIntExact((fileSize + pieceSize - 1) / pieceSize);
     }
 }
\ No newline at end of file
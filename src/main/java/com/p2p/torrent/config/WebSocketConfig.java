@@ -2,6 +2,10 @@ package com.p2p.torrent.config;
 
 import java.util.Map;
 
+import javax.websocket.ContainerProvider;
+import javax.websocket.WebSocketContainer;
+
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.event.EventListener;
@@ -11,22 +15,37 @@ import org.springframework.messaging.simp.config.MessageBrokerRegistry;
 import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 import org.springframework.web.socket.WebSocketHandler;
-import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.client.WebSocketClient;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
 import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
+import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
 import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketTransportRegistration;
-import org.springframework.web.socket.handler.WebSocketSessionDecorator;
 import org.springframework.web.socket.messaging.SessionConnectedEvent;
 import org.springframework.web.socket.messaging.SessionDisconnectEvent;
 import org.springframework.web.socket.server.HandshakeInterceptor;
+import org.springframework.web.socket.server.standard.ServletServerContainerFactoryBean;
+
+import com.p2p.torrent.controller.BinaryMessageHandler;
 
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
 @Configuration
+@EnableWebSocket
 @EnableWebSocketMessageBroker
+@RequiredArgsConstructor
 @Slf4j
-public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
+public class WebSocketConfig implements WebSocketMessageBrokerConfigurer, WebSocketConfigurer {
+    // PIECE frames carry at most one block (p2p.blockSize, 16 KB by default) whatever the piece size,
+    // so this leaves room for large blocks and for HANDSHAKE/BITFIELD frames of big files
+    private static final int MAX_FRAME_SIZE = 2 * 1024 * 1024; // 2MB
+
+    // Resolved lazily: the handler depends on the messaging template this configuration helps build
+    private final ObjectProvider<BinaryMessageHandler> binaryMessageHandler;
 
     @Bean
     public ThreadPoolTaskScheduler customMessageBrokerTaskScheduler() {
@@ -49,6 +68,40 @@ public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
                 .addInterceptors(new LoggingHandshakeInterceptor());
     }
 
+    /**
+     * Raw WebSocket endpoint carrying binary PIECE/REQUEST/HAVE frames next to the STOMP endpoint
+     */
+    @Override
+    public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
+        registry.addHandler(binaryMessageHandler.getObject(), "/ws-binary")
+                .setAllowedOriginPatterns("*")
+                .addInterceptors(new LoggingHandshakeInterceptor());
+
+        log.info("WEBSOCKET CONFIG: Registered binary peer endpoint /ws-binary");
+    }
+
+    /**
+     * Let the container buffer a whole frame before handing it to the binary handler
+     */
+    @Bean
+    public ServletServerContainerFactoryBean createWebSocketContainer() {
+        ServletServerContainerFactoryBean container = new ServletServerContainerFactoryBean();
+        container.setMaxBinaryMessageBufferSize(MAX_FRAME_SIZE);
+        container.setMaxTextMessageBufferSize(MAX_FRAME_SIZE);
+        return container;
+    }
+
+    /**
+     * Client for dialing other nodes' {@code /ws-binary} endpoints, with the same frame limits as the server side
+     */
+    @Bean
+    public WebSocketClient peerWebSocketClient() {
+        WebSocketContainer container = ContainerProvider.getWebSocketContainer();
+        container.setDefaultMaxBinaryMessageBufferSize(MAX_FRAME_SIZE);
+        container.setDefaultMaxTextMessageBufferSize(MAX_FRAME_SIZE);
+        return new StandardWebSocketClient(container);
+    }
+
     @Override
     public void configureMessageBroker(MessageBrokerRegistry registry) {
         registry.enableSimpleBroker("/topic", "/queue", "/user")
@@ -67,7 +120,7 @@ public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
     @Override
     public void configureWebSocketTransport(WebSocketTransportRegistration registry) {
         // Increase message size limits (default is 64KB)
-        registry.setMessageSizeLimit(2 * 1024 * 1024); // 2MB
+        registry.setMessageSizeLimit(MAX_FRAME_SIZE);
         registry.setSendBufferSizeLimit(4 * 1024 * 1024); // 4MB
         registry.setSendTimeLimit(20 * 1000); // 20 seconds
         
@@ -0,0 +1,119 @@
+package com.p2p.torrent.controller;
+
+import java.io.IOException;
+import java.net.URI;
+
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.p2p.torrent.config.TorrentConfig;
+import com.p2p.torrent.model.Message;
+import com.p2p.torrent.model.MessageCodec;
+import com.p2p.torrent.service.MessageDispatcher;
+import com.p2p.torrent.service.PeerMessenger;
+import com.p2p.torrent.service.TorrentRegistry;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Raw WebSocket endpoint ({@code /ws-binary}) for peer traffic.
+ *
+ * PIECE, REQUEST, HAVE and CANCEL arrive as binary frames (see {@link MessageCodec}); the remaining
+ * control messages arrive as JSON text frames. Both end up in {@link TorrentRegistry#handleMessage},
+ * which hands them to the swarm they are addressed to.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class BinaryMessageHandler extends AbstractWebSocketHandler {
+    private final TorrentConfig config;
+    private final TorrentRegistry torrentRegistry;
+    private final MessageDispatcher messageDispatcher;
+    private final PeerMessenger peerMessenger;
+    private final ObjectMapper objectMapper;
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) {
+        String peerId = peerIdFromUri(session.getUri());
+        if (peerId != null) {
+            peerMessenger.registerSession(peerId, session);
+        }
+        log.info("BINARY CONNECTED: session {} (peer {})", session.getId(), peerId);
+    }
+
+    @Override
+    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) {
+        Message decoded;
+        try {
+            decoded = MessageCodec.decode(message.getPayload(), config.getBlockSize(), torrentRegistry.getMaxPieceSize());
+        } catch (IllegalArgumentException e) {
+            log.error("BINARY DECODE ERROR: session {}: {}", session.getId(), e.getMessage());
+            return;
+        }
+        dispatch(session, decoded);
+    }
+
+    @Override
+    protected void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
+        dispatch(session, objectMapper.readValue(message.getPayload(), Message.class));
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        for (String peerId : peerMessenger.unregisterSession(session)) {
+            torrentRegistry.handlePeerDisconnected(peerId);
+        }
+        log.info("BINARY DISCONNECTED: session {} ({})", session.getId(), status);
+    }
+
+    @Override
+    public void handleTransportError(WebSocketSession session, Throwable exception) {
+        log.error("BINARY TRANSPORT ERROR: session {}: {}", session.getId(), exception.getMessage());
+    }
+
+    private void dispatch(WebSocketSession session, Message message) {
+        if (message.getType() == null || message.getPeerId() == null) {
+            log.warn("BINARY RECEIVED: Dropping message without type or sender on session {}", session.getId());
+            return;
+        }
+
+        // Replies to this peer go back over the socket it talks to us on
+        peerMessenger.registerSession(message.getPeerId(), session);
+
+        log.debug("BINARY RECEIVED: type={}, from={}, pieceIndex={}, dataSize={}",
+                  message.getType(), message.getPeerId(), message.getPieceIndex(),
+                  message.getData() != null ? message.getData().length : 0);
+
+        // Handled off the WebSocket thread, in order with everything else from this peer
+        Runnable handler = () -> torrentRegistry.handleMessage(message);
+        if (messageDispatcher.submit(message.getPeerId(), message.getType(), handler)) {
+            return;
+        }
+        if (message.getType() == Message.MessageType.REQUEST) {
+            torrentRegistry.handleRejected(message);
+            return;
+        }
+        // The peer's state can't be recovered without this message; closing makes it start over
+        log.warn("BINARY RECEIVED: Dropped {} from peer {}, closing session {}",
+                 message.getType(), message.getPeerId(), session.getId());
+        try {
+            session.close(CloseStatus.SERVICE_OVERLOAD);
+        } catch (IOException e) {
+            log.warn("BINARY RECEIVED: Failed to close session {}: {}", session.getId(), e.getMessage());
+        }
+    }
+
+    private static String peerIdFromUri(URI uri) {
+        if (uri == null) {
+            return null;
+        }
+        return UriComponentsBuilder.fromUri(uri).build().getQueryParams().getFirst("peerId");
+    }
+}
@@ -1,17 +1,18 @@
 package com.p2p.torrent.controller;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.BitSet;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
-import org.springframework.core.io.InputStreamResource;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -24,6 +25,10 @@ import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
 
 import com.p2p.torrent.config.TorrentConfig;
+import com.p2p.torrent.model.BitfieldCodec;
+import com.p2p.torrent.model.Manifest;
+import com.p2p.torrent.model.PieceRegion;
+import com.p2p.torrent.service.DownloadScheduler;
 import com.p2p.torrent.service.FileService;
 
 import lombok.RequiredArgsConstructor;
@@ -35,6 +40,7 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class FileController {
     private final FileService fileService;
+    private final DownloadScheduler downloadScheduler;
     private final TorrentConfig config;
     
     @PostMapping(value = "/upload", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
@@ -67,59 +73,34 @@ public class FileController {
                 fileName = "uploaded_file";
             }
             
-            // Update the config's fileName for this run (needed for compatibility with other services)
-            config.setFileName(fileName);
-            
-            byte[] fileData = file.getBytes();
-            
-            // Get content type information
-            String contentType = file.getContentType();
-            log.info("Content type: {}, filename: {}", contentType, fileName);
-            
-            // Create directory for this peer if it doesn't exist
-            String peerDir = "peer_" + peerId;
-            Files.createDirectories(Paths.get(peerDir));
-            
-            // Create metadata directory if it doesn't exist
-            Files.createDirectories(Paths.get(peerDir, "metadata"));
-            
-            // Save content type metadata
-            if (contentType != null) {
-                Path metadataPath = Paths.get(peerDir, "metadata", "content_type");
-                Files.write(metadataPath, contentType.getBytes());
-            }
-            
-            // Save the filename in metadata
-            Path fileNamePath = Paths.get(peerDir, "metadata", "filename");
-            Files.write(fileNamePath, fileName.getBytes());
-            
-            // Save the original file
-            Path filePath = Paths.get(peerDir, fileName);
-            Files.write(filePath, fileData);
-            
-            // Split file into pieces
-            int pieceSize = config.getPieceSize();
-            int totalPieces = (int) Math.ceil((double) fileData.length / pieceSize);
-            
-            for (int i = 0; i < totalPieces; i++) {
-                int start = i * pieceSize;
-                int length = Math.min(pieceSize, fileData.length - start);
-                
-                byte[] piece = new byte[length];
-                System.arraycopy(fileData, start, piece, 0, length);
-                
-                fileService.savePieceToDisk(peerId, i, piece);
-            }
+            // Read from the multipart stream, the upload is never held in memory as a whole
+            return storeUpload(peerId, fileName, file.getContentType(), file.getInputStream());
+        } catch (IOException e) {
+            log.error("Failed to upload file", e);
             
-            Map<String, Object> responseMap = new HashMap<>();
-            responseMap.put("fileName", fileName);
-            responseMap.put("fileSize", fileData.length);
-            responseMap.put("contentType", contentType);
-            responseMap.put("pieces", totalPieces);
-            responseMap.put("pieceSize", pieceSize);
-            responseMap.put("success", true);
+            Map<String, Object> errorMap = new HashMap<>();
+            errorMap.put("error", e.getMessage());
+            errorMap.put("success", false);
             
-            return ResponseEntity.ok(responseMap);
+            return ResponseEntity.badRequest().body(errorMap);
+        }
+    }
+    
+    /**
+     * Raw upload: the request body is the file itself, so nothing is buffered or spooled to a
+     * temporary file on the way in.
+     */
+    @PostMapping(value = "/upload-stream", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<Map<String, Object>> uploadStream(
+            @RequestParam("peerId") String peerId,
+            @RequestParam("fileName") String fileName,
+            @RequestParam(value = "contentType", required = false) String contentType,
+            HttpServletRequest request) {
+        
+        log.info("Received streaming upload of {} ({} bytes) for peer {}", fileName, request.getContentLengthLong(), peerId);
+        
+        try {
+            return storeUpload(peerId, fileName, contentType, request.getInputStream());
         } catch (IOException e) {
             log.error("Failed to upload file", e);
             
@@ -131,21 +112,55 @@ public class FileController {
         }
     }
     
-    @GetMapping("/download/{peerId}")
-    public ResponseEntity<InputStreamResource> downloadFile(@PathVariable String peerId) {
-        try {
-            if (fileService.hasCompletedDownload()) {
-                log.info("Download is complete, merging file for peer {}", peerId);
-                fileService.mergeFile(peerId);
-            } else {
-                log.warn("Forcing file merge for peer {} despite incomplete download", peerId);
-                // Force merge anyway for demonstration purposes
-                fileService.mergeFile(peerId);
-            }
-        } catch (Exception e) {
-            log.error("Error merging file for download", e);
+    private ResponseEntity<Map<String, Object>> storeUpload(String peerId, String fileName, String contentType,
+                                                            InputStream in) throws IOException {
+        // Update the config's fileName for this run (needed for compatibility with other services)
+        config.setFileName(fileName);
+        
+        log.info("Content type: {}, filename: {}", contentType, fileName);
+        
+        String peerDir = "peer_" + peerId;
+        Files.createDirectories(Paths.get(peerDir, "metadata"));
+        
+        // Save content type metadata
+        if (contentType != null) {
+            Path metadataPath = Paths.get(peerDir, "metadata", "content_type");
+            Files.write(metadataPath, contentType.getBytes());
         }
         
+        // Save the filename in metadata
+        Path fileNamePath = Paths.get(peerDir, "metadata", "filename");
+        Files.write(fileNamePath, fileName.getBytes());
+        
+        // Save the file and cut it into pieces in one pass
+        Manifest manifest = fileService.storeUpload(peerId, fileName, in, config.getMaxUploadSize().toBytes());
+        
+        Map<String, Object> responseMap = new HashMap<>();
+        responseMap.put("fileName", fileName);
+        responseMap.put("fileSize", manifest.getFileLength());
+        responseMap.put("contentType", contentType);
+        responseMap.put("contentId", manifest.getContentId());
+        responseMap.put("pieces", manifest.getPieceCount());
+        responseMap.put("pieceSize", manifest.getPieceSize());
+        responseMap.put("pieceHashes", manifest.getPieceHashes());
+        responseMap.put("success", true);
+        
+        return ResponseEntity.ok(responseMap);
+    }
+    
+    /**
+     * Plays the local download while it is still in progress: byte ranges are served as their
+     * pieces arrive, and the pieces just ahead of the reader are fetched first.
+     */
+    @GetMapping("/stream")
+    public void streamFile(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        PieceStreamWriter.write(fileService, downloadScheduler, request, response);
+    }
+    
+    @GetMapping("/download/{peerId}")
+    public void downloadFile(@PathVariable String peerId,
+                             HttpServletRequest request,
+                             HttpServletResponse response) throws IOException {
         String peerDir = "peer_" + peerId;
         
         // Read filename from metadata if available
@@ -160,97 +175,116 @@ public class FileController {
             }
         }
         
-        Path filePath = Paths.get(peerDir, fileName);
+        // Seeders record the absolute path of their source file
+        Path recordedPath = Paths.get(fileName);
+        Path filePath = recordedPath.isAbsolute() ? recordedPath : Paths.get(peerDir).resolve(recordedPath);
         
-        try {
-            File file = filePath.toFile();
-            
-            if (!file.exists()) {
-                // Try to merge the file
+        File file = filePath.toFile();
+        
+        if (!file.exists()) {
+            // Merge only when there is no merged file yet, range requests must not trigger a rewrite
+            try {
                 fileService.mergeFile(peerId);
-                
-                // Check again if file exists
-                if (!file.exists()) {
-                    return ResponseEntity.notFound().build();
-                }
+            } catch (Exception e) {
+                log.error("Error merging file for download", e);
             }
             
-            // Read content type from metadata if available
-            MediaType contentType = MediaType.APPLICATION_OCTET_STREAM;
-            Path metadataPath = Paths.get(peerDir, "metadata", "content_type");
-            if (Files.exists(metadataPath)) {
-                String contentTypeStr = new String(Files.readAllBytes(metadataPath)).trim();
-                try {
-                    contentType = MediaType.parseMediaType(contentTypeStr);
-                    log.info("Using content type from metadata: {}", contentTypeStr);
-                } catch (Exception e) {
-                    log.warn("Invalid content type in metadata: {}", contentTypeStr);
-                }
+            // Check again if file exists
+            if (!file.exists()) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
             }
-            
-            InputStreamResource resource = new InputStreamResource(new ByteArrayInputStream(Files.readAllBytes(filePath)));
-            
-            // If it's a video file, serve inline for browser playback
-            boolean isVideo = contentType != null && 
-                             (contentType.toString().startsWith("video/") || 
-                              fileName.toLowerCase().endsWith(".mp4") ||
-                              fileName.toLowerCase().endsWith(".webm") ||
-                              fileName.toLowerCase().endsWith(".mov"));
-            
-            if (isVideo) {
-                log.info("Serving video file {} for streaming", fileName);
-                return ResponseEntity.ok()
-                    .header(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=" + fileName)
-                    .contentType(contentType)
-                    .contentLength(file.length())
-                    .header(HttpHeaders.ACCEPT_RANGES, "bytes")
-                    .body(resource);
-            } else {
-                return ResponseEntity.ok()
-                    .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + fileName)
-                    .contentType(contentType)
-                    .contentLength(file.length())
-                    .body(resource);
+        }
+        
+        // Read content type from metadata if available
+        MediaType contentType = MediaType.APPLICATION_OCTET_STREAM;
+        Path metadataPath = Paths.get(peerDir, "metadata", "content_type");
+        if (Files.exists(metadataPath)) {
+            String contentTypeStr = new String(Files.readAllBytes(metadataPath)).trim();
+            try {
+                contentType = MediaType.parseMediaType(contentTypeStr);
+                log.info("Using content type from metadata: {}", contentTypeStr);
+            } catch (Exception e) {
+                log.warn("Invalid content type in metadata: {}", contentTypeStr);
             }
-        } catch (IOException e) {
-            log.error("Failed to download file", e);
-            return ResponseEntity.badRequest().build();
         }
+        
+        // If it's a video file, serve inline for browser playback
+        boolean isVideo = contentType.toString().startsWith("video/") || 
+                         fileName.toLowerCase().endsWith(".mp4") ||
+                         fileName.toLowerCase().endsWith(".webm") ||
+                         fileName.toLowerCase().endsWith(".mov");
+        
+        if (isVideo) {
+            log.info("Serving video file {} for streaming", fileName);
+            response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=" + file.getName());
+        } else {
+            response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + file.getName());
+        }
+        
+        // Streamed from disk, with Range support so players can seek
+        FileRegionWriter.writeFile(filePath, contentType.toString(), request, response);
     }
     
+    /**
+     * @param format bitfield encoding: ascii (default), packed or rle, see {@link BitfieldCodec}
+     */
     @GetMapping("/pieces/{peerId}")
-    public ResponseEntity<Map<String, Object>> getPiecesInfo(@PathVariable String peerId) {
+    public ResponseEntity<Map<String, Object>> getPiecesInfo(
+            @PathVariable String peerId,
+            @RequestParam(value = "format", defaultValue = "ascii") String format) {
+        BitfieldCodec.Format bitfieldFormat;
+        try {
+            bitfieldFormat = BitfieldCodec.Format.parse(format);
+        } catch (IllegalArgumentException e) {
+            Map<String, Object> errorMap = new HashMap<>();
+            errorMap.put("error", "Unknown bitfield format: " + format);
+            return ResponseEntity.badRequest().body(errorMap);
+        }
+        
         BitSet bitfield = fileService.getBitfield();
         int totalPieces = fileService.getTotalPieces();
         int downloadedPieces = bitfield.cardinality();
         
-        StringBuilder bitfieldStr = new StringBuilder();
-        for (int i = 0; i < totalPieces; i++) {
-            bitfieldStr.append(bitfield.get(i) ? '1' : '0');
-        }
-        
         Map<String, Object> infoMap = new HashMap<>();
         infoMap.put("totalPieces", totalPieces);
         infoMap.put("downloadedPieces", downloadedPieces);
-        infoMap.put("bitfield", bitfieldStr.toString());
+        infoMap.put("bitfield", BitfieldCodec.encode(bitfield, totalPieces, bitfieldFormat));
+        infoMap.put("bitfieldFormat", bitfieldFormat.wireName());
         infoMap.put("isComplete", fileService.hasCompletedDownload());
         
         return ResponseEntity.ok(infoMap);
     }
     
+    @GetMapping("/manifest")
+    public ResponseEntity<Manifest> getManifest() {
+        Manifest manifest = fileService.getManifest();
+        return manifest != null ? ResponseEntity.ok(manifest) : ResponseEntity.notFound().build();
+    }
+
     @GetMapping("/piece/{peerId}/{pieceIndex}")
-    public ResponseEntity<byte[]> downloadPiece(
+    public void downloadPiece(
             @PathVariable String peerId,
-            @PathVariable int pieceIndex) {
+            @PathVariable int pieceIndex,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        
+        // Stream the piece from disk when we know where it is
+        PieceRegion region = fileService.getPieceRegion(peerId, pieceIndex);
+        if (region != null) {
+            FileRegionWriter.write(region, MediaType.APPLICATION_OCTET_STREAM_VALUE, request, response);
+            return;
+        }
         
         byte[] piece = fileService.getPiece(peerId, pieceIndex);
         
         if (piece == null) {
-            return ResponseEntity.notFound().build();
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
         }
         
-        return ResponseEntity.ok()
-            .contentType(MediaType.APPLICATION_OCTET_STREAM)
-            .body(piece);
+        response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        response.setContentLength(piece.length);
+        response.getOutputStream().write(piece);
     }
 }
\ No newline at end of file
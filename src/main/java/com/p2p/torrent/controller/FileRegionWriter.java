@@ -0,0 +1,154 @@
+package com.p2p.torrent.controller;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.MediaType;
+import org.springframework.util.MimeTypeUtils;
+
+import com.p2p.torrent.model.PieceRegion;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Streams a file region into an HTTP response without copying it through the heap.
+ *
+ * When Tomcat supports sendfile the region is handed to the connector, which lets the kernel copy
+ * it straight from the page cache to the socket. Otherwise it is pushed with
+ * {@link FileChannel#transferTo}, which only needs a small fixed buffer per call.
+ */
+@Slf4j
+final class FileRegionWriter {
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private FileRegionWriter() {
+    }
+
+    static void write(PieceRegion region, String contentType,
+                      HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType(contentType != null ? contentType : MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        response.setContentLengthLong(region.getLength());
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            request.setAttribute(SENDFILE_FILENAME, region.getFile().toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, region.getPosition());
+            request.setAttribute(SENDFILE_END, region.getPosition() + region.getLength());
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(region.getFile(), StandardOpenOption.READ)) {
+            transfer(channel, region, Channels.newChannel(response.getOutputStream()));
+        }
+    }
+
+    /**
+     * Serves a whole file, honouring a {@code Range} header: no header gives 200 with the full
+     * file, one range gives 206 with {@code Content-Range}, several give a 206
+     * {@code multipart/byteranges} body and unsatisfiable ranges give 416.
+     */
+    static void writeFile(Path file, String contentType,
+                          HttpServletRequest request, HttpServletResponse response) throws IOException {
+        long fileLength = Files.size(file);
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader == null || rangeHeader.isEmpty()) {
+            write(new PieceRegion(file, 0, fileLength), contentType, request, response);
+            return;
+        }
+
+        List<PieceRegion> regions = new ArrayList<>();
+        try {
+            for (HttpRange range : HttpRange.parseRanges(rangeHeader)) {
+                long start = range.getRangeStart(fileLength);
+                long end = range.getRangeEnd(fileLength);
+                if (start >= fileLength || end < start) {
+                    throw new IllegalArgumentException("Range " + range + " outside of " + fileLength + " bytes");
+                }
+                regions.add(new PieceRegion(file, start, end - start + 1));
+            }
+        } catch (IllegalArgumentException e) {
+            log.info("FILE REGION: Unsatisfiable range '{}' for {} ({} bytes)", rangeHeader, file, fileLength);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + fileLength);
+            response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        }
+
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        if (regions.size() == 1) {
+            PieceRegion region = regions.get(0);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, contentRange(region, fileLength));
+            write(region, contentType, request, response);
+            return;
+        }
+
+        writeMultipart(regions, fileLength, contentType, response);
+    }
+
+    private static void writeMultipart(List<PieceRegion> regions, long fileLength, String contentType,
+                                       HttpServletResponse response) throws IOException {
+        String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+        String partType = contentType != null ? contentType : MediaType.APPLICATION_OCTET_STREAM_VALUE;
+
+        // Part headers are small, build them up front so Content-Length is known
+        List<byte[]> partHeaders = new ArrayList<>();
+        long contentLength = 0;
+        for (PieceRegion region : regions) {
+            byte[] header = ("\r\n--" + boundary + "\r\n"
+                + HttpHeaders.CONTENT_TYPE + ": " + partType + "\r\n"
+                + HttpHeaders.CONTENT_RANGE + ": " + contentRange(region, fileLength) + "\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(header);
+            contentLength += header.length + region.getLength();
+        }
+        byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        contentLength += trailer.length;
+
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+        OutputStream out = response.getOutputStream();
+        WritableByteChannel outChannel = Channels.newChannel(out);
+        try (FileChannel channel = FileChannel.open(regions.get(0).getFile(), StandardOpenOption.READ)) {
+            for (int i = 0; i < regions.size(); i++) {
+                out.write(partHeaders.get(i));
+                transfer(channel, regions.get(i), outChannel);
+            }
+        }
+        out.write(trailer);
+    }
+
+    private static void transfer(FileChannel channel, PieceRegion region, WritableByteChannel out) throws IOException {
+        long position = region.getPosition();
+        long end = region.getPosition() + region.getLength();
+        while (position < end) {
+            long sent = channel.transferTo(position, end - position, out);
+            if (sent <= 0) {
+                log.warn("FILE REGION: {} ended at {} before {}", region.getFile(), position, end);
+                break;
+            }
+            position += sent;
+        }
+    }
+
+    private static String contentRange(PieceRegion region, long fileLength) {
+        return "bytes " + region.getPosition() + "-" + (region.getPosition() + region.getLength() - 1) + "/" + fileLength;
+    }
+}
@@ -0,0 +1,93 @@
+package com.p2p.torrent.controller;
+
+import java.net.URI;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketHttpHeaders;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.client.WebSocketClient;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import com.p2p.torrent.model.Peer;
+import com.p2p.torrent.service.PeerMessenger;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Dials the {@code /ws-binary} endpoint of another node, at the hostname and port the peer was
+ * registered with, so two nodes can talk to each other directly. Both sides then use this one
+ * socket, and what arrives on it is handled by {@link BinaryMessageHandler} like any inbound
+ * connection. A peer that can't be reached is still sent to through its STOMP user queue.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class PeerConnector {
+    private static final long CONNECT_TIMEOUT_SECONDS = 5;
+
+    private final WebSocketClient peerWebSocketClient;
+    private final BinaryMessageHandler binaryMessageHandler;
+    private final PeerMessenger peerMessenger;
+
+    /**
+     * Opens a binary connection to the peer unless there already is one.
+     *
+     * @return true if there is an open binary connection to the peer
+     */
+    public boolean connect(String localPeerId, Peer peer) {
+        String peerId = peer.getPeerId();
+        if (peerMessenger.hasBinarySession(peerId)) {
+            return true;
+        }
+        if (localPeerId == null || peerId.equals(localPeerId) || peer.getHostname() == null || peer.getPort() <= 0) {
+            return false;
+        }
+
+        URI uri = UriComponentsBuilder.newInstance()
+            .scheme("ws")
+            .host(peer.getHostname())
+            .port(peer.getPort())
+            .path("/ws-binary")
+            .queryParam("peerId", localPeerId)
+            .build()
+            .toUri();
+        try {
+            WebSocketSession session = peerWebSocketClient
+                .doHandshake(new OutboundHandler(peerId), new WebSocketHttpHeaders(), uri)
+                .get(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            log.info("PEER CONNECT: Connected to peer {} at {} (session {})", peerId, uri, session.getId());
+            return session.isOpen();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+            log.warn("PEER CONNECT: Could not reach peer {} at {} ({}), sending through STOMP",
+                     peerId, uri, cause.toString());
+            return false;
+        }
+    }
+
+    /**
+     * The inbound handler, except that the session belongs to the peer we dialed: the peer ID in our
+     * own URI is ours.
+     */
+    private final class OutboundHandler extends WebSocketHandlerDecorator {
+        private final String peerId;
+
+        OutboundHandler(String peerId) {
+            super(binaryMessageHandler);
+            this.peerId = peerId;
+        }
+
+        @Override
+        public void afterConnectionEstablished(WebSocketSession session) {
+            peerMessenger.registerSession(peerId, session);
+        }
+    }
+}
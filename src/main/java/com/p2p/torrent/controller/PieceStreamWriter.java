@@ -0,0 +1,144 @@
+package com.p2p.torrent.controller;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+
+import com.p2p.torrent.model.Manifest;
+import com.p2p.torrent.service.DownloadScheduler;
+import com.p2p.torrent.service.FileService;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Serves a byte range of a file that is still downloading, writing each piece as soon as it is in.
+ *
+ * Before every piece the download scheduler is told where the reader is, so the pieces just ahead
+ * of it are requested before anything else; each request has a readahead window of its own. A read
+ * that reaches a missing piece escalates it and waits up to {@code p2p.streamWaitMillis}. Only the
+ * part of each piece the range covers is read. A finished file is served from disk instead.
+ */
+@Slf4j
+final class PieceStreamWriter {
+    private static final String RETRY_AFTER_SECONDS = "1";
+
+    private PieceStreamWriter() {
+    }
+
+    static void write(FileService fileService, DownloadScheduler downloadScheduler,
+                      HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String contentType = contentType(fileService);
+        Path complete = fileService.getCompleteFile();
+        if (complete != null) {
+            response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=" + complete.getFileName());
+            FileRegionWriter.writeFile(complete, contentType, request, response);
+            return;
+        }
+
+        // Leechers learn the length from the manifest of the first peer they meet
+        long fileLength = fileService.getFileLength();
+        int pieceSize = fileService.getPieceSize();
+        if (fileLength <= 0 || pieceSize <= 0) {
+            response.setHeader(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS);
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "File length not known yet");
+            return;
+        }
+
+        long start = 0;
+        long end = fileLength - 1;
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        boolean partial = rangeHeader != null && !rangeHeader.isEmpty();
+        if (partial) {
+            try {
+                // Players ask for one range at a time; of several, only the first is served
+                HttpRange range = HttpRange.parseRanges(rangeHeader).get(0);
+                start = range.getRangeStart(fileLength);
+                end = range.getRangeEnd(fileLength);
+                if (start >= fileLength || end < start) {
+                    throw new IllegalArgumentException("Range " + range + " outside of " + fileLength + " bytes");
+                }
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                log.info("STREAM: Unsatisfiable range '{}' ({} bytes)", rangeHeader, fileLength);
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + fileLength);
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+        }
+
+        long position = start;
+        DownloadScheduler.StreamHandle reader = downloadScheduler.streamAt(position);
+        try {
+            while (position <= end) {
+                int pieceIndex = (int) (position / pieceSize);
+                if (!downloadScheduler.awaitPiece(reader, pieceIndex)) {
+                    log.warn("STREAM: Piece {} did not arrive in time, {} of {} bytes served",
+                             pieceIndex, position - start, end - start + 1);
+                    if (!response.isCommitted()) {
+                        response.setHeader(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS);
+                        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                                           "Piece " + pieceIndex + " not available");
+                        return;
+                    }
+                    throw new IOException("Piece " + pieceIndex + " did not arrive in time");
+                }
+
+                // Only the part of the piece the range covers is read
+                long pieceStart = (long) pieceIndex * pieceSize;
+                int from = (int) (position - pieceStart);
+                int to = (int) Math.min(fileService.getPieceLength(pieceIndex), end - pieceStart + 1);
+                byte[] slice = fileService.readBlock(pieceIndex, from, to - from);
+                if (slice == null || slice.length == 0) {
+                    throw new IOException("Piece " + pieceIndex + " could not be read");
+                }
+
+                // Headers go out with the first piece, so a stall before it can still be answered with 503
+                OutputStream out = position == start ? begin(response, contentType, start, end, fileLength, partial)
+                                                     : response.getOutputStream();
+                out.write(slice);
+                out.flush();
+                position += slice.length;
+                if (position <= end) {
+                    downloadScheduler.streamAt(reader, position);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a piece", e);
+        } finally {
+            downloadScheduler.stopStreaming(reader);
+        }
+    }
+
+    private static OutputStream begin(HttpServletResponse response, String contentType, long start, long end,
+                                      long fileLength, boolean partial) throws IOException {
+        response.setStatus(partial ? HttpServletResponse.SC_PARTIAL_CONTENT : HttpServletResponse.SC_OK);
+        response.setContentType(contentType);
+        response.setContentLengthLong(end - start + 1);
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "inline");
+        if (partial) {
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + fileLength);
+        }
+        return response.getOutputStream();
+    }
+
+    private static String contentType(FileService fileService) {
+        Manifest manifest = fileService.getManifest();
+        String fileName = manifest != null ? manifest.getFileName() : fileService.getCurrentFilename();
+        if (fileName == null || fileName.isEmpty()) {
+            return MediaType.APPLICATION_OCTET_STREAM_VALUE;
+        }
+        return MediaTypeFactory.getMediaType(Paths.get(fileName).getFileName().toString())
+            .orElse(MediaType.APPLICATION_OCTET_STREAM)
+            .toString();
+    }
+}
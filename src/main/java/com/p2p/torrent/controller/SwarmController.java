@@ -0,0 +1,280 @@
+package com.p2p.torrent.controller;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.p2p.torrent.model.BitfieldCodec;
+import com.p2p.torrent.model.Manifest;
+import com.p2p.torrent.model.PieceRegion;
+import com.p2p.torrent.service.FileService;
+import com.p2p.torrent.service.Swarm;
+import com.p2p.torrent.service.TorrentRegistry;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Swarms beyond the default one, addressed by the content ID of their file. The default swarm keeps
+ * its endpoints under {@code /api/torrent} and {@code /api/files}.
+ */
+@RestController
+@RequestMapping("/api/torrents")
+@RequiredArgsConstructor
+@Slf4j
+public class SwarmController {
+    private final TorrentRegistry torrentRegistry;
+    private final PeerConnector peerConnector;
+    private final ObjectMapper objectMapper;
+
+    @GetMapping
+    public ResponseEntity<List<Map<String, Object>>> getSwarms() {
+        return ResponseEntity.ok(torrentRegistry.getSwarms().stream()
+            .map(this::summary)
+            .collect(Collectors.toList()));
+    }
+
+    /**
+     * Seeds a local file ({@code {"path": ...}}) or joins the swarm of a manifest
+     * ({@code {"manifest": {...}}}) to download it.
+     */
+    @PostMapping
+    public ResponseEntity<Map<String, Object>> addSwarm(@RequestBody Map<String, Object> request) {
+        try {
+            Swarm swarm;
+            if (request.get("path") != null) {
+                swarm = torrentRegistry.seed(Paths.get((String) request.get("path")));
+            } else if (request.get("manifest") != null) {
+                swarm = torrentRegistry.leech(objectMapper.convertValue(request.get("manifest"), Manifest.class));
+            } else {
+                return error(HttpStatus.BAD_REQUEST, "Either path or manifest is required");
+            }
+            return ResponseEntity.ok(summary(swarm));
+        } catch (IllegalStateException e) {
+            return error(HttpStatus.CONFLICT, e.getMessage());
+        } catch (IllegalArgumentException e) {
+            return error(HttpStatus.BAD_REQUEST, e.getMessage());
+        } catch (IOException e) {
+            log.error("Failed to add swarm", e);
+            return error(HttpStatus.INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+
+    @DeleteMapping("/{torrentId}")
+    public ResponseEntity<Map<String, Object>> removeSwarm(@PathVariable String torrentId) {
+        if (!torrentRegistry.remove(torrentId)) {
+            return error(HttpStatus.NOT_FOUND, "Unknown torrent: " + torrentId);
+        }
+        Map<String, Object> response = new HashMap<>();
+        response.put("torrentId", torrentId);
+        response.put("removed", true);
+        return ResponseEntity.ok(response);
+    }
+
+    @PostMapping("/{torrentId}/peer")
+    public ResponseEntity<Map<String, Object>> registerPeer(@PathVariable String torrentId,
+                                                            @RequestBody Map<String, Object> request) {
+        Swarm swarm = torrentRegistry.get(torrentId).orElse(null);
+        if (swarm == null) {
+            return error(HttpStatus.NOT_FOUND, "Unknown torrent: " + torrentId);
+        }
+        String peerId = (String) request.get("peerId");
+        String hostname = (String) request.get("hostname");
+        Integer port = (Integer) request.get("port");
+        Boolean hasFile = (Boolean) request.getOrDefault("hasFile", false);
+
+        swarm.getPeerService().registerPeer(peerId, hostname, port, hasFile);
+        log.info("Registered peer {} in swarm {}", peerId, torrentId);
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("torrentId", torrentId);
+        response.put("peerId", peerId);
+        response.put("registered", true);
+        return ResponseEntity.ok(response);
+    }
+
+    /**
+     * Sends a HANDSHAKE for this swarm. A peer the node knows from the default swarm does not have to be
+     * registered first.
+     */
+    @PostMapping("/{torrentId}/connect/{targetPeerId}")
+    public ResponseEntity<Map<String, Object>> connectToPeer(@PathVariable String torrentId,
+                                                             @PathVariable String targetPeerId) {
+        Swarm swarm = torrentRegistry.get(torrentId).orElse(null);
+        if (swarm == null) {
+            return error(HttpStatus.NOT_FOUND, "Unknown torrent: " + torrentId);
+        }
+        if (!torrentRegistry.adoptPeer(swarm, targetPeerId)) {
+            return error(HttpStatus.NOT_FOUND, "Unknown peer: " + targetPeerId);
+        }
+
+        // One connection per node, shared by every swarm
+        boolean binary = swarm.getPeerService().getPeer(targetPeerId)
+            .map(peer -> peerConnector.connect(swarm.getMessageService().getLocalPeerId(), peer))
+            .orElse(false);
+        swarm.getPeerService().getPeer(targetPeerId).ifPresent(peer -> {
+            // It unchokes us once the handshake shows we are interested
+            if (peer.isHasFile()) {
+                swarm.getPeerService().markPeerComplete(peer);
+            }
+        });
+        swarm.getMessageService().sendHandshake(targetPeerId);
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("status", "Connected");
+        response.put("torrentId", torrentId);
+        response.put("toPeer", targetPeerId);
+        response.put("binary", binary);
+        return ResponseEntity.ok(response);
+    }
+
+    /**
+     * @param format bitfield encoding: ascii (default), packed or rle, see {@link BitfieldCodec}
+     */
+    @GetMapping("/{torrentId}/status")
+    public ResponseEntity<Map<String, Object>> getStatus(
+            @PathVariable String torrentId,
+            @RequestParam(value = "format", defaultValue = "ascii") String format) {
+        BitfieldCodec.Format bitfieldFormat;
+        try {
+            bitfieldFormat = BitfieldCodec.Format.parse(format);
+        } catch (IllegalArgumentException e) {
+            return error(HttpStatus.BAD_REQUEST, "Unknown bitfield format: " + format);
+        }
+        Swarm swarm = torrentRegistry.get(torrentId).orElse(null);
+        if (swarm == null) {
+            return error(HttpStatus.NOT_FOUND, "Unknown torrent: " + torrentId);
+        }
+
+        FileService fileService = swarm.getFileService();
+        BitSet bitfield = fileService.getBitfield();
+        int totalPieces = fileService.getTotalPieces();
+
+        Map<String, Object> statusMap = summary(swarm);
+        statusMap.put("bitfield", BitfieldCodec.encode(bitfield, totalPieces, bitfieldFormat));
+        statusMap.put("bitfieldFormat", bitfieldFormat.wireName());
+        statusMap.put("endgame", swarm.getDownloadScheduler().isEndgameActive());
+        return ResponseEntity.ok(statusMap);
+    }
+
+    @GetMapping("/{torrentId}/manifest")
+    public ResponseEntity<Manifest> getManifest(@PathVariable String torrentId) {
+        Manifest manifest = torrentRegistry.get(torrentId).map(Swarm::getManifest).orElse(null);
+        return manifest != null ? ResponseEntity.ok(manifest) : ResponseEntity.notFound().build();
+    }
+
+    @GetMapping("/{torrentId}/piece/{pieceIndex}")
+    public void downloadPiece(@PathVariable String torrentId,
+                              @PathVariable int pieceIndex,
+                              HttpServletRequest request,
+                              HttpServletResponse response) throws IOException {
+        Swarm swarm = torrentRegistry.get(torrentId).orElse(null);
+        if (swarm == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        FileService fileService = swarm.getFileService();
+        PieceRegion region = fileService.getPieceRegion(fileService.getLocalPeerId(), pieceIndex);
+        if (region != null) {
+            FileRegionWriter.write(region, MediaType.APPLICATION_OCTET_STREAM_VALUE, request, response);
+            return;
+        }
+
+        // Received but not written yet
+        boolean received = pieceIndex >= 0 && fileService.getBitfield().get(pieceIndex);
+        byte[] piece = received ? fileService.getPiece(fileService.getLocalPeerId(), pieceIndex) : null;
+        if (piece == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        response.setContentLength(piece.length);
+        response.getOutputStream().write(piece);
+    }
+
+    @GetMapping("/{torrentId}/download")
+    public void downloadFile(@PathVariable String torrentId,
+                             HttpServletRequest request,
+                             HttpServletResponse response) throws IOException {
+        Swarm swarm = torrentRegistry.get(torrentId).orElse(null);
+        if (swarm == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        FileService fileService = swarm.getFileService();
+        Path file = fileService.getCompleteFile();
+        if (file == null && fileService.hasCompletedDownload()) {
+            fileService.mergeFile(fileService.getLocalPeerId());
+            file = fileService.getCompleteFile();
+        }
+        if (file == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + file.getFileName());
+        FileRegionWriter.writeFile(file, MediaType.APPLICATION_OCTET_STREAM_VALUE, request, response);
+    }
+
+    @GetMapping("/{torrentId}/stream")
+    public void streamFile(@PathVariable String torrentId,
+                           HttpServletRequest request,
+                           HttpServletResponse response) throws IOException {
+        Swarm swarm = torrentRegistry.get(torrentId).orElse(null);
+        if (swarm == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        PieceStreamWriter.write(swarm.getFileService(), swarm.getDownloadScheduler(), request, response);
+    }
+
+    private Map<String, Object> summary(Swarm swarm) {
+        FileService fileService = swarm.getFileService();
+        Manifest manifest = swarm.getManifest();
+        int totalPieces = fileService.getTotalPieces();
+        int downloadedPieces = fileService.getBitfield() != null ? fileService.getBitfield().cardinality() : 0;
+
+        Map<String, Object> summary = new HashMap<>();
+        summary.put("torrentId", swarm.isDefault() && manifest != null ? manifest.getContentId() : swarm.getTorrentId());
+        summary.put("default", swarm.isDefault());
+        summary.put("fileName", manifest != null ? manifest.getFileName() : fileService.getCurrentFilename());
+        summary.put("fileLength", manifest != null ? manifest.getFileLength() : 0L);
+        summary.put("seeding", swarm.isSeeding());
+        summary.put("totalPieces", totalPieces);
+        summary.put("downloadedPieces", downloadedPieces);
+        summary.put("progress", totalPieces > 0 ? (double) downloadedPieces / totalPieces * 100 : 0.0);
+        summary.put("isComplete", fileService.hasCompletedDownload());
+        summary.put("peers", swarm.getPeerService().getAllPeers().size());
+        return summary;
+    }
+
+    private static ResponseEntity<Map<String, Object>> error(HttpStatus status, String message) {
+        Map<String, Object> errorMap = new HashMap<>();
+        errorMap.put("error", message);
+        return ResponseEntity.status(status).body(errorMap);
+    }
+}
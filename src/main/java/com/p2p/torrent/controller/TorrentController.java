@@ -1,6 +1,7 @@
 package com.p2p.torrent.controller;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.HashMap;
@@ -8,21 +9,37 @@ import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import com.p2p.torrent.model.BitfieldCodec;
 import com.p2p.torrent.model.FilePiece;
 import com.p2p.torrent.model.Message;
 import com.p2p.torrent.model.Peer;
+import com.p2p.torrent.model.PieceRegion;
+import com.p2p.torrent.service.BandwidthLimiter;
+import com.p2p.torrent.service.DiskWriter;
+import com.p2p.torrent.service.DownloadScheduler;
 import com.p2p.torrent.service.FileService;
+import com.p2p.torrent.service.MessageDispatcher;
 import com.p2p.torrent.service.MessageService;
+import com.p2p.torrent.service.PeerMessenger;
 import com.p2p.torrent.service.PeerService;
+import com.p2p.torrent.service.PieceCache;
+import com.p2p.torrent.service.TransferMetrics;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -36,6 +53,14 @@ public class TorrentController {
     private final FileService fileService;
     private final MessageService messageService;
     private final SimpMessagingTemplate messagingTemplate;
+    private final PeerMessenger peerMessenger;
+    private final PieceCache pieceCache;
+    private final MessageDispatcher messageDispatcher;
+    private final DiskWriter diskWriter;
+    private final DownloadScheduler downloadScheduler;
+    private final BandwidthLimiter bandwidthLimiter;
+    private final TransferMetrics transferMetrics;
+    private final PeerConnector peerConnector;
     
     @PostMapping("/init/{peerId}")
     public ResponseEntity<Map<String, Object>> initializePeer(@PathVariable String peerId, @RequestBody Map<String, Object> request) {
@@ -60,11 +85,8 @@ public class TorrentController {
         if (hasFile) {
             BitSet bitfield = new BitSet(peerService.getFileService().getTotalPieces());
             bitfield.set(0, peerService.getFileService().getTotalPieces());
-            StringBuilder bitfieldStr = new StringBuilder();
-            for (int i = 0; i < peerService.getFileService().getTotalPieces(); i++) {
-                bitfieldStr.append('1');
-            }
-            response.put("bitfield", bitfieldStr.toString());
+            response.put("bitfield", BitfieldCodec.encode(bitfield, peerService.getFileService().getTotalPieces(),
+                                                          BitfieldCodec.Format.ASCII));
             response.put("totalPieces", peerService.getFileService().getTotalPieces());
         }
         
@@ -83,6 +105,12 @@ public class TorrentController {
         return ResponseEntity.ok("Peer registered successfully");
     }
     
+    @DeleteMapping("/peer/{peerId}")
+    public ResponseEntity<String> removePeer(@PathVariable String peerId) {
+        messageService.removePeer(peerId);
+        return ResponseEntity.ok("Peer removed successfully");
+    }
+    
     @GetMapping("/peers")
     public ResponseEntity<List<Map<String, Object>>> getAllPeers() {
         List<Peer> peers = peerService.getAllPeers();
@@ -94,8 +122,12 @@ public class TorrentController {
                 peerMap.put("hostname", peer.getHostname());
                 peerMap.put("port", peer.getPort());
                 peerMap.put("hasFile", peer.isHasFile());
-                peerMap.put("interested", peer.isInterested());
-                peerMap.put("choked", peer.isChoked());
+                peerMap.put("amChoking", peer.isAmChoking());
+                peerMap.put("amInterested", peer.isAmInterested());
+                peerMap.put("peerChoking", peer.isPeerChoking());
+                peerMap.put("peerInterested", peer.isPeerInterested());
+                peerMap.put("downloadRate", peerService.getDownloadRate(peer.getPeerId()));
+                peerMap.put("uploadRate", peerService.getUploadRate(peer.getPeerId()));
                 return peerMap;
             })
             .collect(Collectors.toList());
@@ -107,27 +139,26 @@ public class TorrentController {
     public ResponseEntity<Map<String, Object>> connectToPeer(@PathVariable String targetPeerId) {
         log.info("Initiating connection from local peer to peer {}", targetPeerId);
         
+        // Another node is reached on its own binary endpoint, before anything is sent to it
+        boolean binary = peerService.getPeer(targetPeerId)
+            .map(peer -> peerConnector.connect(messageService.getLocalPeerId(), peer))
+            .orElse(false);
+        
         // First make sure the target peer has the correct bitfield if it's a seeder
         peerService.getPeer(targetPeerId).ifPresent(peer -> {
             if (peer.isHasFile()) {
                 log.info("Target peer {} is a seeder, ensuring full bitfield", targetPeerId);
-                peer.getBitfield().set(0, fileService.getTotalPieces());
+                peerService.markPeerComplete(peer);
                 
-                // Debug peer's bitfield after update
-                StringBuilder sb = new StringBuilder();
-                for (int i = 0; i < fileService.getTotalPieces(); i++) {
-                    sb.append(peer.getBitfield().get(i) ? '1' : '0');
-                }
-                log.info("Updated seeder {} bitfield: {}", targetPeerId, sb.toString());
                 log.info("Seeder {} has {} pieces after bitfield update", 
                          targetPeerId, peer.getBitfield().cardinality());
                 
                 // Also ensure the peer is unchoked
-                peer.setChoked(false);
+                peer.setAmChoking(false);
                 
                 // Send an UNCHOKE message to the peer
                 Message unchokeMsg = new Message(Message.MessageType.UNCHOKE, messageService.getLocalPeerId(), null, null, null);
-                messagingTemplate.convertAndSendToUser(targetPeerId, "/queue/messages", unchokeMsg);
+                peerMessenger.send(targetPeerId, unchokeMsg);
                 log.info("Sent UNCHOKE to seeder {}", targetPeerId);
             }
         });
@@ -166,7 +197,7 @@ public class TorrentController {
             log.error("Error checking piece files for peer {}", targetPeerId, e);
         }
         
-        // Send handshake
+        // Send handshake, the download scheduler starts requesting once the peer unchokes us
         messageService.sendHandshake(targetPeerId);
         
         // Create detailed response
@@ -174,32 +205,16 @@ public class TorrentController {
         response.put("status", "Connected");
         response.put("fromPeer", messageService.getLocalPeerId());
         response.put("toPeer", targetPeerId);
+        response.put("binary", binary);
         
         // Add bitfield info for debugging
         peerService.getPeer(targetPeerId).ifPresent(peer -> {
             BitSet peerBitfield = peer.getBitfield();
-            StringBuilder sb = new StringBuilder();
-            for (int i = 0; i < fileService.getTotalPieces(); i++) {
-                sb.append(peerBitfield.get(i) ? '1' : '0');
-            }
-            response.put("targetPeerBitfield", sb.toString());
+            response.put("targetPeerBitfield", BitfieldCodec.encode(peerBitfield, fileService.getTotalPieces(),
+                                                                    BitfieldCodec.Format.ASCII));
             response.put("targetPeerBitfieldCount", peerBitfield.cardinality());
         });
         
-        // Start requesting pieces automatically
-        List<Integer> missingPieces = fileService.getMissingPieces();
-        if (!missingPieces.isEmpty()) {
-            log.info("Automatically starting piece requests for {} missing pieces", missingPieces.size());
-            
-            // Request multiple pieces in parallel
-            int piecesToRequest = Math.min(10, missingPieces.size());
-            for (int i = 0; i < piecesToRequest; i++) {
-                int pieceIndex = missingPieces.get(i);
-                log.info("Auto-requesting piece {} from peer {}", pieceIndex, targetPeerId);
-                messageService.requestSpecificPiece(targetPeerId, pieceIndex);
-            }
-        }
-        
         return ResponseEntity.ok(response);
     }
     
@@ -315,29 +330,105 @@ public class TorrentController {
         }
     }
     
+    /**
+     * @param format bitfield encoding: ascii (default), packed or rle, see {@link BitfieldCodec}
+     */
     @GetMapping("/status")
-    public ResponseEntity<Map<String, Object>> getStatus() {
+    public ResponseEntity<Map<String, Object>> getStatus(
+            @RequestParam(value = "format", defaultValue = "ascii") String format) {
+        BitfieldCodec.Format bitfieldFormat;
+        try {
+            bitfieldFormat = BitfieldCodec.Format.parse(format);
+        } catch (IllegalArgumentException e) {
+            Map<String, Object> errorMap = new HashMap<>();
+            errorMap.put("error", "Unknown bitfield format: " + format);
+            return ResponseEntity.badRequest().body(errorMap);
+        }
+        
         boolean isComplete = fileService.hasCompletedDownload();
         int totalPieces = fileService.getTotalPieces();
-        int downloadedPieces = totalPieces - fileService.getMissingPieces().size();
         
         // Get bitfield for current status display
         BitSet bitfield = fileService.getBitfield();
-        StringBuilder bitfieldStr = new StringBuilder();
-        for (int i = 0; i < totalPieces; i++) {
-            bitfieldStr.append(bitfield.get(i) ? '1' : '0');
-        }
+        int downloadedPieces = bitfield.cardinality();
         
         Map<String, Object> statusMap = new HashMap<>();
         statusMap.put("isComplete", isComplete);
         statusMap.put("totalPieces", totalPieces);
         statusMap.put("downloadedPieces", downloadedPieces);
         statusMap.put("progress", (double) downloadedPieces / totalPieces * 100);
-        statusMap.put("bitfield", bitfieldStr.toString());
+        statusMap.put("bitfield", BitfieldCodec.encode(bitfield, totalPieces, bitfieldFormat));
+        statusMap.put("bitfieldFormat", bitfieldFormat.wireName());
         
         return ResponseEntity.ok(statusMap);
     }
     
+    @GetMapping("/cache")
+    public ResponseEntity<Map<String, Object>> getCacheStats() {
+        return ResponseEntity.ok(pieceCache.getStats());
+    }
+    
+    @GetMapping("/dispatcher")
+    public ResponseEntity<Map<String, Object>> getDispatcherStats() {
+        return ResponseEntity.ok(messageDispatcher.getStats());
+    }
+    
+    @GetMapping("/disk")
+    public ResponseEntity<Map<String, Object>> getDiskStats() {
+        return ResponseEntity.ok(diskWriter.getStats());
+    }
+    
+    @GetMapping("/messenger")
+    public ResponseEntity<Map<String, Object>> getMessengerStats() {
+        return ResponseEntity.ok(peerMessenger.getStats());
+    }
+    
+    /**
+     * Transfer counters and latency histograms in the Prometheus text format, for scraping.
+     */
+    @GetMapping(value = "/metrics", produces = TransferMetrics.CONTENT_TYPE)
+    public String getMetrics() {
+        return transferMetrics.scrape();
+    }
+    
+    @GetMapping("/bandwidth")
+    public ResponseEntity<Map<String, Object>> getBandwidth() {
+        return ResponseEntity.ok(bandwidthLimiter.getStats());
+    }
+    
+    /**
+     * Changes the node-wide limits, in bytes per second (0 = unlimited). Limits left out of the
+     * request body stay as they are.
+     */
+    @PutMapping("/bandwidth")
+    public ResponseEntity<Map<String, Object>> setBandwidth(@RequestBody Map<String, Object> request) {
+        try {
+            bandwidthLimiter.setLimits(rate(request, "uploadLimit"), rate(request, "downloadLimit"),
+                                       rate(request, "peerUploadLimit"), rate(request, "peerDownloadLimit"));
+        } catch (IllegalArgumentException e) {
+            Map<String, Object> errorMap = new HashMap<>();
+            errorMap.put("error", e.getMessage());
+            return ResponseEntity.badRequest().body(errorMap);
+        }
+        return ResponseEntity.ok(bandwidthLimiter.getStats());
+    }
+    
+    /**
+     * Gives one peer limits of its own; a limit left out goes back to the per-peer default.
+     */
+    @PutMapping("/bandwidth/peer/{peerId}")
+    public ResponseEntity<Map<String, Object>> setPeerBandwidth(@PathVariable String peerId,
+                                                                @RequestBody Map<String, Object> request) {
+        try {
+            bandwidthLimiter.setPeerLimits(peerId, rate(request, "uploadLimit"), rate(request, "downloadLimit"));
+        } catch (IllegalArgumentException e) {
+            Map<String, Object> errorMap = new HashMap<>();
+            errorMap.put("error", e.getMessage());
+            return ResponseEntity.badRequest().body(errorMap);
+        }
+        return ResponseEntity.ok(bandwidthLimiter.getStats());
+    }
+    
     @PostMapping("/request-next-piece/{targetPeerId}")
     public ResponseEntity<Map<String, Object>> requestNextPiece(@PathVariable String targetPeerId) {
         log.info("Manually requesting next piece from peer {}", targetPeerId);
@@ -348,16 +439,16 @@ public class TorrentController {
         peerService.getPeer(targetPeerId).ifPresent(peer -> {
             if (peer.isHasFile()) {
                 log.info("Target peer {} is a seeder, ensuring full bitfield", targetPeerId);
-                peer.getBitfield().set(0, fileService.getTotalPieces());
+                peerService.markPeerComplete(peer);
                 
                 // Ensure peer is unchoked
-                if (peer.isChoked()) {
+                if (peer.isAmChoking()) {
                     log.info("Manually unchoking peer {}", targetPeerId);
-                    peer.setChoked(false);
+                    peer.setAmChoking(false);
                     
                     // Send unchoke message
                     Message unchokeMsg = new Message(Message.MessageType.UNCHOKE, messageService.getLocalPeerId(), null, null, null);
-                    messagingTemplate.convertAndSendToUser(targetPeerId, "/queue/messages", unchokeMsg);
+                    peerMessenger.send(targetPeerId, unchokeMsg);
                 }
             }
         });
@@ -368,13 +459,13 @@ public class TorrentController {
         
         // Make sure we're interested in the peer
         peerService.getPeer(targetPeerId).ifPresent(peer -> {
-            if (!peer.isInterested()) {
+            if (!peer.isAmInterested()) {
                 log.info("Setting interested status for peer {}", targetPeerId);
-                peer.setInterested(true);
+                peer.setAmInterested(true);
                 
                 // Send interested message
                 Message interestedMsg = new Message(Message.MessageType.INTERESTED, messageService.getLocalPeerId(), null, null, null);
-                messagingTemplate.convertAndSendToUser(targetPeerId, "/queue/messages", interestedMsg);
+                peerMessenger.send(targetPeerId, interestedMsg);
             }
             
             // Trigger a request for the next piece
@@ -383,7 +474,7 @@ public class TorrentController {
                 log.info("Manually requesting piece {} from peer {}", pieceToRequest, targetPeerId);
                 
                 // Use the new method to send the piece request
-                messageService.requestSpecificPiece(targetPeerId, pieceToRequest);
+                downloadScheduler.requestPiece(targetPeerId, pieceToRequest);
                 
                 response.put("requestedPiece", pieceToRequest);
                 response.put("status", "Piece requested");
@@ -392,7 +483,7 @@ public class TorrentController {
                 if (missingPieces.size() > 1) {
                     int nextPiece = missingPieces.get(1);
                     log.info("Also requesting next piece {} from peer {}", nextPiece, targetPeerId);
-                    messageService.requestSpecificPiece(targetPeerId, nextPiece);
+                    downloadScheduler.requestPiece(targetPeerId, nextPiece);
                     response.put("nextRequestedPiece", nextPiece);
                 }
             } else {
@@ -401,11 +492,8 @@ public class TorrentController {
             
             // Get peer's bitfield for debugging
             BitSet peerBitfield = peer.getBitfield();
-            StringBuilder sb = new StringBuilder();
-            for (int i = 0; i < fileService.getTotalPieces(); i++) {
-                sb.append(peerBitfield.get(i) ? '1' : '0');
-            }
-            response.put("peerBitfield", sb.toString());
+            response.put("peerBitfield", BitfieldCodec.encode(peerBitfield, fileService.getTotalPieces(),
+                                                              BitfieldCodec.Format.ASCII));
             response.put("peerBitfieldCount", peerBitfield.cardinality());
         });
         
@@ -464,36 +552,31 @@ public class TorrentController {
      * Direct HTTP-based fallback for piece transfer (no WebSocket)
      */
     @GetMapping("/direct-get-piece/{sourcePeerId}/{pieceIndex}")
-    public ResponseEntity<byte[]> getDirectPiece(
+    public void getDirectPiece(
             @PathVariable String sourcePeerId,
-            @PathVariable int pieceIndex) {
+            @PathVariable int pieceIndex,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
         
         try {
             log.info("DIRECT PIECE: Request for piece {} from peer {}", pieceIndex, sourcePeerId);
             
-            // Force the source peer ID to be used for file access
-            String originalPeerId = messageService.getLocalPeerId();
-            
-            // Read the piece directly from the source peer's directory
-            String piecePath = "peer_" + sourcePeerId + "/piece_" + pieceIndex;
-            File pieceFile = new File(piecePath);
+            // Locate the piece in the source peer's storage and stream it from there
+            PieceRegion region = fileService.getPieceRegion(sourcePeerId, pieceIndex);
             
-            if (pieceFile.exists() && pieceFile.length() > 0) {
-                byte[] pieceData = java.nio.file.Files.readAllBytes(pieceFile.toPath());
-                log.info("DIRECT PIECE: Successfully read piece {} from peer {} (size: {} bytes)",
-                        pieceIndex, sourcePeerId, pieceData.length);
-                
-                return ResponseEntity.ok()
-                        .header("Content-Type", "application/octet-stream")
-                        .header("Content-Length", String.valueOf(pieceData.length))
-                        .body(pieceData);
+            if (region != null) {
+                log.info("DIRECT PIECE: Serving piece {} from peer {} ({} bytes at {} in {})",
+                        pieceIndex, sourcePeerId, region.getLength(), region.getPosition(), region.getFile());
+                FileRegionWriter.write(region, MediaType.APPLICATION_OCTET_STREAM_VALUE, request, response);
             } else {
                 log.warn("DIRECT PIECE: Piece {} not found for peer {}", pieceIndex, sourcePeerId);
-                return ResponseEntity.notFound().build();
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
             }
-        } catch (Exception e) {
+        } catch (IOException e) {
             log.error("DIRECT PIECE ERROR: Failed to get piece {}: {}", pieceIndex, e.getMessage());
-            return ResponseEntity.status(500).build();
+            if (!response.isCommitted()) {
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
         }
     }
     
@@ -543,4 +626,15 @@ public class TorrentController {
         
         return ResponseEntity.ok(response);
     }
-}
\ No newline at end of file
+    
+    private static Long rate(Map<String, Object> request, String key) {
+        Object value = request.get(key);
+        if (value == null) {
+            return null;
+        }
+        if (!(value instanceof Number)) {
+            throw new IllegalArgumentException(key + " must be a number of bytes per second");
+        }
+        return ((Number) value).longValue();
+    }
+}
@@ -6,7 +6,8 @@ import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
 import org.springframework.stereotype.Controller;
 
 import com.p2p.torrent.model.Message;
-import com.p2p.torrent.service.MessageService;
+import com.p2p.torrent.service.MessageDispatcher;
+import com.p2p.torrent.service.TorrentRegistry;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -15,7 +16,8 @@ import lombok.extern.slf4j.Slf4j;
 @RequiredArgsConstructor
 @Slf4j
 public class WebSocketController {
-    private final MessageService messageService;
+    private final TorrentRegistry torrentRegistry;
+    private final MessageDispatcher messageDispatcher;
     
     @MessageMapping("/message")
     public void processMessage(@Payload Message message, SimpMessageHeaderAccessor headerAccessor) {
@@ -49,18 +51,11 @@ public class WebSocketController {
                         message.getType(), message.getPeerId());
             }
             
-            // Process the message asynchronously to not block WebSocket thread
-            Thread processingThread = new Thread(() -> {
-                try {
-                    messageService.handleMessage(message);
-                } catch (Exception e) {
-                    log.error("MESSAGE HANDLING ERROR: {}", e.getMessage(), e);
-                }
-            });
-            processingThread.setName("MsgProcessor-" + message.getType() + "-" + 
-                                    (message.getPieceIndex() != null ? message.getPieceIndex() : "null"));
-            processingThread.setDaemon(true);
-            processingThread.start();
+            // Handled off the inbound channel thread, in order with everything else from this peer
+            Runnable handler = () -> torrentRegistry.handleMessage(message);
+            if (!messageDispatcher.submit(message.getPeerId(), message.getType(), handler)) {
+                torrentRegistry.handleRejected(message);
+            }
             
         } catch (Exception e) {
             log.error("WEBSOCKET CONTROLLER ERROR: {}", e.getMessage(), e);
@@ -0,0 +1,180 @@
+package com.p2p.torrent.model;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Locale;
+
+/**
+ * String encodings of a bitfield, for BITFIELD messages and the status endpoints.
+ *
+ * <ul>
+ *   <li>{@code ascii}: one '0'/'1' character per piece, what every peer understands</li>
+ *   <li>{@code packed}: one bit per piece, most significant bit first, base64</li>
+ *   <li>{@code rle}: alternating run lengths starting with a (possibly empty) run of missing
+ *       pieces, each an unsigned LEB128 varint, base64. A complete or empty bitfield is a few bytes
+ *       no matter how many pieces there are.</li>
+ * </ul>
+ */
+public final class BitfieldCodec {
+    public enum Format {
+        ASCII,
+        PACKED,
+        RLE;
+
+        public String wireName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+
+        /**
+         * @throws IllegalArgumentException for an unknown format name
+         */
+        public static Format parse(String name) {
+            return name == null ? ASCII : valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private BitfieldCodec() {
+    }
+
+    public static String encode(BitSet bits, int length, Format format) {
+        switch (format) {
+            case PACKED:
+                return Base64.getEncoder().encodeToString(pack(bits, length));
+            case RLE:
+                return Base64.getEncoder().encodeToString(runLengths(bits, length));
+            default:
+                char[] chars = new char[length];
+                for (int i = 0; i < length; i++) {
+                    chars[i] = bits.get(i) ? '1' : '0';
+                }
+                return new String(chars);
+        }
+    }
+
+    /**
+     * Decodes the first {@code length} bits; anything beyond is ignored and anything missing is
+     * treated as not set.
+     *
+     * @throws IllegalArgumentException if the string is not valid for the format
+     */
+    public static BitSet decode(String encoded, int length, Format format) {
+        BitSet bits = new BitSet(length);
+        if (encoded == null) {
+            return bits;
+        }
+        switch (format) {
+            case PACKED:
+                byte[] packed = Base64.getDecoder().decode(encoded);
+                for (int i = 0; i < length && (i >> 3) < packed.length; i++) {
+                    if ((packed[i >> 3] & (0x80 >>> (i & 7))) != 0) {
+                        bits.set(i);
+                    }
+                }
+                return bits;
+            case RLE:
+                byte[] runs = Base64.getDecoder().decode(encoded);
+                int position = 0;
+                int index = 0;
+                boolean set = false;
+                while (position < runs.length && index < length) {
+                    long run = 0;
+                    int shift = 0;
+                    byte b;
+                    do {
+                        if (position >= runs.length || shift > 28) {
+                            throw new IllegalArgumentException("Truncated run length in RLE bitfield");
+                        }
+                        b = runs[position++];
+                        run |= (long) (b & 0x7F) << shift;
+                        shift += 7;
+                    } while ((b & 0x80) != 0);
+                    int end = (int) Math.min(length, index + run);
+                    if (set) {
+                        bits.set(index, end);
+                    }
+                    index = end;
+                    set = !set;
+                }
+                return bits;
+            default:
+                int limit = Math.min(encoded.length(), length);
+                for (int i = 0; i < limit; i++) {
+                    if (encoded.charAt(i) == '1') {
+                        bits.set(i);
+                    }
+                }
+                return bits;
+        }
+    }
+
+    /**
+     * Picks the shortest encoding of the bitfield among those the receiver accepts. Only counts
+     * runs, nothing is encoded.
+     */
+    public static Format choose(BitSet bits, int length, Collection<Format> accepted) {
+        Format best = Format.ASCII;
+        long bestSize = length;
+        if (accepted.contains(Format.PACKED) && base64Length((length + 7) / 8) < bestSize) {
+            best = Format.PACKED;
+            bestSize = base64Length((length + 7) / 8);
+        }
+        if (accepted.contains(Format.RLE)) {
+            long rleSize = 0;
+            int index = 0;
+            boolean set = false;
+            while (index < length) {
+                int end = set ? bits.nextClearBit(index) : bits.nextSetBit(index);
+                end = end < 0 ? length : Math.min(end, length);
+                rleSize += varintLength(end - index);
+                index = end;
+                set = !set;
+            }
+            if (base64Length(rleSize) < bestSize) {
+                best = Format.RLE;
+            }
+        }
+        return best;
+    }
+
+    private static byte[] pack(BitSet bits, int length) {
+        byte[] packed = new byte[(length + 7) / 8];
+        for (int i = bits.nextSetBit(0); i >= 0 && i < length; i = bits.nextSetBit(i + 1)) {
+            packed[i >> 3] |= (byte) (0x80 >>> (i & 7));
+        }
+        return packed;
+    }
+
+    private static byte[] runLengths(BitSet bits, int length) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int index = 0;
+        boolean set = false;
+        while (index < length) {
+            int end = set ? bits.nextClearBit(index) : bits.nextSetBit(index);
+            end = end < 0 ? length : Math.min(end, length);
+            int run = end - index;
+            while ((run & ~0x7F) != 0) {
+                out.write((run & 0x7F) | 0x80);
+                run >>>= 7;
+            }
+            out.write(run);
+            index = end;
+            set = !set;
+        }
+        return out.toByteArray();
+    }
+
+    private static int varintLength(int value) {
+        int bytes = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            bytes++;
+        }
+        return bytes;
+    }
+
+    private static long base64Length(long bytes) {
+        return (bytes + 2) / 3 * 4;
+    }
+}
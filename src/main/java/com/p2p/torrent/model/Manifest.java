@@ -0,0 +1,27 @@
+package com.p2p.torrent.model;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Metainfo of a shared file: its layout and the SHA-256 of every piece. The content ID is derived
+ * from those, so two peers with the same ID agree on every piece boundary and byte.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class Manifest {
+    private String contentId;
+    private String fileName;
+    private long fileLength;
+    private int pieceSize;
+    private int pieceCount;
+    private List<String> pieceHashes;
+
+    public int pieceLength(int pieceIndex) {
+        return (int) Math.max(0, Math.min(pieceSize, fileLength - (long) pieceIndex * pieceSize));
+    }
+}
@@ -1,5 +1,7 @@
 package com.p2p.torrent.model;
 
+import java.util.List;
+
 import com.fasterxml.jackson.annotation.JsonInclude;
 
 import lombok.AllArgsConstructor;
@@ -20,7 +22,10 @@ public class Message {
         BITFIELD,
         REQUEST,
         PIECE,
-        HANDSHAKE
+        HANDSHAKE,
+        CANCEL,
+        // Several HAVEs at once, the pieces are set in bitfield (JSON only)
+        HAVE_BATCH
     }
     
     private MessageType type;
@@ -28,4 +33,39 @@ public class Message {
     private Integer pieceIndex;
     private byte[] data;
     private String bitfield;
-}
\ No newline at end of file
+    
+    // Block addressing within a piece; null means the whole piece
+    private Integer offset;
+    private Integer length;
+    
+    // Sent with HANDSHAKE and BITFIELD so peers agree on the file layout (JSON only)
+    private Manifest manifest;
+    
+    // Encoding of bitfield (null means ascii), and the encodings the sender can read, see BitfieldCodec
+    private String bitfieldFormat;
+    private List<String> bitfieldFormats;
+    
+    // Swarm the message belongs to (its content ID); null means the node's default swarm
+    private String torrentId;
+    
+    public Message(MessageType type, String peerId, Integer pieceIndex, byte[] data, String bitfield) {
+        this(type, peerId, pieceIndex, data, bitfield, null, null);
+    }
+    
+    public Message(MessageType type, String peerId, Integer pieceIndex, byte[] data, String bitfield,
+                   Integer offset, Integer length) {
+        this(type, peerId, pieceIndex, data, bitfield, offset, length, null, null, null, null);
+    }
+    
+    public static Message blockRequest(String peerId, int pieceIndex, int offset, int length) {
+        return new Message(MessageType.REQUEST, peerId, pieceIndex, null, null, offset, length);
+    }
+    
+    public static Message blockCancel(String peerId, int pieceIndex, int offset, int length) {
+        return new Message(MessageType.CANCEL, peerId, pieceIndex, null, null, offset, length);
+    }
+    
+    public static Message block(String peerId, int pieceIndex, int offset, byte[] data) {
+        return new Message(MessageType.PIECE, peerId, pieceIndex, data, null, offset, data.length);
+    }
+}
@@ -0,0 +1,150 @@
+package com.p2p.torrent.model;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary wire format for the high-volume message types (PIECE, REQUEST, HAVE, CANCEL).
+ *
+ * Frame layout (big endian):
+ * <pre>
+ *   version:1 | type:1 | peerIdLength:2 | pieceIndex:4 | offset:4 | length:4 | peerId | payload
+ * </pre>
+ * An offset of -1 addresses the whole piece. For PIECE frames {@code length} is the payload size,
+ * for REQUEST and CANCEL frames it is the number of bytes asked for and no payload follows. The payload is
+ * sent raw, so a piece no longer pays the base64 + JSON cost of {@link Message#getData()}.
+ *
+ * A message for a swarm other than the default one goes out as version 3, which has
+ * {@code torrentIdLength:1 | torrentId} between the peerId and the payload. Default-swarm frames stay
+ * version 2, so peers that only know one swarm keep understanding them.
+ */
+public final class MessageCodec {
+    public static final byte VERSION = 2;
+    public static final byte SWARM_VERSION = 3;
+    public static final int HEADER_SIZE = 16;
+
+    private static final Message.MessageType[] TYPES = Message.MessageType.values();
+
+    private MessageCodec() {
+    }
+
+    public static boolean isBinary(Message.MessageType type) {
+        return type == Message.MessageType.PIECE
+            || type == Message.MessageType.REQUEST
+            || type == Message.MessageType.HAVE
+            || type == Message.MessageType.CANCEL;
+    }
+
+    /**
+     * Encodes the header (including the sender id) of a frame. The payload is written
+     * separately so large pieces can be sent without being copied into the frame.
+     */
+    public static ByteBuffer encodeHeader(Message message) {
+        byte[] peerId = message.getPeerId() != null
+            ? message.getPeerId().getBytes(StandardCharsets.UTF_8) : new byte[0];
+        int payloadLength = message.getData() != null ? message.getData().length : 0;
+        int length = message.getType() == Message.MessageType.PIECE || message.getLength() == null
+            ? payloadLength : message.getLength();
+        byte[] torrentId = message.getTorrentId() != null
+            ? message.getTorrentId().getBytes(StandardCharsets.UTF_8) : null;
+        if (torrentId != null && torrentId.length > 0xFF) {
+            throw new IllegalArgumentException("Torrent id too long: " + torrentId.length + " bytes");
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + peerId.length + (torrentId != null ? 1 + torrentId.length : 0));
+        header.put(torrentId != null ? SWARM_VERSION : VERSION);
+        header.put((byte) message.getType().ordinal());
+        header.putShort((short) peerId.length);
+        header.putInt(message.getPieceIndex() != null ? message.getPieceIndex() : -1);
+        header.putInt(message.getOffset() != null ? message.getOffset() : -1);
+        header.putInt(length);
+        header.put(peerId);
+        if (torrentId != null) {
+            header.put((byte) torrentId.length);
+            header.put(torrentId);
+        }
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Encodes a complete frame into a single buffer.
+     */
+    public static ByteBuffer encode(Message message) {
+        ByteBuffer header = encodeHeader(message);
+        byte[] data = message.getData();
+        ByteBuffer frame = ByteBuffer.allocate(header.remaining() + (data != null ? data.length : 0));
+        frame.put(header);
+        if (data != null) {
+            frame.put(data);
+        }
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * @param maxBlockLength largest payload a PIECE frame for a block (offset &gt;= 0) may carry
+     * @param maxPieceLength largest payload a PIECE frame for a whole piece may carry
+     * @throws IllegalArgumentException if the frame is malformed, or its length is negative or, for a
+     *         PIECE, larger than allowed
+     */
+    public static Message decode(ByteBuffer frame, int maxBlockLength, int maxPieceLength) {
+        if (frame.remaining() < HEADER_SIZE) {
+            throw new IllegalArgumentException("Frame too short: " + frame.remaining() + " bytes");
+        }
+
+        byte version = frame.get();
+        if (version != VERSION && version != SWARM_VERSION) {
+            throw new IllegalArgumentException("Unsupported frame version " + version);
+        }
+
+        int typeOrdinal = frame.get() & 0xFF;
+        if (typeOrdinal >= TYPES.length) {
+            throw new IllegalArgumentException("Unknown message type " + typeOrdinal);
+        }
+
+        int peerIdLength = frame.getShort() & 0xFFFF;
+        int pieceIndex = frame.getInt();
+        int offset = frame.getInt();
+        int length = frame.getInt();
+        if (length < 0) {
+            throw new IllegalArgumentException("Negative length " + length);
+        }
+        boolean piece = typeOrdinal == Message.MessageType.PIECE.ordinal();
+        int maxLength = offset >= 0 ? maxBlockLength : maxPieceLength;
+        if (piece && length > maxLength) {
+            throw new IllegalArgumentException("PIECE of " + length + " bytes exceeds the limit of " + maxLength);
+        }
+        int payloadLength = piece ? length : 0;
+        if (frame.remaining() < peerIdLength + payloadLength) {
+            throw new IllegalArgumentException("Truncated frame: expected " + (peerIdLength + payloadLength)
+                + " bytes, got " + frame.remaining());
+        }
+
+        byte[] peerId = new byte[peerIdLength];
+        frame.get(peerId);
+
+        String torrentId = null;
+        if (version == SWARM_VERSION) {
+            int torrentIdLength = frame.hasRemaining() ? frame.get() & 0xFF : -1;
+            if (torrentIdLength < 0 || frame.remaining() < torrentIdLength + payloadLength) {
+                throw new IllegalArgumentException("Truncated frame: torrent id cut off");
+            }
+            byte[] id = new byte[torrentIdLength];
+            frame.get(id);
+            torrentId = new String(id, StandardCharsets.UTF_8);
+        }
+
+        byte[] data = null;
+        if (payloadLength > 0 || (piece && offset >= 0)) {
+            data = new byte[payloadLength];
+            frame.get(data);
+        }
+
+        Message message = new Message(TYPES[typeOrdinal], new String(peerId, StandardCharsets.UTF_8),
+                                      pieceIndex >= 0 ? pieceIndex : null, data, null,
+                                      offset >= 0 ? offset : null, offset >= 0 ? length : null);
+        message.setTorrentId(torrentId);
+        return message;
+    }
+}
@@ -0,0 +1,163 @@
+package com.p2p.torrent.model;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A piece that is being assembled from fixed-size blocks, possibly coming from several peers.
+ * Tracks which blocks have been requested and which have arrived.
+ */
+public class PartialPiece {
+    private final int pieceIndex;
+    private final int blockSize;
+    private int length;
+    // False only for the last piece while the file length is unknown
+    private final boolean lengthKnown;
+    private final byte[] buffer;
+    private final BitSet requestedBlocks = new BitSet();
+    private final BitSet receivedBlocks = new BitSet();
+
+    public PartialPiece(int pieceIndex, int length, int blockSize) {
+        this(pieceIndex, length, blockSize, true);
+    }
+
+    /**
+     * @param lengthKnown false if {@code length} is only an upper bound, i.e. for the last piece of a
+     *                    file whose length is not known yet
+     */
+    public PartialPiece(int pieceIndex, int length, int blockSize, boolean lengthKnown) {
+        this.pieceIndex = pieceIndex;
+        this.length = length;
+        this.lengthKnown = lengthKnown;
+        this.blockSize = blockSize;
+        this.buffer = new byte[length];
+    }
+
+    public int getPieceIndex() {
+        return pieceIndex;
+    }
+
+    public synchronized int getLength() {
+        return length;
+    }
+
+    public synchronized int getBlockCount() {
+        return (length + blockSize - 1) / blockSize;
+    }
+
+    public synchronized int blockOffset(int block) {
+        return block * blockSize;
+    }
+
+    public synchronized int blockLength(int block) {
+        return Math.min(blockSize, length - block * blockSize);
+    }
+
+    /**
+     * Claims up to {@code max} blocks that are neither requested nor received yet.
+     */
+    public synchronized List<Integer> claimBlocks(int max) {
+        List<Integer> claimed = new ArrayList<>();
+        int blockCount = getBlockCount();
+        for (int block = requestedBlocks.nextClearBit(0);
+             block < blockCount && claimed.size() < max;
+             block = requestedBlocks.nextClearBit(block + 1)) {
+            requestedBlocks.set(block);
+            claimed.add(block);
+        }
+        return claimed;
+    }
+
+    /**
+     * Claims the block at this offset unless it is already requested or received.
+     *
+     * @return true if it was claimed
+     */
+    public synchronized boolean claimBlock(int offset) {
+        int block = offset / blockSize;
+        if (block >= getBlockCount() || requestedBlocks.get(block)) {
+            return false;
+        }
+        requestedBlocks.set(block);
+        return true;
+    }
+
+    /**
+     * Makes an outstanding block requestable again, e.g. after the peer choked us.
+     */
+    public synchronized void releaseBlock(int offset) {
+        int block = offset / blockSize;
+        if (!receivedBlocks.get(block)) {
+            requestedBlocks.clear(block);
+        }
+    }
+
+    /**
+     * @return the blocks that have not arrived yet, whether or not they were requested
+     */
+    public synchronized List<Integer> missingBlocks() {
+        List<Integer> missing = new ArrayList<>();
+        int blockCount = getBlockCount();
+        for (int block = receivedBlocks.nextClearBit(0); block < blockCount;
+             block = receivedBlocks.nextClearBit(block + 1)) {
+            missing.add(block);
+        }
+        return missing;
+    }
+
+    public synchronized boolean hasUnrequestedBlocks() {
+        return requestedBlocks.nextClearBit(0) < getBlockCount();
+    }
+
+    /**
+     * Stores one block. While the length is not known, a block shorter than expected (or empty)
+     * marks the end of the piece, which is how the real length of the last piece is learned;
+     * otherwise a short block is rejected.
+     *
+     * @return true if the piece is now complete
+     */
+    public synchronized boolean write(int offset, byte[] data) {
+        if (offset < 0 || offset % blockSize != 0 || offset > length) {
+            throw new IllegalArgumentException("Invalid block offset " + offset + " for piece " + pieceIndex);
+        }
+
+        int block = offset / blockSize;
+        int expected = Math.min(blockSize, length - offset);
+        if (lengthKnown && data.length < expected) {
+            throw new IllegalArgumentException("Block @" + offset + " of piece " + pieceIndex + " has "
+                                               + data.length + " bytes, expected " + expected);
+        }
+        int writable = Math.min(data.length, length - offset);
+        System.arraycopy(data, 0, buffer, offset, writable);
+
+        if (writable < expected) {
+            length = offset + writable;
+        }
+        if (writable > 0) {
+            receivedBlocks.set(block);
+            requestedBlocks.set(block);
+        }
+        return isComplete();
+    }
+
+    public synchronized boolean isComplete() {
+        return receivedBlocks.nextClearBit(0) >= getBlockCount();
+    }
+
+    public synchronized int getReceivedBlockCount() {
+        return receivedBlocks.cardinality();
+    }
+
+    /**
+     * @return the assembled piece, trimmed to its real length
+     */
+    public synchronized byte[] getData() {
+        if (length == buffer.length) {
+            return buffer;
+        }
+        byte[] trimmed = new byte[length];
+        System.arraycopy(buffer, 0, trimmed, 0, length);
+        return trimmed;
+    }
+}
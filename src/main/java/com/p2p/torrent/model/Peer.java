@@ -13,8 +13,12 @@ public class Peer {
     private int port;
     private boolean hasFile;
     private BitSet bitfield;
-    private boolean interested;
-    private boolean choked;
+    // Our side of the connection: we refuse to upload to it, we want pieces it has
+    private boolean amChoking;
+    private boolean amInterested;
+    // Its side: it refuses to upload to us, it wants pieces we have
+    private boolean peerChoking;
+    private boolean peerInterested;
     private Set<String> connectedPeers = ConcurrentHashMap.newKeySet();
     private long downloadRate;
     private boolean optimisticallyUnchoked;
@@ -24,8 +28,10 @@ public class Peer {
         this.hostname = hostname;
         this.port = port;
         this.hasFile = hasFile;
-        this.choked = true;
-        this.interested = false;
+        this.amChoking = true;
+        this.amInterested = false;
+        this.peerChoking = true;
+        this.peerInterested = false;
     }
     
     public void initializeBitfield(int totalPieces) {
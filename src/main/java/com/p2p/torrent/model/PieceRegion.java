@@ -0,0 +1,18 @@
+package com.p2p.torrent.model;
+
+import java.nio.file.Path;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Where a piece lives on disk: {@code length} bytes of {@code file} starting at {@code position}.
+ * Lets callers stream a piece from the file instead of loading it onto the heap.
+ */
+@Data
+@AllArgsConstructor
+public class PieceRegion {
+    private Path file;
+    private long position;
+    private long length;
+}
@@ -0,0 +1,360 @@
+package com.p2p.torrent.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.stereotype.Service;
+
+import com.p2p.torrent.config.TorrentConfig;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Token-bucket shaping of piece traffic, for the whole node and per peer. Every swarm shares it, a
+ * peer's limit covers all the swarms it is in.
+ *
+ * Uploads are charged just before a PIECE goes out. When the buckets are empty the piece is sent
+ * later from the peer's dispatcher queue, so no worker waits for tokens. A piece can't be refused
+ * once the peer has sent it, so downloads are charged when their blocks are REQUESTed: the scheduler
+ * asks for fewer blocks while the buckets are empty and tries again on its next sweep.
+ *
+ * A bucket holds at most one second of its rate and may go into debt for a single piece larger
+ * than that. Rates are bytes per second, 0 means unlimited.
+ */
+@Service
+@Slf4j
+public class BandwidthLimiter {
+    public enum Direction {
+        UPLOAD,
+        DOWNLOAD
+    }
+
+    private final int blockSize;
+
+    private final TokenBucket globalUpload;
+    private final TokenBucket globalDownload;
+    private volatile long peerUploadLimit;
+    private volatile long peerDownloadLimit;
+
+    private final RateMeter uploadMeter = new RateMeter();
+    private final RateMeter downloadMeter = new RateMeter();
+    private final Map<String, PeerLimits> peers = new ConcurrentHashMap<>();
+
+    private final LongAdder uploadsDelayed = new LongAdder();
+    private final LongAdder requestsDeferred = new LongAdder();
+
+    public BandwidthLimiter(TorrentConfig config) {
+        this.blockSize = config.getBlockSize();
+        this.globalUpload = new TokenBucket(config.getUploadRateLimit());
+        this.globalDownload = new TokenBucket(config.getDownloadRateLimit());
+        this.peerUploadLimit = config.getPeerUploadRateLimit();
+        this.peerDownloadLimit = config.getPeerDownloadRateLimit();
+        log.info("BANDWIDTH: upload {}, download {}, per peer upload {}, download {}",
+                 describe(config.getUploadRateLimit()), describe(config.getDownloadRateLimit()),
+                 describe(peerUploadLimit), describe(peerDownloadLimit));
+    }
+
+    /**
+     * Takes upload tokens for a piece about to be sent to the peer.
+     *
+     * @return how long to hold the piece back, 0 to send it now
+     */
+    public long reserveUpload(String peerId, int bytes) {
+        long now = System.nanoTime();
+        long delayNanos;
+        synchronized (this) {
+            delayNanos = Math.max(globalUpload.reserve(bytes, now), peerLimits(peerId).upload.reserve(bytes, now));
+        }
+        if (delayNanos <= 0) {
+            return 0;
+        }
+        uploadsDelayed.increment();
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(delayNanos));
+    }
+
+    /**
+     * Takes download tokens for up to {@code maxBlocks} block requests to the peer.
+     *
+     * @return the number of blocks that may be requested now
+     */
+    public int acquireDownload(String peerId, int maxBlocks) {
+        long now = System.nanoTime();
+        int granted = 0;
+        synchronized (this) {
+            TokenBucket peerBucket = peerLimits(peerId).download;
+            while (granted < maxBlocks && globalDownload.hasTokens(now) && peerBucket.hasTokens(now)) {
+                globalDownload.reserve(blockSize, now);
+                peerBucket.reserve(blockSize, now);
+                granted++;
+            }
+        }
+        if (granted < maxBlocks) {
+            requestsDeferred.increment();
+        }
+        return granted;
+    }
+
+    /**
+     * Gives back tokens taken for traffic that did not happen: a cancelled piece, or block requests
+     * the scheduler found nothing to ask for.
+     */
+    public void refund(Direction direction, String peerId, long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        synchronized (this) {
+            PeerLimits limits = peerLimits(peerId);
+            if (direction == Direction.UPLOAD) {
+                globalUpload.refund(bytes);
+                limits.upload.refund(bytes);
+            } else {
+                globalDownload.refund(bytes);
+                limits.download.refund(bytes);
+            }
+        }
+    }
+
+    public void refundDownloadBlocks(String peerId, int blocks) {
+        refund(Direction.DOWNLOAD, peerId, (long) blocks * blockSize);
+    }
+
+    /**
+     * Counts piece data that actually went out or came in, for the throughput figures.
+     */
+    public void record(Direction direction, String peerId, int bytes) {
+        long now = System.currentTimeMillis();
+        PeerLimits limits = peerLimits(peerId);
+        if (direction == Direction.UPLOAD) {
+            uploadMeter.record(bytes, now);
+            limits.uploadMeter.record(bytes, now);
+        } else {
+            downloadMeter.record(bytes, now);
+            limits.downloadMeter.record(bytes, now);
+        }
+    }
+
+    /**
+     * The peer's connection closed. Its buckets and figures are dropped, unless it has limits of its
+     * own.
+     */
+    public void forgetPeer(String peerId) {
+        peers.computeIfPresent(peerId, (id, limits) -> limits.hasOverride() ? limits : null);
+    }
+
+    /**
+     * Changes the node-wide limits; null leaves a limit as it is.
+     *
+     * @throws IllegalArgumentException for a negative rate
+     */
+    public synchronized void setLimits(Long upload, Long download, Long peerUpload, Long peerDownload) {
+        checkRate(upload);
+        checkRate(download);
+        checkRate(peerUpload);
+        checkRate(peerDownload);
+        long now = System.nanoTime();
+        if (upload != null) {
+            globalUpload.setRate(upload, now);
+        }
+        if (download != null) {
+            globalDownload.setRate(download, now);
+        }
+        if (peerUpload != null) {
+            peerUploadLimit = peerUpload;
+        }
+        if (peerDownload != null) {
+            peerDownloadLimit = peerDownload;
+        }
+        peers.values().forEach(limits -> limits.applyDefaults(now));
+        log.info("BANDWIDTH: Limits now upload {}, download {}, per peer upload {}, download {}",
+                 describe(globalUpload.rate), describe(globalDownload.rate),
+                 describe(peerUploadLimit), describe(peerDownloadLimit));
+    }
+
+    /**
+     * Gives one peer limits of its own; null goes back to the per-peer default.
+     *
+     * @throws IllegalArgumentException for a negative rate
+     */
+    public synchronized void setPeerLimits(String peerId, Long upload, Long download) {
+        checkRate(upload);
+        checkRate(download);
+        PeerLimits limits = peerLimits(peerId);
+        limits.uploadOverride = upload;
+        limits.downloadOverride = download;
+        limits.applyDefaults(System.nanoTime());
+        log.info("BANDWIDTH: Peer {} limits now upload {}, download {}", peerId,
+                 describe(limits.upload.rate), describe(limits.download.rate));
+    }
+
+    public Map<String, Object> getStats() {
+        long now = System.currentTimeMillis();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("uploadLimit", globalUpload.rate);
+        stats.put("downloadLimit", globalDownload.rate);
+        stats.put("peerUploadLimit", peerUploadLimit);
+        stats.put("peerDownloadLimit", peerDownloadLimit);
+        stats.put("uploadRate", uploadMeter.rate(now));
+        stats.put("downloadRate", downloadMeter.rate(now));
+        stats.put("uploadUtilization", utilization(uploadMeter.rate(now), globalUpload.rate));
+        stats.put("downloadUtilization", utilization(downloadMeter.rate(now), globalDownload.rate));
+        stats.put("uploaded", uploadMeter.total());
+        stats.put("downloaded", downloadMeter.total());
+        stats.put("uploadsDelayed", uploadsDelayed.sum());
+        stats.put("requestsDeferred", requestsDeferred.sum());
+
+        Map<String, Object> perPeer = new TreeMap<>();
+        peers.forEach((peerId, limits) -> {
+            Map<String, Object> peerStats = new LinkedHashMap<>();
+            peerStats.put("uploadLimit", limits.upload.rate);
+            peerStats.put("downloadLimit", limits.download.rate);
+            peerStats.put("ownLimits", limits.hasOverride());
+            peerStats.put("uploadRate", limits.uploadMeter.rate(now));
+            peerStats.put("downloadRate", limits.downloadMeter.rate(now));
+            peerStats.put("uploaded", limits.uploadMeter.total());
+            peerStats.put("downloaded", limits.downloadMeter.total());
+            perPeer.put(peerId, peerStats);
+        });
+        stats.put("peers", perPeer);
+        return stats;
+    }
+
+    private PeerLimits peerLimits(String peerId) {
+        return peers.computeIfAbsent(peerId, id -> new PeerLimits());
+    }
+
+    private static Double utilization(long rate, long limit) {
+        return limit > 0 ? Math.round(rate * 1000.0 / limit) / 10.0 : null;
+    }
+
+    private static void checkRate(Long rate) {
+        if (rate != null && rate < 0) {
+            throw new IllegalArgumentException("Rate must be 0 (unlimited) or more bytes per second: " + rate);
+        }
+    }
+
+    private static String describe(long rate) {
+        return rate > 0 ? rate + " B/s" : "unlimited";
+    }
+
+    private final class PeerLimits {
+        private final TokenBucket upload = new TokenBucket(peerUploadLimit);
+        private final TokenBucket download = new TokenBucket(peerDownloadLimit);
+        private final RateMeter uploadMeter = new RateMeter();
+        private final RateMeter downloadMeter = new RateMeter();
+        private Long uploadOverride;
+        private Long downloadOverride;
+
+        boolean hasOverride() {
+            return uploadOverride != null || downloadOverride != null;
+        }
+
+        void applyDefaults(long now) {
+            upload.setRate(uploadOverride != null ? uploadOverride : peerUploadLimit, now);
+            download.setRate(downloadOverride != null ? downloadOverride : peerDownloadLimit, now);
+        }
+    }
+
+    /**
+     * Refills continuously at {@code rate} bytes per second up to one second's worth. Callers hold
+     * the limiter's lock.
+     */
+    private static final class TokenBucket {
+        private volatile long rate;
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+
+        TokenBucket(long rate) {
+            this.rate = rate;
+            this.tokens = rate;
+        }
+
+        boolean hasTokens(long now) {
+            if (rate <= 0) {
+                return true;
+            }
+            refill(now);
+            return tokens > 0;
+        }
+
+        /**
+         * @return nanoseconds until the bucket is out of debt again, 0 if it is not in debt
+         */
+        long reserve(long bytes, long now) {
+            if (rate <= 0) {
+                return 0;
+            }
+            refill(now);
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * TimeUnit.SECONDS.toNanos(1) / rate);
+        }
+
+        void refund(long bytes) {
+            if (rate > 0) {
+                tokens = Math.min(rate, tokens + bytes);
+            }
+        }
+
+        void setRate(long newRate, long now) {
+            if (newRate == rate) {
+                return;
+            }
+            refill(now);
+            // A bucket that was unlimited starts full
+            tokens = newRate <= 0 ? 0 : rate <= 0 ? newRate : Math.min(tokens, newRate);
+            rate = newRate;
+            refilledAt = now;
+        }
+
+        private void refill(long now) {
+            long elapsed = now - refilledAt;
+            if (elapsed > 0) {
+                tokens = Math.min(rate, tokens + (double) elapsed * rate / TimeUnit.SECONDS.toNanos(1));
+                refilledAt = now;
+            }
+        }
+    }
+
+    /**
+     * Bytes per second over the last few whole seconds.
+     */
+    private static final class RateMeter {
+        private static final int SECONDS = 5;
+
+        private final long[] bytes = new long[SECONDS];
+        private final long[] slotSecond = new long[SECONDS];
+        private long total;
+
+        synchronized void record(long count, long nowMillis) {
+            long second = nowMillis / 1000;
+            int slot = (int) (second % SECONDS);
+            if (slotSecond[slot] != second) {
+                slotSecond[slot] = second;
+                bytes[slot] = 0;
+            }
+            bytes[slot] += count;
+            total += count;
+        }
+
+        /**
+         * Averaged over the last {@code SECONDS - 1} whole seconds; the current one is still filling.
+         */
+        synchronized long rate(long nowMillis) {
+            long second = nowMillis / 1000;
+            long sum = 0;
+            for (int slot = 0; slot < SECONDS; slot++) {
+                if (slotSecond[slot] < second && slotSecond[slot] >= second - (SECONDS - 1)) {
+                    sum += bytes[slot];
+                }
+            }
+            return sum / (SECONDS - 1);
+        }
+
+        synchronized long total() {
+            return total;
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package com.p2p.torrent.service;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.stereotype.Service;
+
+import com.p2p.torrent.config.TorrentConfig;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Writes received pieces on a thread of its own, so the threads handling peer messages never wait
+ * for the disk, and decides when written pieces count as durable.
+ *
+ * Pieces are handed over through a queue of at most {@code p2p.diskQueueDepth} pieces; when it is
+ * full the caller waits, which slows the download down instead of buffering without bound. The
+ * writer takes everything queued at once and hands each store its share in one call, so adjacent
+ * pieces of a data file go out in one write. Written pieces become durable according to
+ * {@code p2p.diskSyncPolicy}:
+ * <ul>
+ *   <li>{@code none}: as soon as they are written, nothing is synced</li>
+ *   <li>{@code periodic}: with a group commit, one fsync per file written since the last commit,
+ *       every {@code p2p.diskSyncIntervalMillis} or once {@code p2p.diskSyncBytes} are waiting</li>
+ *   <li>{@code on-completion}: with one commit once a store has received all of its pieces</li>
+ * </ul>
+ * Stores are told which of their pieces became durable; only those are announced to peers. Pieces
+ * a store could not write are handed back to it instead and never count as durable.
+ */
+@Service
+@Slf4j
+public class DiskWriter {
+    private static final int MAX_BATCH = 256;
+    private static final long IDLE_POLL_MILLIS = 200;
+    private static final long RETRY_MILLIS = 1000;
+    private static final long FLUSH_TIMEOUT_SECONDS = 60;
+
+    private final TorrentConfig.SyncPolicy policy;
+    private final long syncIntervalMillis;
+    private final long syncBytes;
+    private final int queueDepth;
+    private final TransferMetrics transferMetrics;
+
+    // Pieces to write and flush requests, in submission order
+    private final BlockingQueue<Object> queue;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    // Written but not durable yet; only touched by the writer thread
+    private final Map<Store, Pending> pending = new LinkedHashMap<>();
+    private volatile long pendingBytes;
+    private volatile int pendingPieces;
+    private long pendingSince;
+    private long retryAt;
+
+    private final LongAdder piecesWritten = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder writeCalls = new LongAdder();
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder filesSynced = new LongAdder();
+    private final LongAdder failedSyncs = new LongAdder();
+    private final LongAdder failedWrites = new LongAdder();
+
+    public DiskWriter(TorrentConfig config, TransferMetrics transferMetrics) {
+        this.transferMetrics = transferMetrics;
+        this.policy = config.getDiskSyncPolicy() != null ? config.getDiskSyncPolicy() : TorrentConfig.SyncPolicy.PERIODIC;
+        this.syncIntervalMillis = Math.max(1, config.getDiskSyncIntervalMillis());
+        this.syncBytes = Math.max(1, config.getDiskSyncBytes());
+        this.queueDepth = Math.max(1, config.getDiskQueueDepth());
+        this.queue = new ArrayBlockingQueue<>(queueDepth);
+
+        this.writer = new Thread(this::run, "disk-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        transferMetrics.gauge("p2p_disk_write_queued", "Received pieces waiting for the disk writer", queue::size);
+        transferMetrics.gauge("p2p_disk_unsynced_bytes", "Piece data written but not yet durable", () -> pendingBytes);
+        transferMetrics.counter("p2p_disk_commits_total", "Group commits syncing written pieces", commits::sum);
+
+        log.info("DISK WRITER: Sync policy {}, queue of {} pieces", policyName(), queueDepth);
+    }
+
+    /**
+     * Queues a piece for writing, waiting while the queue is full.
+     */
+    public void submit(Store store, String peerId, int pieceIndex, byte[] data, boolean verified) {
+        PieceWrite write = new PieceWrite(store, peerId, pieceIndex, data, verified);
+        if (running) {
+            try {
+                queue.put(write);
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Shutting down or interrupted: write it here, without waiting for a sync
+        List<PieceWrite> failed = new ArrayList<>();
+        store.write(Collections.singletonList(write), failed);
+        if (failed.isEmpty()) {
+            store.durable(Collections.singletonList(write));
+        } else {
+            store.failed(failed);
+        }
+    }
+
+    /**
+     * Waits until everything queued so far is written and synced, whatever the policy. Returns at
+     * once on the writer thread itself, i.e. when called from {@link Store#durable}.
+     */
+    public void flush() {
+        if (Thread.currentThread() == writer || !writer.isAlive()) {
+            return;
+        }
+        CountDownLatch done = new CountDownLatch(1);
+        try {
+            queue.put(done);
+            if (!done.await(FLUSH_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("DISK WRITER: Flush did not finish within {} s", FLUSH_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("syncPolicy", policyName());
+        stats.put("syncIntervalMillis", syncIntervalMillis);
+        stats.put("syncBytes", syncBytes);
+        stats.put("queueDepthLimit", queueDepth);
+        stats.put("queued", queue.size());
+        stats.put("piecesWritten", piecesWritten.sum());
+        stats.put("bytesWritten", bytesWritten.sum());
+        stats.put("writeCalls", writeCalls.sum());
+        stats.put("unsyncedPieces", pendingPieces);
+        stats.put("unsyncedBytes", pendingBytes);
+        stats.put("commits", commits.sum());
+        stats.put("filesSynced", filesSynced.sum());
+        stats.put("failedSyncs", failedSyncs.sum());
+        stats.put("failedWrites", failedWrites.sum());
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+        running = false;
+    }
+
+    private void run() {
+        List<Object> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                Object first = queue.poll(waitMillis(), TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    process(batch);
+                }
+                if (commitDue()) {
+                    commit();
+                }
+            } catch (InterruptedException e) {
+                log.debug("DISK WRITER: Interrupted, {} pieces not synced", pendingPieces);
+            } catch (RuntimeException e) {
+                log.error("DISK WRITER: Failed to process {} queued items: {}", batch.size(), e.getMessage(), e);
+            } finally {
+                batch.clear();
+            }
+        }
+        commit();
+    }
+
+    private void process(List<Object> batch) {
+        Map<Store, List<PieceWrite>> writes = new LinkedHashMap<>();
+        List<CountDownLatch> flushes = new ArrayList<>();
+        for (Object item : batch) {
+            if (item instanceof PieceWrite) {
+                PieceWrite write = (PieceWrite) item;
+                writes.computeIfAbsent(write.store, store -> new ArrayList<>()).add(write);
+            } else {
+                flushes.add((CountDownLatch) item);
+            }
+        }
+
+        // Each store's share is written or handed back to it as failed, and waiting flushes are
+        // released whatever happens
+        try {
+            writes.forEach(this::write);
+            if (!flushes.isEmpty()) {
+                commit();
+            }
+        } finally {
+            flushes.forEach(CountDownLatch::countDown);
+        }
+    }
+
+    private void write(Store store, List<PieceWrite> writes) {
+        List<PieceWrite> failed = new ArrayList<>();
+        Collection<Path> files;
+        try {
+            files = store.write(writes, failed);
+        } catch (RuntimeException e) {
+            log.error("DISK WRITER: Failed to write {} pieces: {}", writes.size(), e.getMessage(), e);
+            failed(store, writes);
+            return;
+        }
+        if (!failed.isEmpty()) {
+            failed(store, failed);
+            writes = new ArrayList<>(writes);
+            writes.removeAll(failed);
+            if (writes.isEmpty()) {
+                return;
+            }
+        }
+
+        long bytes = writes.stream().mapToLong(write -> write.data.length).sum();
+        writeCalls.increment();
+        piecesWritten.add(writes.size());
+        bytesWritten.add(bytes);
+
+        if (policy == TorrentConfig.SyncPolicy.NONE) {
+            durable(store, writes);
+            return;
+        }
+        if (pending.isEmpty()) {
+            pendingSince = System.currentTimeMillis();
+        }
+        Pending waiting = pending.computeIfAbsent(store, key -> new Pending());
+        waiting.writes.addAll(writes);
+        waiting.files.addAll(files);
+        pendingBytes += bytes;
+        pendingPieces += writes.size();
+    }
+
+    private boolean commitDue() {
+        long now = System.currentTimeMillis();
+        if (pending.isEmpty() || now < retryAt) {
+            return false;
+        }
+        switch (policy) {
+            case PERIODIC:
+                return pendingBytes >= syncBytes || now - pendingSince >= syncIntervalMillis;
+            case ON_COMPLETION:
+                return pending.keySet().stream().anyMatch(Store::isComplete);
+            default:
+                return true;
+        }
+    }
+
+    private long waitMillis() {
+        if (policy == TorrentConfig.SyncPolicy.PERIODIC && !pending.isEmpty()) {
+            long due = Math.max(pendingSince + syncIntervalMillis, retryAt);
+            return Math.max(1, Math.min(IDLE_POLL_MILLIS, due - System.currentTimeMillis()));
+        }
+        return IDLE_POLL_MILLIS;
+    }
+
+    /**
+     * Syncs every file written since the last commit, then tells the stores their pieces are durable.
+     * If a sync fails nothing is reported and the commit is tried again a little later.
+     */
+    private void commit() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        Set<Path> files = new LinkedHashSet<>();
+        pending.values().forEach(waiting -> files.addAll(waiting.files));
+
+        long startedAt = System.nanoTime();
+        for (Path file : files) {
+            try {
+                sync(file);
+            } catch (IOException | RuntimeException e) {
+                failedSyncs.increment();
+                retryAt = System.currentTimeMillis() + RETRY_MILLIS;
+                log.error("DISK WRITER: Failed to sync {}, retrying in {} ms: {}", file, RETRY_MILLIS, e.getMessage());
+                return;
+            }
+        }
+        transferMetrics.diskCommit(System.nanoTime() - startedAt);
+        commits.increment();
+        filesSynced.add(files.size());
+        log.debug("DISK WRITER: Synced {} pieces ({} bytes) in {} files", pendingPieces, pendingBytes, files.size());
+
+        Map<Store, Pending> synced = new LinkedHashMap<>(pending);
+        pending.clear();
+        pendingBytes = 0;
+        pendingPieces = 0;
+        retryAt = 0;
+        synced.forEach((store, waiting) -> durable(store, waiting.writes));
+    }
+
+    private void sync(Path file) throws IOException {
+        // A piece file replaced in the meantime has nothing left to sync
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    private void durable(Store store, List<PieceWrite> writes) {
+        try {
+            store.durable(writes);
+        } catch (RuntimeException e) {
+            log.error("DISK WRITER: Failed to report {} durable pieces: {}", writes.size(), e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Hands pieces that were not written back to their store, which drops them.
+     */
+    private void failed(Store store, List<PieceWrite> writes) {
+        failedWrites.add(writes.size());
+        try {
+            store.failed(writes);
+        } catch (RuntimeException e) {
+            log.error("DISK WRITER: Failed to hand back {} unwritten pieces: {}", writes.size(), e.getMessage(), e);
+        }
+    }
+
+    private String policyName() {
+        return policy.name().toLowerCase().replace('_', '-');
+    }
+
+    /**
+     * A piece store the writer writes for.
+     */
+    interface Store {
+        /**
+         * Writes the pieces, without syncing them. Pieces that could not be written are added to
+         * {@code failed}; they are never reported durable.
+         *
+         * @return the files written to, synced by the next commit
+         */
+        Collection<Path> write(List<PieceWrite> writes, List<PieceWrite> failed);
+
+        /**
+         * Called on the writer thread once the pieces are durable as far as the policy asks.
+         */
+        void durable(List<PieceWrite> writes);
+
+        /**
+         * Called on the writer thread with pieces that could not be written, so the store can take
+         * them back.
+         */
+        void failed(List<PieceWrite> writes);
+
+        /**
+         * @return true once the store has received all of its pieces
+         */
+        boolean isComplete();
+    }
+
+    static final class PieceWrite {
+        final Store store;
+        final String peerId;
+        final int pieceIndex;
+        final byte[] data;
+        final boolean verified;
+
+        PieceWrite(Store store, String peerId, int pieceIndex, byte[] data, boolean verified) {
+            this.store = store;
+            this.peerId = peerId;
+            this.pieceIndex = pieceIndex;
+            this.data = data;
+            this.verified = verified;
+        }
+    }
+
+    private static final class Pending {
+        final List<PieceWrite> writes = new ArrayList<>();
+        final Set<Path> files = new LinkedHashSet<>();
+    }
+}
@@ -0,0 +1,559 @@
+package com.p2p.torrent.service;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntPredicate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.stereotype.Service;
+
+import com.p2p.torrent.config.TorrentConfig;
+import com.p2p.torrent.model.Message;
+import com.p2p.torrent.model.PartialPiece;
+import com.p2p.torrent.model.Peer;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Decides which blocks to request from which peer. It is the only place that sends block
+ * REQUESTs and keeps track of the ones still in flight.
+ *
+ * Each unchoked peer is topped up to {@link #PIPELINE_DEPTH} outstanding blocks whenever something
+ * changes for it (unchoke, bitfield, HAVE, a block arriving) and on a periodic sweep that catches
+ * anything the events missed. Requests a peer leaves unanswered for {@code p2p.requestTimeoutMillis}
+ * expire on that sweep and go to other peers. Blocks are claimed on their {@link PartialPiece} before they are
+ * requested, so a block is only ever asked of one peer until endgame starts, or until a piece a
+ * stream is waiting for is overdue.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class DownloadScheduler {
+    // Number of block requests kept in flight per peer
+    private static final int PIPELINE_DEPTH = 32;
+    private static final long SWEEP_INTERVAL_MILLIS = 500;
+
+    private final TorrentConfig config;
+    private final PeerService peerService;
+    private final FileService fileService;
+    private final PiecePicker piecePicker;
+    private final PeerMessenger peerMessenger;
+    private final MessageDispatcher messageDispatcher;
+    private final BandwidthLimiter bandwidthLimiter;
+    private final TransferMetrics transferMetrics;
+
+    private ScheduledFuture<?> sweeper;
+    private volatile String localPeerId;
+
+    // Block requests sent to each peer and not answered yet: blockKey(piece, offset) to System.nanoTime() when sent
+    private final Map<String, Map<Long, Long>> outstandingBlocks = new ConcurrentHashMap<>();
+
+    // Peers with a top-up already waiting on their dispatcher queue
+    private final Set<String> queuedTopUps = ConcurrentHashMap.newKeySet();
+
+    // Set once every missing block is in flight; from then on blocks are requested from every peer
+    private final AtomicBoolean endgame = new AtomicBoolean();
+
+    @PostConstruct
+    public void initialize() {
+        sweeper = messageDispatcher.scheduleAtFixedRate("scheduler sweep", SWEEP_INTERVAL_MILLIS,
+                                                        SWEEP_INTERVAL_MILLIS, this::sweep);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (sweeper != null) {
+            sweeper.cancel(false);
+        }
+    }
+
+    /**
+     * Starts over for a (re)initialized local peer.
+     */
+    public void reset(String peerId) {
+        this.localPeerId = peerId;
+        outstandingBlocks.clear();
+        endgame.set(false);
+    }
+
+    /**
+     * The file layout changed, every block request in flight refers to the old one.
+     */
+    public void layoutChanged() {
+        outstandingBlocks.clear();
+        endgame.set(false);
+    }
+
+    /**
+     * Queues a top-up for the peer on its dispatcher queue, for callers outside that queue.
+     */
+    public void scheduleTopUp(String peerId) {
+        if (queuedTopUps.add(peerId)
+            && !messageDispatcher.submit(peerId, null, () -> {
+                queuedTopUps.remove(peerId);
+                topUp(peerId);
+            })) {
+            queuedTopUps.remove(peerId);
+        }
+    }
+
+    /**
+     * Requests blocks from the peer until its pipeline is full. Runs on the peer's dispatcher queue.
+     */
+    public void topUp(String peerId) {
+        Peer peer = peerService.getPeer(peerId).orElse(null);
+        if (localPeerId == null || peer == null || peer.isPeerChoking() || piecePicker.getMissingCount() == 0) {
+            return;
+        }
+
+        int budget = PIPELINE_DEPTH - outstandingFor(peerId).size();
+        if (budget <= 0) {
+            return;
+        }
+
+        // Always ensure seeder has complete bitfield
+        if (peer.isHasFile()) {
+            peerService.markPeerComplete(peer);
+        }
+
+        BitSet available = peer.getBitfield();
+        if (!piecePicker.hasPieceFor(available)) {
+            // Nothing to get from this peer, say so once
+            if (peer.isAmInterested() && !peer.isHasFile()) {
+                peer.setAmInterested(false);
+                peerMessenger.send(peerId, new Message(Message.MessageType.NOT_INTERESTED, localPeerId, null, null, null));
+                log.info("Sent NOT_INTERESTED to peer {} (no needed pieces)", peerId);
+            }
+            return;
+        }
+
+        // Only as many blocks as the download limit allows right now, the sweep asks again later
+        int granted = bandwidthLimiter.acquireDownload(peerId, budget);
+        if (granted == 0) {
+            return;
+        }
+        budget = granted;
+
+        // Pieces a stream needs come first, earliest deadline first; once they are overdue their
+        // missing blocks are asked of this peer too
+        if (piecePicker.hasDeadlines()) {
+            while (budget > 0) {
+                int urgentPieceIndex = piecePicker.pickUrgent(available);
+                if (urgentPieceIndex < 0) {
+                    break;
+                }
+                int requested = requestBlocks(peerId, fileService.startPiece(urgentPieceIndex), budget);
+                if (requested == 0) {
+                    break;
+                }
+                budget -= requested;
+            }
+
+            long now = System.currentTimeMillis();
+            int duplicates = requestDuplicateBlocks(peerId, available, budget,
+                                                    pieceIndex -> piecePicker.isOverdue(pieceIndex, now));
+            if (duplicates > 0) {
+                log.info("STREAM: Sent {} duplicate block REQUESTs for overdue pieces to peer {}", duplicates, peerId);
+            }
+            budget -= duplicates;
+        }
+
+        // Finish pieces that are already in progress before starting new ones, so a piece
+        // can be assembled from every peer that has it
+        for (PartialPiece partial : fileService.getPartialPieces()) {
+            if (budget <= 0) {
+                break;
+            }
+            if (available.get(partial.getPieceIndex())) {
+                budget -= requestBlocks(peerId, partial, budget);
+            }
+        }
+
+        // For video files, request pieces sequentially for better streaming
+        String filename = fileService.getCurrentFilename();
+        boolean isVideo = filename != null &&
+                         (filename.toLowerCase().endsWith(".mp4") ||
+                          filename.toLowerCase().endsWith(".webm") ||
+                          filename.toLowerCase().endsWith(".mov"));
+
+        // Pieces already in progress were handled above, the picker only offers new ones
+        while (budget > 0) {
+            int selectedPieceIndex = isVideo
+                ? piecePicker.pickSequential(available)
+                : piecePicker.pickRarest(available);
+            if (selectedPieceIndex < 0) {
+                break;
+            }
+            log.debug("Selected piece {} for peer {} ({}, {} peers have it)", selectedPieceIndex, peerId,
+                      isVideo ? "sequential" : "rarest first", piecePicker.getAvailability(selectedPieceIndex));
+            budget -= requestBlocks(peerId, fileService.startPiece(selectedPieceIndex), budget);
+        }
+
+        if (budget > 0 && isEndgame()) {
+            if (endgame.compareAndSet(false, true)) {
+                log.info("ENDGAME: All {} missing pieces are in flight, requesting them from every peer",
+                         piecePicker.getMissingCount());
+                peerService.getAllPeers().stream()
+                    .filter(p -> !p.getPeerId().equals(localPeerId) && !p.getPeerId().equals(peerId))
+                    .filter(p -> !p.isPeerChoking())
+                    .forEach(p -> scheduleTopUp(p.getPeerId()));
+            }
+            int duplicates = requestDuplicateBlocks(peerId, available, budget, pieceIndex -> true);
+            if (duplicates > 0) {
+                log.info("ENDGAME: Sent {} duplicate block REQUESTs to peer {}", duplicates, peerId);
+            }
+            budget -= duplicates;
+        }
+        bandwidthLimiter.refundDownloadBlocks(peerId, budget);
+    }
+
+    /**
+     * A block arrived: it is no longer outstanding, and other peers asked for it (in endgame or for
+     * an overdue piece) are told to drop the request.
+     */
+    public void blockReceived(String peerId, int pieceIndex, int offset) {
+        long key = blockKey(pieceIndex, offset);
+        Map<Long, Long> outstanding = outstandingBlocks.get(peerId);
+        Long requestedAt = outstanding != null ? outstanding.remove(key) : null;
+        if (requestedAt != null) {
+            transferMetrics.requestAnswered(System.nanoTime() - requestedAt);
+        }
+
+        outstandingBlocks.forEach((otherPeerId, other) -> {
+            if (!otherPeerId.equals(peerId) && other.remove(key) != null) {
+                peerMessenger.send(otherPeerId, Message.blockCancel(localPeerId, pieceIndex, offset,
+                                                                    fileService.getBlockLength(pieceIndex, offset)));
+                log.info("Sent CANCEL for piece {} block @{} to peer {}, delivered by peer {}",
+                         pieceIndex, offset, otherPeerId, peerId);
+            }
+        });
+    }
+
+    /**
+     * A reader of the file, see {@link #streamAt}. Every reader has a readahead window of its own.
+     */
+    public static final class StreamHandle {
+        private StreamHandle() {
+        }
+    }
+
+    /**
+     * Starts a reader at this byte of the file, see {@link #streamAt(StreamHandle, long)}.
+     *
+     * @return the handle to move the reader's window with, and to pass to {@link #stopStreaming}
+     */
+    public StreamHandle streamAt(long position) {
+        StreamHandle reader = new StreamHandle();
+        streamAt(reader, position);
+        return reader;
+    }
+
+    /**
+     * The reader is at this byte of the file. The pieces from there to {@code p2p.streamReadaheadBytes}
+     * ahead get a deadline by when a player reading at {@code p2p.streamBytesPerSecond} reaches them,
+     * replacing the reader's previous window but not those of other readers, and every unchoked peer
+     * is topped up.
+     */
+    public void streamAt(StreamHandle reader, long position) {
+        int pieceSize = fileService.getPieceSize();
+        int totalPieces = fileService.getTotalPieces();
+        if (pieceSize <= 0 || totalPieces == 0) {
+            return;
+        }
+        long readahead = Math.max(pieceSize, config.getStreamReadaheadBytes());
+        long bytesPerSecond = Math.max(1, config.getStreamBytesPerSecond());
+        int first = (int) Math.min(totalPieces - 1, position / pieceSize);
+        int last = (int) Math.min(totalPieces - 1, (position + readahead - 1) / pieceSize);
+
+        long now = System.currentTimeMillis();
+        piecePicker.clearDeadlines(reader);
+        for (int pieceIndex = first; pieceIndex <= last; pieceIndex++) {
+            long ahead = Math.max(0, (long) pieceIndex * pieceSize - position);
+            piecePicker.setDeadline(reader, pieceIndex, now + ahead * 1000 / bytesPerSecond);
+        }
+        topUpUnchoked();
+    }
+
+    /**
+     * Waits up to {@code p2p.streamWaitMillis} for a piece the reader needs now. A missing piece is
+     * moved ahead of every other deadline, so it is requested first and, being overdue, from every
+     * peer that has it.
+     *
+     * @return false if the piece did not arrive in time
+     */
+    public boolean awaitPiece(StreamHandle reader, int pieceIndex) throws InterruptedException {
+        if (fileService.hasPiece(pieceIndex)) {
+            return true;
+        }
+        piecePicker.setDeadline(reader, pieceIndex, 0);
+        topUpUnchoked();
+        return fileService.awaitPiece(pieceIndex, config.getStreamWaitMillis());
+    }
+
+    /**
+     * The reader is gone, the pieces only it was waiting for go back to rarest first.
+     */
+    public void stopStreaming(StreamHandle reader) {
+        piecePicker.clearDeadlines(reader);
+    }
+
+    /**
+     * The peer choked us or went away: it will not answer, so its blocks go back to the pool.
+     */
+    public void releasePeer(String peerId) {
+        queuedTopUps.remove(peerId);
+        Map<Long, Long> outstanding = outstandingBlocks.remove(peerId);
+        if (outstanding == null || outstanding.isEmpty()) {
+            return;
+        }
+
+        for (long key : outstanding.keySet()) {
+            PartialPiece partial = fileService.getPartialPiece((int) (key >>> 32));
+            if (partial != null) {
+                partial.releaseBlock((int) key);
+                piecePicker.setAllRequested(partial.getPieceIndex(), false);
+            }
+        }
+        log.info("Released {} outstanding block requests to peer {}", outstanding.size(), peerId);
+    }
+
+    /**
+     * Manually request a specific piece from a peer, e.g. to recover a stalled download. Only
+     * blocks no other peer has been asked for are requested, and only as many as the peer's
+     * pipeline and the download limit allow.
+     */
+    public void requestPiece(String targetPeerId, int pieceIndex) {
+        log.info("Manually requesting piece {} from peer {}", pieceIndex, targetPeerId);
+
+        peerService.getPeer(targetPeerId).ifPresent(peer -> {
+            // First make sure we're not choked
+            if (peer.isAmChoking()) {
+                log.info("Force-unchoking peer {} to allow immediate piece requests", targetPeerId);
+                peerMessenger.send(targetPeerId, new Message(Message.MessageType.INTERESTED, localPeerId, null, null, null));
+                peer.setAmInterested(true);
+                peer.setAmChoking(false);
+                peerMessenger.send(targetPeerId, new Message(Message.MessageType.UNCHOKE, localPeerId, null, null, null));
+            }
+
+            if (pieceIndex < 0 || pieceIndex >= fileService.getTotalPieces() || fileService.getBitfield().get(pieceIndex)) {
+                log.info("Piece {} is not missing, not requesting it from peer {}", pieceIndex, targetPeerId);
+                return;
+            }
+            int budget = PIPELINE_DEPTH - getOutstandingCount(targetPeerId);
+            int granted = budget > 0 ? bandwidthLimiter.acquireDownload(targetPeerId, budget) : 0;
+            if (granted == 0) {
+                log.info("Pipeline to peer {} is full, piece {} is left to the next top-up", targetPeerId, pieceIndex);
+                return;
+            }
+            PartialPiece partial = fileService.startPiece(pieceIndex);
+            bandwidthLimiter.refundDownloadBlocks(targetPeerId, granted - requestBlocks(targetPeerId, partial, granted));
+        });
+    }
+
+    public int getOutstandingCount(String peerId) {
+        Map<Long, Long> outstanding = outstandingBlocks.get(peerId);
+        return outstanding != null ? outstanding.size() : 0;
+    }
+
+    public boolean isEndgameActive() {
+        return endgame.get();
+    }
+
+    /**
+     * Periodic top-up of every unchoked peer with room in its pipeline.
+     */
+    private void sweep() {
+        try {
+            expireRequests();
+            topUpUnchoked();
+        } catch (Exception e) {
+            log.error("SCHEDULER: Sweep failed: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Drops block requests that have gone unanswered for {@code p2p.requestTimeoutMillis}: the peer
+     * may have shed them under load or not have the piece after all. Each block is handed straight
+     * to the least busy other peer that has the piece, or else back to the pool.
+     */
+    private void expireRequests() {
+        long cutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(config.getRequestTimeoutMillis());
+        outstandingBlocks.forEach((peerId, outstanding) -> {
+            List<Long> expired = new ArrayList<>();
+            outstanding.forEach((key, requestedAt) -> {
+                if (requestedAt - cutoff < 0 && outstanding.remove(key, requestedAt)) {
+                    expired.add(key);
+                }
+            });
+            if (expired.isEmpty()) {
+                return;
+            }
+
+            int reissued = 0;
+            for (long key : expired) {
+                int pieceIndex = (int) (key >>> 32);
+                int offset = (int) key;
+                PartialPiece partial = fileService.getPartialPiece(pieceIndex);
+                // Duplicates still in flight elsewhere keep the block claimed
+                if (partial == null || isOutstanding(key)) {
+                    continue;
+                }
+                partial.releaseBlock(offset);
+                piecePicker.setAllRequested(pieceIndex, false);
+                if (reissue(peerId, partial, offset)) {
+                    reissued++;
+                }
+            }
+            log.warn("SCHEDULER: {} block requests to peer {} expired, {} reissued to other peers",
+                     expired.size(), peerId, reissued);
+        });
+    }
+
+    private boolean reissue(String expiredPeerId, PartialPiece partial, int offset) {
+        int pieceIndex = partial.getPieceIndex();
+        List<Peer> candidates = new ArrayList<>();
+        for (Peer peer : peerService.getAllPeers()) {
+            String peerId = peer.getPeerId();
+            if (!peerId.equals(localPeerId) && !peerId.equals(expiredPeerId) && !peer.isPeerChoking()
+                && peer.getBitfield().get(pieceIndex) && getOutstandingCount(peerId) < PIPELINE_DEPTH) {
+                candidates.add(peer);
+            }
+        }
+        candidates.sort(Comparator.comparingInt(peer -> getOutstandingCount(peer.getPeerId())));
+
+        for (Peer peer : candidates) {
+            String peerId = peer.getPeerId();
+            if (bandwidthLimiter.acquireDownload(peerId, 1) == 0) {
+                continue;
+            }
+            if (!partial.claimBlock(offset)) {
+                // Taken by a top-up in the meantime
+                bandwidthLimiter.refundDownloadBlocks(peerId, 1);
+                return false;
+            }
+            piecePicker.setAllRequested(pieceIndex, !partial.hasUnrequestedBlocks());
+            outstandingFor(peerId).put(blockKey(pieceIndex, offset), System.nanoTime());
+            peerMessenger.send(peerId, Message.blockRequest(localPeerId, pieceIndex, offset,
+                                                            fileService.getBlockLength(pieceIndex, offset)));
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isOutstanding(long key) {
+        for (Map<Long, Long> outstanding : outstandingBlocks.values()) {
+            if (outstanding.containsKey(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void topUpUnchoked() {
+        if (localPeerId == null || piecePicker.getMissingCount() == 0) {
+            return;
+        }
+        for (Peer peer : peerService.getAllPeers()) {
+            String peerId = peer.getPeerId();
+            if (!peerId.equals(localPeerId) && !peer.isPeerChoking() && getOutstandingCount(peerId) < PIPELINE_DEPTH) {
+                scheduleTopUp(peerId);
+            }
+        }
+    }
+
+    /**
+     * Endgame starts once every missing piece has been started and all of their blocks are requested.
+     */
+    private boolean isEndgame() {
+        int missingCount = piecePicker.getMissingCount();
+        if (missingCount == 0) {
+            return false;
+        }
+
+        Collection<PartialPiece> partials = fileService.getPartialPieces();
+        if (partials.size() < missingCount) {
+            return false;
+        }
+        for (PartialPiece partial : partials) {
+            if (partial.hasUnrequestedBlocks()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Asks this peer for blocks of the {@code wanted} pieces that are already requested elsewhere but
+     * have not arrived yet.
+     *
+     * @return the number of blocks requested
+     */
+    private int requestDuplicateBlocks(String peerId, BitSet available, int max, IntPredicate wanted) {
+        Map<Long, Long> outstanding = outstandingFor(peerId);
+        int requested = 0;
+
+        for (PartialPiece partial : fileService.getPartialPieces()) {
+            if (!available.get(partial.getPieceIndex()) || !wanted.test(partial.getPieceIndex())) {
+                continue;
+            }
+            for (int block : partial.missingBlocks()) {
+                if (requested >= max) {
+                    break;
+                }
+                int offset = partial.blockOffset(block);
+                if (outstanding.putIfAbsent(blockKey(partial.getPieceIndex(), offset), System.nanoTime()) == null) {
+                    peerMessenger.send(peerId, Message.blockRequest(localPeerId, partial.getPieceIndex(), offset,
+                                                                    partial.blockLength(block)));
+                    requested++;
+                }
+            }
+        }
+        return requested;
+    }
+
+    /**
+     * Sends REQUESTs for up to {@code max} unclaimed blocks of a piece.
+     *
+     * @return the number of blocks requested
+     */
+    private int requestBlocks(String peerId, PartialPiece partial, int max) {
+        List<Integer> blocks = partial.claimBlocks(max);
+        Map<Long, Long> outstanding = outstandingFor(peerId);
+        if (!blocks.isEmpty()) {
+            // Out of the deadline order until a block is released again
+            piecePicker.setAllRequested(partial.getPieceIndex(), !partial.hasUnrequestedBlocks());
+        }
+
+        for (int block : blocks) {
+            int offset = partial.blockOffset(block);
+            outstanding.put(blockKey(partial.getPieceIndex(), offset), System.nanoTime());
+            peerMessenger.send(peerId, Message.blockRequest(localPeerId, partial.getPieceIndex(), offset,
+                                                            partial.blockLength(block)));
+        }
+
+        if (!blocks.isEmpty()) {
+            log.info("Sent REQUEST for {} blocks of piece {} to peer {}", blocks.size(), partial.getPieceIndex(), peerId);
+        }
+        return blocks.size();
+    }
+
+    private Map<Long, Long> outstandingFor(String peerId) {
+        return outstandingBlocks.computeIfAbsent(peerId, id -> new ConcurrentHashMap<>());
+    }
+
+    private static long blockKey(int pieceIndex, int offset) {
+        return ((long) pieceIndex << 32) | (offset & 0xFFFFFFFFL);
+    }
+}
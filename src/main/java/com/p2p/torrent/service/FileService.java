@@ -3,15 +3,34 @@ package com.p2p.torrent.service;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.PreDestroy;
 
 import com.p2p.torrent.model.Peer;
 
@@ -19,6 +38,9 @@ import org.springframework.stereotype.Service;
 
 import com.p2p.torrent.config.TorrentConfig;
 import com.p2p.torrent.model.FilePiece;
+import com.p2p.torrent.model.Manifest;
+import com.p2p.torrent.model.PartialPiece;
+import com.p2p.torrent.model.PieceRegion;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -27,28 +49,125 @@ import lombok.extern.slf4j.Slf4j;
 @RequiredArgsConstructor
 @Slf4j
 public class FileService {
+    private static final String RESUME_FILE = "resume.dat";
+    
+    /**
+     * What {@link #applyManifest} made of a peer's manifest.
+     */
+    public enum ManifestMatch {
+        // It is the first manifest we know, and now the one this swarm is pinned to
+        ADOPTED,
+        // It is the pinned manifest, or we cannot tell yet because ours is still being hashed
+        SAME,
+        // It describes other content or is not self-consistent; the peer is in the wrong swarm
+        MISMATCH
+    }
+    
     private final TorrentConfig config;
+    private final PiecePicker piecePicker;
+    private final PieceCache pieceCache;
+    private final ManifestService manifestService;
+    private final TransferMetrics transferMetrics;
+    private final DiskWriter diskWriter;
     
-    private final ConcurrentHashMap<Integer, byte[]> pieceMap = new ConcurrentHashMap<>();
-    private BitSet bitfield;
+    private final Map<Integer, PartialPiece> partialPieces = new ConcurrentHashMap<>();
+    // Pieces we have. Dispatcher workers of different peers use it at once, so every read and
+    // write holds its monitor
+    private final BitSet bitfield = new BitSet();
     private int totalPieces;
+    private int pieceSize;
+    
+    // Length of the shared file, 0 while unknown (leechers learn it from the manifest or the last piece)
+    private long fileLength;
+    
+    // Layout and piece hashes of the shared file, null until hashed locally or received in a handshake.
+    // A manifest we hashed ourselves from the complete file is never replaced by one from a peer.
+    private volatile Manifest manifest;
+    private boolean manifestFromSource;
+    
+    // Fast-resume record of the local download, null for seeders
+    private volatile ResumeFile resumeFile;
+    
+    // Single-file storage: the file pieces are served from and (while downloading) written into.
+    // Positional reads and writes share the read lock, swapping the file takes the write lock.
+    private final ReadWriteLock dataFileLock = new ReentrantReadWriteLock();
+    private Path dataFile;
+    private FileChannel dataChannel;
+    private boolean dataFileWritable;
+    
+    // Received pieces still queued for the disk writer, served from here until written, and the
+    // pieces in the bitfield that are not durable yet (not announced, not in the resume record)
+    private final DiskWriter.Store pieceWrites = new PieceWrites();
+    private final Map<Integer, byte[]> unwritten = new ConcurrentHashMap<>();
+    private final BitSet notDurable = new BitSet();
+    private volatile Consumer<List<Integer>> durableListener;
+    
+    // Notified whenever a piece enters the bitfield, for streams waiting on one
+    private final Object pieceArrival = new Object();
     
     // Track file names
     private String currentFileName;
     
+    // Swarm this instance stores, null for the node's default swarm which lives directly in peer_<id>
+    private String swarmId;
+    private int cacheSpace;
+    
+    // Manifest of the source file hashed before initialize, so a seeder does not hash it twice
+    private Manifest sourceManifest;
+    
+    // Hashes a seeder's source file in the background; its thread only lives while there is a file to hash
+    private final ThreadPoolExecutor manifestHasher = newManifestHasher();
+    
+    // Told when a seeder's manifest was hashed in the background; the counter, guarded by this
+    // instance's monitor like initialize and applyManifest, tells a hash that finishes after a
+    // re-initialization that it is stale
+    private volatile Consumer<Manifest> manifestListener;
+    private int seedGeneration;
+    
     public String getCurrentFilename() {
         return currentFileName;
     }
     
-    public void initialize(String peerId, boolean hasFile) {
+    /**
+     * Keeps the files of this instance under {@code peer_<id>/swarms/<swarmId>} and its cached
+     * pieces in their own key space. Must be called before {@link #initialize}.
+     */
+    public void useSwarmStorage(String swarmId, int cacheSpace) {
+        this.swarmId = swarmId;
+        this.cacheSpace = cacheSpace;
+    }
+    
+    /**
+     * Hands over the manifest of the source file when the caller already hashed it. It is used by the
+     * next {@link #initialize} of a seeder if the file still has the same length.
+     */
+    public void setSourceManifest(Manifest sourceManifest) {
+        this.sourceManifest = sourceManifest;
+    }
+    
+    public synchronized void initialize(String peerId, boolean hasFile) {
+        // Pieces received before a re-initialization land first
+        diskWriter.flush();
+        unwritten.clear();
+        synchronized (notDurable) {
+            notDurable.clear();
+        }
+        
         // Set local peer ID
         this.localPeerId = peerId;
+        seedGeneration++;
         
-        // Use adjusted total pieces instead of calculating from file size
+        // Until a manifest says otherwise the layout comes from the configured file size
         totalPieces = config.getAdjustedTotalPieces();
+        pieceSize = config.getPieceSize();
+        fileLength = 0;
+        manifest = null;
+        manifestFromSource = false;
+        partialPieces.clear();
+        closeResumeFile();
         
         // Create directory for this peer if it doesn't exist
-        String peerDir = "peer_" + peerId;
+        String peerDir = peerDir(peerId).toString();
         try {
             Files.createDirectories(Paths.get(peerDir));
             Files.createDirectories(Paths.get(peerDir, "metadata"));
@@ -56,8 +175,18 @@ public class FileService {
             log.error("Failed to create directory for peer {}", peerId, e);
         }
         
-        // Initialize bitfield
-        bitfield = new BitSet(totalPieces);
+        // A leecher picks up the layout it learned from a peer last time
+        if (!hasFile) {
+            Manifest saved = manifestService.load(peerDir(peerId));
+            if (saved != null) {
+                useManifest(saved);
+                log.info("INIT: Loaded manifest {} for leecher {}", saved.getContentId(), peerId);
+            }
+        }
+        
+        clearPieces();
+        pieceCache.clear(cacheSpace);
+        closeDataFile();
         
         // Use default file name to start
         currentFileName = config.getFileName();
@@ -68,19 +197,29 @@ public class FileService {
         // Debug file path resolution
         checkSourceFile(peerId, hasFile);
         
+        // A seeder counts the pieces of its actual file, the configured size is only a guess
+        File sourceFile = new File(currentFileName);
+        if (hasFile && sourceFile.isFile()) {
+            totalPieces = ManifestService.pieceCount(sourceFile.length(), pieceSize);
+        }
+        
         if (hasFile) {
             try {
-                // If peer has complete file, split it into pieces
-                if (hasFile) {
-                    log.info("INIT: Splitting file into {} pieces for seeder {}", totalPieces, peerId);
-                    splitFileIntoPieces(peerId);
-                    bitfield.set(0, totalPieces);
-                    log.info("INIT: Set full bitfield for seeder {}", peerId);
-                }
+                log.info("INIT: Preparing source file ({} pieces) for seeder {}", totalPieces, peerId);
+                openSourceFile(peerId);
+                setAllPieces();
+                log.info("INIT: Set full bitfield for seeder {}", peerId);
             } catch (IOException e) {
-                log.error("INIT ERROR: Failed to split file into pieces: {}", e.getMessage());
+                log.error("INIT ERROR: Failed to prepare source file: {}", e.getMessage());
                 e.printStackTrace();
             }
+        } else if (isSingleFileStorage()) {
+            openDownloadFile(peerId);
+            if (dataFileWritable && !restoreResume(peerId)) {
+                rewriteResume(new BitSet());
+            }
+        } else if (restoreResume(peerId)) {
+            log.info("INIT: Resumed {} pieces for leecher {}", pieceCount(), peerId);
         } else {
             log.info("INIT: Checking for existing pieces for leecher {}", peerId);
             // Check if any pieces already exist in the peer directory
@@ -89,10 +228,101 @@ public class FileService {
                 java.io.File pieceFile = new java.io.File(pieceFileName);
                 if (pieceFile.exists() && pieceFile.length() > 0) {
                     log.info("INIT: Found existing piece {} for peer {}, updating bitfield", i, peerId);
-                    bitfield.set(i);
+                    setPiece(i);
                 }
             }
-            log.info("INIT: Found {} existing pieces for leecher {}", bitfield.cardinality(), peerId);
+            log.info("INIT: Found {} existing pieces for leecher {}", pieceCount(), peerId);
+            
+            // Found pieces are checked once a manifest is known
+            rewriteResume(new BitSet());
+        }
+    }
+    
+    /**
+     * Restores the bitfield from the resume record: one read of the record and one stat of the
+     * storage, however many pieces there are. Pieces stored before the manifest was known, or all of
+     * them if the storage changed since the record was written, are checked against the manifest.
+     *
+     * @return false if there is no record for the current layout
+     */
+    private boolean restoreResume(String peerId) {
+        ResumeFile resume = new ResumeFile(peerDir(peerId).resolve("metadata").resolve(RESUME_FILE));
+        Manifest current = manifest;
+        if (!resume.load(totalPieces, pieceSize, current != null ? current.getContentId() : null)) {
+            return false;
+        }
+        resumeFile = resume;
+        
+        BitSet recorded = resume.getHave();
+        boolean untouched = resume.getStorageStamp() == storageStamp();
+        if (!untouched && current == null && !isSingleFileStorage()) {
+            // Piece files may have been removed and nothing to check them against, rescan instead
+            log.warn("RESUME: Storage of peer {} changed since the last run, rescanning", peerId);
+            resumeFile = null;
+            resume.close();
+            return false;
+        }
+        
+        synchronized (bitfield) {
+            bitfield.or(recorded);
+        }
+        if (fileLength <= 0) {
+            fileLength = resume.getFileLength();
+        }
+        
+        if (current != null) {
+            BitSet unchecked = (BitSet) recorded.clone();
+            if (untouched) {
+                unchecked.andNot(resume.getVerified());
+            }
+            if (!unchecked.isEmpty()) {
+                log.info("RESUME: Checking {} pieces against manifest {}", unchecked.cardinality(), current.getContentId());
+                dropUnverifiedPieces(unchecked);
+                rewriteResume(getBitfield());
+            }
+        }
+        
+        log.info("RESUME: Restored {}/{} pieces for peer {}{}", pieceCount(), totalPieces, peerId,
+                 untouched ? "" : " (storage changed since the last run)");
+        return true;
+    }
+    
+    /**
+     * Replaces the resume record with the current bitfield.
+     */
+    private void rewriteResume(BitSet verified) {
+        if (localPeerId == null) {
+            return;
+        }
+        ResumeFile resume = resumeFile != null ? resumeFile
+            : new ResumeFile(peerDir(localPeerId).resolve("metadata").resolve(RESUME_FILE));
+        try {
+            Manifest current = manifest;
+            resume.rewrite(totalPieces, pieceSize, fileLength, current != null ? current.getContentId() : null,
+                           storageStamp(), getBitfield(), verified);
+            resumeFile = resume;
+        } catch (IOException e) {
+            log.warn("RESUME: Failed to write resume record for peer {}: {}", localPeerId, e.getMessage());
+        }
+    }
+    
+    private void closeResumeFile() {
+        ResumeFile resume = resumeFile;
+        resumeFile = null;
+        if (resume != null) {
+            resume.close();
+        }
+    }
+    
+    /**
+     * Last-modified time of where pieces are stored; it changes whenever a piece is written.
+     */
+    private long storageStamp() {
+        try {
+            Path storage = isSingleFileStorage() && dataFile != null ? dataFile : peerDir(localPeerId);
+            return Files.getLastModifiedTime(storage).toMillis();
+        } catch (IOException e) {
+            return -1;
         }
     }
     
@@ -110,7 +340,7 @@ public class FileService {
             // Try different file path resolutions
             File absoluteFile = new File(currentFileName);
             File relativeFile = new File(".", currentFileName);
-            File peerFile = new File("peer_" + peerId, currentFileName);
+            File peerFile = new File(peerDir(peerId).toFile(), currentFileName);
             
             log.info("PATH RESOLUTION:");
             log.info("- Absolute: {} (exists: {})", absoluteFile.getAbsolutePath(), absoluteFile.exists());
@@ -120,7 +350,7 @@ public class FileService {
             // Check working directory and peer directory
             log.info("DIRECTORIES:");
             log.info("- Working dir: {}", System.getProperty("user.dir"));
-            log.info("- Peer dir exists: {}", new File("peer_" + peerId).exists());
+            log.info("- Peer dir exists: {}", peerDir(peerId).toFile().exists());
             
             // If file exists somewhere, log its size and permissions
             File existingFile = null;
@@ -144,7 +374,12 @@ public class FileService {
         }
     }
     
-    private void splitFileIntoPieces(String peerId) throws IOException {
+    /**
+     * Sets a seeder up to serve its file: finds it, takes the layout from its length and serves
+     * pieces by reading them out of it. Nothing proportional to the file size happens here unless the
+     * seed mode asks for piece copies; a manifest that has to be hashed is hashed in the background.
+     */
+    private void openSourceFile(String peerId) throws IOException {
         // Get provided filename or fall back to default
         String sourceFilePath = config.getFileName();
         
@@ -152,29 +387,29 @@ public class FileService {
         File sourceFile = null;
         File directFile = new File(sourceFilePath);
         File relativeFile = new File(".", sourceFilePath);
-        File peerDirFile = new File("peer_" + peerId, sourceFilePath);
+        File peerDirFile = new File(peerDir(peerId).toFile(), sourceFilePath);
         
-        log.info("SPLIT FILE: Looking for source file '{}' in multiple locations", sourceFilePath);
-        log.info("SPLIT FILE: Direct path: {} (exists: {})", directFile.getAbsolutePath(), directFile.exists());
-        log.info("SPLIT FILE: Relative path: {} (exists: {})", relativeFile.getAbsolutePath(), relativeFile.exists());
-        log.info("SPLIT FILE: Peer dir path: {} (exists: {})", peerDirFile.getAbsolutePath(), peerDirFile.exists());
+        log.info("SEED: Looking for source file '{}' in multiple locations", sourceFilePath);
+        log.info("SEED: Direct path: {} (exists: {})", directFile.getAbsolutePath(), directFile.exists());
+        log.info("SEED: Relative path: {} (exists: {})", relativeFile.getAbsolutePath(), relativeFile.exists());
+        log.info("SEED: Peer dir path: {} (exists: {})", peerDirFile.getAbsolutePath(), peerDirFile.exists());
         
         // Find the first existing file
         if (directFile.exists()) {
             sourceFile = directFile;
             sourceFilePath = directFile.getAbsolutePath();
-            log.info("SPLIT FILE: Using direct path: {}", sourceFilePath);
+            log.info("SEED: Using direct path: {}", sourceFilePath);
         } else if (relativeFile.exists()) {
             sourceFile = relativeFile;
             sourceFilePath = relativeFile.getAbsolutePath();
-            log.info("SPLIT FILE: Using relative path: {}", sourceFilePath);
+            log.info("SEED: Using relative path: {}", sourceFilePath);
         } else if (peerDirFile.exists()) {
             sourceFile = peerDirFile;
             sourceFilePath = peerDirFile.getAbsolutePath();
-            log.info("SPLIT FILE: Using peer dir path: {}", sourceFilePath);
+            log.info("SEED: Using peer dir path: {}", sourceFilePath);
         } else {
             // Look in all peer directories
-            log.info("SPLIT FILE: Looking in all peer directories");
+            log.info("SEED: Looking in all peer directories");
             File peersRoot = new File(".");
             File[] peerDirs = peersRoot.listFiles(file -> 
                 file.isDirectory() && file.getName().startsWith("peer_"));
@@ -185,7 +420,7 @@ public class FileService {
                     if (possibleFile.exists()) {
                         sourceFile = possibleFile;
                         sourceFilePath = possibleFile.getAbsolutePath();
-                        log.info("SPLIT FILE: Found in peer directory: {}", sourceFilePath);
+                        log.info("SEED: Found in peer directory: {}", sourceFilePath);
                         break;
                     }
                 }
@@ -193,14 +428,14 @@ public class FileService {
         }
         
         // Save original filename to metadata
-        Path fileNamePath = Paths.get("peer_" + peerId, "metadata", "filename");
+        Path fileNamePath = peerDir(peerId).resolve("metadata").resolve("filename");
         Files.write(fileNamePath, sourceFilePath.getBytes());
         
         // Set internal filename tracking to the actual found location
         currentFileName = sourceFilePath;
         
         if (sourceFile == null || !sourceFile.exists()) {
-            log.error("SPLIT FILE ERROR: Source file not found in any location: {}", sourceFilePath);
+            log.error("SEED ERROR: Source file not found in any location: {}", sourceFilePath);
             
             // As a last resort, ask the user to provide it
             log.info("MANUAL INTERVENTION NEEDED: Please place the file '{}' in the current directory", config.getFileName());
@@ -208,41 +443,141 @@ public class FileService {
             return;
         }
         
-        log.info("SPLIT FILE: Beginning to split file {} into {} pieces", sourceFilePath, totalPieces);
+        // The layout follows from the length; the hashes from a manifest we already have or, failing
+        // that, from hashing the file in the background
+        fileLength = sourceFile.length();
+        totalPieces = ManifestService.pieceCount(fileLength, pieceSize);
+        manifestFromSource = true;
+        Manifest known = knownSourceManifest(peerId, sourceFile.toPath());
+        if (known != null) {
+            useManifest(known);
+            manifestService.save(peerDir(peerId), known);
+        } else {
+            hashSourceFile(peerId, sourceFile.toPath());
+        }
+        
+        if (isSingleFileStorage() || config.getSeedMode() != TorrentConfig.SeedMode.COPY) {
+            // No copy needed, pieces are read straight out of the source file
+            openDataFile(sourceFile.toPath(), false);
+            log.info("SEED: Serving {} pieces directly from {} ({} bytes)", totalPieces, sourceFilePath, fileLength);
+            return;
+        }
+        
+        log.info("SEED: Beginning to split file {} into {} pieces", sourceFilePath, totalPieces);
         
         try (RandomAccessFile raf = new RandomAccessFile(sourceFile, "r")) {
             long fileSize = raf.length();
-            int pieceSize = config.getPieceSize();
             
-            log.info("SPLIT FILE: File size: {} bytes, piece size: {} bytes", fileSize, pieceSize);
+            log.info("SEED: File size: {} bytes, piece size: {} bytes", fileSize, pieceSize);
             
             for (int i = 0; i < totalPieces; i++) {
-                int currentPieceSize = (int) Math.min(pieceSize, fileSize - i * pieceSize);
+                int currentPieceSize = (int) Math.min(pieceSize, fileSize - (long) i * pieceSize);
                 byte[] piece = new byte[currentPieceSize];
                 
-                raf.seek(i * pieceSize);
+                raf.seek((long) i * pieceSize);
                 raf.readFully(piece, 0, currentPieceSize);
                 
-                // Store piece in memory
-                pieceMap.put(i, piece);
+                // Keep the piece in memory while the cache has room
+                pieceCache.put(cacheSpace, i, piece);
                 
                 // Save piece to disk
                 savePieceToDisk(peerId, i, piece);
                 
                 if (i % 10 == 0 || i == totalPieces - 1) {
-                    log.info("SPLIT FILE: Processed {}/{} pieces", i+1, totalPieces);
+                    log.info("SEED: Processed {}/{} pieces", i+1, totalPieces);
                 }
             }
             
-            log.info("SPLIT FILE: Successfully split file into {} pieces", totalPieces);
+            log.info("SEED: Successfully split file into {} pieces", totalPieces);
         } catch (Exception e) {
-            log.error("SPLIT FILE ERROR: Failed to split file: {}", e.getMessage(), e);
+            log.error("SEED ERROR: Failed to split file: {}", e.getMessage(), e);
             throw new IOException("Failed to split file", e);
         }
     }
     
+    /**
+     * A manifest of the source file that needs no hashing: the one handed over by the caller, or the
+     * one saved by an earlier run if it was written after the file was last modified.
+     */
+    private Manifest knownSourceManifest(String peerId, Path source) throws IOException {
+        long length = Files.size(source);
+        Manifest handedOver = sourceManifest;
+        sourceManifest = null;
+        if (handedOver != null && handedOver.getFileLength() == length && handedOver.getPieceSize() == pieceSize) {
+            return handedOver;
+        }
+        
+        Path savedFile = peerDir(peerId).resolve("metadata").resolve(ManifestService.MANIFEST_FILE);
+        Manifest saved = manifestService.load(peerDir(peerId));
+        if (saved != null && saved.getFileLength() == length && saved.getPieceSize() == pieceSize
+                && source.getFileName().toString().equals(saved.getFileName())
+                && Files.getLastModifiedTime(savedFile).compareTo(Files.getLastModifiedTime(source)) >= 0) {
+            log.info("SEED: Reusing manifest {} of {}", saved.getContentId(), source);
+            return saved;
+        }
+        return null;
+    }
+    
+    /**
+     * Hashes the source file in the background, so seeding starts right away. Pieces go out
+     * unverified until the manifest is ready; then the listener sends it to the peers. Called from
+     * {@link #initialize}, which holds the monitor the result is handed over under.
+     */
+    private void hashSourceFile(String peerId, Path source) {
+        int generation = seedGeneration;
+        int hashPieceSize = pieceSize;
+        manifestHasher.execute(() -> {
+            try {
+                FileTime modified = Files.getLastModifiedTime(source);
+                Manifest hashed = manifestService.build(source, source.getFileName().toString(), hashPieceSize);
+                if (!modified.equals(Files.getLastModifiedTime(source))) {
+                    log.warn("SEED: {} changed while it was hashed, not using the manifest", source);
+                    return;
+                }
+                synchronized (FileService.this) {
+                    if (generation != seedGeneration) {
+                        log.info("SEED: Discarding the manifest of {}, the service was re-initialized", source);
+                        return;
+                    }
+                    manifestService.save(peerDir(peerId), hashed);
+                    useManifest(hashed);
+                }
+                Consumer<Manifest> listener = manifestListener;
+                if (listener != null) {
+                    listener.accept(hashed);
+                }
+            } catch (IOException e) {
+                log.error("SEED ERROR: Failed to hash {}: {}", source, e.getMessage(), e);
+            }
+        });
+        log.info("SEED: Hashing {} in the background", source);
+    }
+    
+    private static ThreadPoolExecutor newManifestHasher() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                                                             runnable -> {
+            Thread thread = new Thread(runnable, "manifest-hasher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+    
     public void savePieceToDisk(String peerId, int pieceIndex, byte[] data) {
-        String peerDir = "peer_" + peerId;
+        if (isSingleFileStorage() && peerId.equals(localPeerId) && dataChannel != null) {
+            writePieceToDataFile(pieceIndex, data);
+            return;
+        }
+        
+        writePieceFile(peerId, pieceIndex, data, data.length);
+    }
+    
+    /**
+     * @return false if the piece could not be written
+     */
+    private boolean writePieceFile(String peerId, int pieceIndex, byte[] data, int length) {
+        String peerDir = peerDir(peerId).toString();
         String pieceFileName = peerDir + "/piece_" + pieceIndex;
         
         // Create parent directory if it doesn't exist
@@ -252,19 +587,15 @@ public class FileService {
             log.error("Failed to create directory for peer {}", peerId, e);
         }
         
+        long startedAt = System.nanoTime();
         try (FileOutputStream fos = new FileOutputStream(pieceFileName)) {
-            fos.write(data);
-            
-            // If this is video data, immediately sync to disk for better streaming
-            if (currentFileName != null && 
-                (currentFileName.toLowerCase().endsWith(".mp4") || 
-                 currentFileName.toLowerCase().endsWith(".webm") ||
-                 currentFileName.toLowerCase().endsWith(".mov"))) {
-                fos.getFD().sync();
-                log.debug("Synced video piece {} to disk", pieceIndex);
-            }
+            fos.write(data, 0, length);
+            return true;
         } catch (IOException e) {
             log.error("Failed to save piece {} to disk", pieceIndex, e);
+            return false;
+        } finally {
+            transferMetrics.diskWrite("piece_file", System.nanoTime() - startedAt);
         }
     }
     
@@ -276,30 +607,47 @@ public class FileService {
         }
         
         // Try to get from memory
-        byte[] piece = pieceMap.get(pieceIndex);
+        byte[] piece = pieceCache.get(cacheSpace, pieceIndex);
         
         if (piece != null) {
             log.debug("Found piece {} in memory cache", pieceIndex);
             return piece;
         }
         
+        // Received, but the disk writer has not got to it yet
+        piece = unwritten.get(pieceIndex);
+        if (piece != null) {
+            return piece;
+        }
+        
+        // Not in memory, read it from the data file (or the file we seed) if we have it there
+        if (dataFile != null && peerId.equals(localPeerId) && hasPiece(pieceIndex)) {
+            byte[] data = readPieceFromDataFile(pieceIndex);
+            if (data != null && data.length > 0) {
+                pieceCache.put(cacheSpace, pieceIndex, data);
+                return data;
+            }
+        }
+        
         // Not in memory, try to get from disk
-        String peerDir = "peer_" + peerId;
+        String peerDir = peerDir(peerId).toString();
         String pieceFileName = peerDir + "/piece_" + pieceIndex;
         try {
             Path path = Paths.get(pieceFileName);
             if (Files.exists(path)) {
+                long startedAt = System.nanoTime();
                 byte[] data = Files.readAllBytes(path);
+                transferMetrics.diskRead("piece_file", System.nanoTime() - startedAt);
                 if (data.length > 0) {
                     log.info("Loaded piece {} from disk for peer {}, size: {}", 
                              pieceIndex, peerId, data.length);
                     
                     // Cache the piece in memory for future requests
-                    pieceMap.put(pieceIndex, data);
+                    pieceCache.put(cacheSpace, pieceIndex, data);
                     
                     // Update bitfield to reflect we have this piece
-                    if (bitfield != null && !bitfield.get(pieceIndex)) {
-                        bitfield.set(pieceIndex);
+                    if (!hasPiece(pieceIndex)) {
+                        markPieceAvailable(pieceIndex);
                         log.info("Updated bitfield for piece {} that was found on disk", pieceIndex);
                     }
                     
@@ -329,33 +677,31 @@ public class FileService {
             if (isSeeder && sourceFile.exists()) {
                 log.info("This peer is a seeder, generating piece {} from source file '{}'", pieceIndex, sourceFilePath);
                 try (RandomAccessFile raf = new RandomAccessFile(sourceFile, "r")) {
-                    int pieceSize = config.getPieceSize();
                     long fileSize = raf.length();
                     
                     log.info("Source file size: {}, piece size: {}, total pieces: {}", 
                              fileSize, pieceSize, totalPieces);
                     
                     // Ensure piece index is valid for the file size
-                    if (pieceIndex * pieceSize < fileSize) {
-                        int currentPieceSize = (int) Math.min(pieceSize, fileSize - pieceIndex * pieceSize);
+                    long position = (long) pieceIndex * pieceSize;
+                    if (position < fileSize) {
+                        int currentPieceSize = (int) Math.min(pieceSize, fileSize - position);
                         byte[] newPiece = new byte[currentPieceSize];
                         
-                        raf.seek(pieceIndex * pieceSize);
+                        raf.seek(position);
                         raf.readFully(newPiece, 0, currentPieceSize);
                         
                         log.info("Successfully read piece {} from source file, size: {}", 
                                 pieceIndex, currentPieceSize);
                         
                         // Store piece in memory
-                        pieceMap.put(pieceIndex, newPiece);
+                        pieceCache.put(cacheSpace, pieceIndex, newPiece);
                         
                         // Save piece to disk
                         savePieceToDisk(peerId, pieceIndex, newPiece);
                         
                         // Update bitfield
-                        if (bitfield != null) {
-                            bitfield.set(pieceIndex);
-                        }
+                        markPieceAvailable(pieceIndex);
                         
                         log.info("Generated piece {} from source file (size: {})", pieceIndex, currentPieceSize);
                         return newPiece;
@@ -382,7 +728,7 @@ public class FileService {
                     String otherPeerId = peerDir1.getName().substring("peer_".length());
                     if (otherPeerId.equals(peerId)) continue; // Skip current peer
                     
-                    String otherPiecePath = peerDir1.getPath() + "/piece_" + pieceIndex;
+                    String otherPiecePath = peerDir(otherPeerId).resolve("piece_" + pieceIndex).toString();
                     File otherPieceFile = new File(otherPiecePath);
                     
                     if (otherPieceFile.exists() && otherPieceFile.length() > 0) {
@@ -394,13 +740,11 @@ public class FileService {
                             savePieceToDisk(peerId, pieceIndex, pieceData);
                             
                             // Cache the piece in memory
-                            pieceMap.put(pieceIndex, pieceData);
+                            pieceCache.put(cacheSpace, pieceIndex, pieceData);
                             
                             // Update bitfield
-                            if (bitfield != null) {
-                                bitfield.set(pieceIndex);
-                                log.info("Updated bitfield after copying piece {} from peer {}", pieceIndex, otherPeerId);
-                            }
+                            markPieceAvailable(pieceIndex);
+                            log.info("Updated bitfield after copying piece {} from peer {}", pieceIndex, otherPeerId);
                             
                             return pieceData;
                         } catch (IOException e) {
@@ -416,26 +760,24 @@ public class FileService {
                 log.warn("Last resort: Trying to generate piece {} from source file '{}' even though we're not marked as a seeder", 
                         pieceIndex, sourceFilePath);
                 try (RandomAccessFile raf = new RandomAccessFile(sourceFile, "r")) {
-                    int pieceSize = config.getPieceSize();
                     long fileSize = raf.length();
                     
-                    if (pieceIndex * pieceSize < fileSize) {
-                        int currentPieceSize = (int) Math.min(pieceSize, fileSize - pieceIndex * pieceSize);
+                    long position = (long) pieceIndex * pieceSize;
+                    if (position < fileSize) {
+                        int currentPieceSize = (int) Math.min(pieceSize, fileSize - position);
                         byte[] newPiece = new byte[currentPieceSize];
                         
-                        raf.seek(pieceIndex * pieceSize);
+                        raf.seek(position);
                         raf.readFully(newPiece, 0, currentPieceSize);
                         
                         // Store piece in memory
-                        pieceMap.put(pieceIndex, newPiece);
+                        pieceCache.put(cacheSpace, pieceIndex, newPiece);
                         
                         // Save piece to disk
                         savePieceToDisk(peerId, pieceIndex, newPiece);
                         
                         // Update bitfield
-                        if (bitfield != null) {
-                            bitfield.set(pieceIndex);
-                        }
+                        markPieceAvailable(pieceIndex);
                         
                         log.info("Last resort: Generated piece {} from source file (size: {})", pieceIndex, currentPieceSize);
                         return newPiece;
@@ -472,17 +814,333 @@ public class FileService {
             return;
         }
         
-        // Store piece in memory
-        pieceMap.put(pieceIndex, data);
+        if (hasPiece(pieceIndex)) {
+            log.debug("Ignoring piece {}, already stored", pieceIndex);
+            return;
+        }
+        
+        Manifest current = manifest;
+        if (current != null && !manifestService.verify(current, pieceIndex, data)) {
+            log.warn("Discarding piece {} for peer {}: content does not match manifest {}",
+                     pieceIndex, peerId, current.getContentId());
+            return;
+        }
+        
+        // Hand it to the disk writer; it can be served right away, but is only announced once durable.
+        // Checked again under the lock, in endgame two peers can complete the same piece at once.
+        synchronized (bitfield) {
+            if (bitfield.get(pieceIndex)) {
+                log.debug("Ignoring piece {}, stored in the meantime", pieceIndex);
+                return;
+            }
+            unwritten.put(pieceIndex, data);
+            synchronized (notDurable) {
+                notDurable.set(pieceIndex);
+            }
+            bitfield.set(pieceIndex);
+        }
+        pieceCache.put(cacheSpace, pieceIndex, data);
+        piecePicker.pieceCompleted(pieceIndex);
+        pieceArrived();
+        diskWriter.submit(pieceWrites, peerId, pieceIndex, data, current != null);
+        
+        if (log.isDebugEnabled()) {
+            log.debug("Updated bitfield after receiving piece {}, new bitfield: {}", 
+                     pieceIndex, bitfieldToString(getBitfield()));
+        }
+    }
+    
+    /**
+     * Stores an uploaded file for a peer in a single pass over the stream. The file is written to
+     * {@code peer_<id>/<fileName>} (plus piece_N files in piece-files mode) through one reusable
+     * piece-sized buffer, and each piece is hashed as it goes by. The resulting manifest is saved
+     * to {@code metadata/manifest.json}.
+     *
+     * @throws IOException if the stream fails or is longer than {@code maxBytes}
+     */
+    public Manifest storeUpload(String peerId, String fileName, InputStream in, long maxBytes) throws IOException {
+        Path peerDir = peerDir(peerId);
+        Files.createDirectories(peerDir.resolve("metadata"));
+        
+        Path target = peerDir.resolve(Paths.get(fileName).getFileName().toString());
+        Path partFile = target.resolveSibling(target.getFileName() + ".part");
         
-        // Save piece to disk
-        savePieceToDisk(peerId, pieceIndex, data);
+        int pieceSize = config.getPieceSize();
+        byte[] buffer = new byte[pieceSize];
+        MessageDigest digest = ManifestService.sha256();
+        List<String> pieceHashes = new ArrayList<>();
+        long total = 0;
         
-        // Update bitfield
-        bitfield.set(pieceIndex);
+        try (FileChannel out = FileChannel.open(partFile, StandardOpenOption.CREATE,
+                                                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            int filled;
+            while ((filled = readPiece(in, buffer)) > 0) {
+                total += filled;
+                if (total > maxBytes) {
+                    throw new IOException("Upload exceeds the limit of " + maxBytes + " bytes");
+                }
+                
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, filled);
+                while (chunk.hasRemaining()) {
+                    out.write(chunk);
+                }
+                if (!isSingleFileStorage() && !writePieceFile(peerId, pieceHashes.size(), buffer, filled)) {
+                    throw new IOException("Failed to store piece " + pieceHashes.size() + " of " + fileName);
+                }
+                
+                digest.update(buffer, 0, filled);
+                pieceHashes.add(ManifestService.toHex(digest.digest()));
+                
+                if (pieceHashes.size() % 10 == 0) {
+                    log.info("UPLOAD: Stored {} pieces ({} bytes) of {}", pieceHashes.size(), total, fileName);
+                }
+            }
+            out.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(partFile);
+            throw e;
+        }
         
-        log.debug("Updated bitfield after receiving piece {}, new bitfield: {}", 
-                 pieceIndex, bitfieldToString(bitfield));
+        Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Manifest uploaded = manifestService.fromHashes(target.getFileName().toString(), total, pieceSize, pieceHashes);
+        manifestService.save(peerDir, uploaded);
+        
+        log.info("UPLOAD: Stored {} ({} bytes, {} pieces, content {}) for peer {}",
+                 target, total, pieceHashes.size(), uploaded.getContentId(), peerId);
+        return uploaded;
+    }
+    
+    /**
+     * Fills the buffer from the stream, stopping early only at end of stream.
+     */
+    private static int readPiece(InputStream in, byte[] buffer) throws IOException {
+        int filled = 0;
+        while (filled < buffer.length) {
+            int read = in.read(buffer, filled, buffer.length - filled);
+            if (read < 0) {
+                break;
+            }
+            filled += read;
+        }
+        return filled;
+    }
+    
+    public Manifest getManifest() {
+        return manifest;
+    }
+    
+    /**
+     * Adopts the manifest a peer sent with its HANDSHAKE or BITFIELD if we have none yet. From then on
+     * the swarm is pinned to it, as it is to the manifest it was joined with or the one we seed, and a
+     * peer announcing any other content is refused instead of resetting what we have. On adoption,
+     * pieces stored under a different layout are dropped, pieces kept are checked against the hashes.
+     */
+    public synchronized ManifestMatch applyManifest(Manifest remote) {
+        Manifest current = manifest;
+        if (remote == null || (current != null && current.getContentId().equals(remote.getContentId()))) {
+            return ManifestMatch.SAME;
+        }
+        if (!manifestService.isConsistent(remote)) {
+            log.warn("MANIFEST: Refusing inconsistent manifest {}", remote.getContentId());
+            return ManifestMatch.MISMATCH;
+        }
+        if (current != null) {
+            log.warn("MANIFEST: Refusing manifest {}, this swarm is pinned to {}", remote.getContentId(),
+                     current.getContentId());
+            return ManifestMatch.MISMATCH;
+        }
+        if (manifestFromSource) {
+            // Our own manifest is still being hashed, nothing to check the peer's against yet
+            log.info("MANIFEST: Not adopting manifest {}, we seed {}", remote.getContentId(), currentFileName);
+            return ManifestMatch.SAME;
+        }
+        
+        boolean sameLayout = remote.getPieceCount() == totalPieces && remote.getPieceSize() == pieceSize;
+        int previousPieces = totalPieces;
+        useManifest(remote);
+        partialPieces.clear();
+        pieceCache.clear(cacheSpace);
+        try {
+            manifestService.save(peerDir(localPeerId), remote);
+        } catch (IOException e) {
+            log.warn("MANIFEST: Failed to save manifest {}: {}", remote.getContentId(), e.getMessage());
+        }
+        
+        if (!sameLayout) {
+            clearPieces();
+            if (isSingleFileStorage()) {
+                closeDataFile();
+                openDownloadFile(localPeerId);
+            } else {
+                for (int i = 0; i < previousPieces; i++) {
+                    try {
+                        Files.deleteIfExists(peerDir(localPeerId).resolve("piece_" + i));
+                    } catch (IOException e) {
+                        log.warn("MANIFEST: Failed to drop stale piece {}: {}", i, e.getMessage());
+                    }
+                }
+            }
+        }
+        dropUnverifiedPieces(getBitfield());
+        if (resumeFile != null) {
+            rewriteResume(getBitfield());
+        }
+        
+        log.info("MANIFEST: Adopted {} ({} bytes, {} pieces of {} bytes), keeping {} pieces",
+                 remote.getContentId(), fileLength, totalPieces, pieceSize, pieceCount());
+        return ManifestMatch.ADOPTED;
+    }
+    
+    private void useManifest(Manifest adopted) {
+        manifest = adopted;
+        totalPieces = adopted.getPieceCount();
+        pieceSize = adopted.getPieceSize();
+        fileLength = adopted.getFileLength();
+    }
+    
+    private void dropUnverifiedPieces(BitSet candidates) {
+        BitSet pieces = (BitSet) candidates.clone();
+        for (int i = pieces.nextSetBit(0); i >= 0; i = pieces.nextSetBit(i + 1)) {
+            byte[] data = unwritten.get(i);
+            if (data == null) {
+                data = isSingleFileStorage() ? readPieceFromDataFile(i) : readPieceFile(i);
+            }
+            if (data == null || !manifestService.verify(manifest, i, data)) {
+                log.warn("MANIFEST: Dropping piece {}, it does not match the manifest", i);
+                synchronized (bitfield) {
+                    bitfield.clear(i);
+                }
+                if (!isSingleFileStorage()) {
+                    try {
+                        Files.deleteIfExists(peerDir(localPeerId).resolve("piece_" + i));
+                    } catch (IOException e) {
+                        log.warn("MANIFEST: Failed to drop piece file {}: {}", i, e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+    
+    private byte[] readPieceFile(int pieceIndex) {
+        try {
+            Path pieceFile = peerDir(localPeerId).resolve("piece_" + pieceIndex);
+            if (!Files.exists(pieceFile)) {
+                return null;
+            }
+            long startedAt = System.nanoTime();
+            byte[] data = Files.readAllBytes(pieceFile);
+            transferMetrics.diskRead("piece_file", System.nanoTime() - startedAt);
+            return data;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    public int getPieceSize() {
+        return pieceSize;
+    }
+    
+    /**
+     * @return the length of the shared file, 0 while a leecher does not know it yet
+     */
+    public long getFileLength() {
+        return fileLength;
+    }
+    
+    /**
+     * Expected length of a piece. Until the file length is known every piece is assumed to be
+     * full size; a short final block then trims the last piece (see {@link PartialPiece#write}).
+     */
+    public int getPieceLength(int pieceIndex) {
+        if (fileLength <= 0) {
+            return pieceSize;
+        }
+        return (int) Math.max(0, Math.min(pieceSize, fileLength - (long) pieceIndex * pieceSize));
+    }
+    
+    public int getBlockSize() {
+        return config.getBlockSize();
+    }
+    
+    public int getBlockLength(int pieceIndex, int offset) {
+        return Math.max(0, Math.min(config.getBlockSize(), getPieceLength(pieceIndex) - offset));
+    }
+    
+    /**
+     * Returns the in-progress piece for this index, creating it on first use. The piece picker
+     * stops offering it as a new piece from now on.
+     */
+    public PartialPiece startPiece(int pieceIndex) {
+        PartialPiece partial = partialPieces.computeIfAbsent(pieceIndex,
+            index -> new PartialPiece(index, getPieceLength(index), config.getBlockSize(),
+                                      fileLength > 0 || index < totalPieces - 1));
+        piecePicker.pieceStarted(pieceIndex);
+        return partial;
+    }
+    
+    public PartialPiece getPartialPiece(int pieceIndex) {
+        return partialPieces.get(pieceIndex);
+    }
+    
+    public Collection<PartialPiece> getPartialPieces() {
+        return new ArrayList<>(partialPieces.values());
+    }
+    
+    /**
+     * Stores one block of a piece. The piece only enters the bitfield (via {@link #receivePiece})
+     * once all of its blocks have arrived.
+     *
+     * @return true if this block completed the piece
+     */
+    public boolean receiveBlock(String peerId, int pieceIndex, int offset, byte[] data) {
+        if (pieceIndex < 0 || pieceIndex >= totalPieces) {
+            log.error("Invalid piece index {} for received block (total pieces: {})", pieceIndex, totalPieces);
+            return false;
+        }
+        if (hasPiece(pieceIndex)) {
+            log.debug("Ignoring block {}@{}, piece already complete", pieceIndex, offset);
+            return false;
+        }
+        
+        PartialPiece partial = startPiece(pieceIndex);
+        boolean complete;
+        try {
+            complete = partial.write(offset, data != null ? data : new byte[0]);
+        } catch (IllegalArgumentException e) {
+            log.error("Rejected block for piece {}: {}", pieceIndex, e.getMessage());
+            return false;
+        }
+        
+        log.debug("Received block {}@{} ({} bytes), {}/{} blocks", pieceIndex, offset,
+                  data != null ? data.length : 0, partial.getReceivedBlockCount(), partial.getBlockCount());
+        
+        if (!complete || !partialPieces.remove(pieceIndex, partial)) {
+            return false;
+        }
+        
+        receivePiece(peerId, new FilePiece(pieceIndex, partial.getData()));
+        if (!hasPiece(pieceIndex)) {
+            // Failed verification, the piece starts over
+            piecePicker.pieceAbandoned(pieceIndex);
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Adds a piece that is already on disk; received pieces go through the disk writer instead.
+     */
+    private void markPieceAvailable(int pieceIndex) {
+        if (!setPiece(pieceIndex)) {
+            return;
+        }
+        piecePicker.pieceCompleted(pieceIndex);
+        pieceArrived();
+        
+        ResumeFile resume = resumeFile;
+        if (resume != null) {
+            resume.updatePiece(pieceIndex, false, fileLength, storageStamp());
+        }
     }
     
     private String bitfieldToString(BitSet bitfield) {
@@ -494,46 +1152,129 @@ public class FileService {
     }
     
     public BitSet getBitfield() {
-        // Ensure bitfield is initialized
-        if (bitfield == null) {
-            bitfield = new BitSet(totalPieces);
-            log.warn("Bitfield was null, initializing empty bitfield with {} pieces", totalPieces);
+        synchronized (bitfield) {
+            return (BitSet) bitfield.clone();
         }
-        return (BitSet) bitfield.clone();
     }
     
-    public void resetBitfield() {
-        if (bitfield != null) {
+    /**
+     * Adds a piece to the bitfield.
+     *
+     * @return false if it was there already
+     */
+    private boolean setPiece(int pieceIndex) {
+        synchronized (bitfield) {
+            if (bitfield.get(pieceIndex)) {
+                return false;
+            }
+            bitfield.set(pieceIndex);
+            return true;
+        }
+    }
+    
+    private void setAllPieces() {
+        synchronized (bitfield) {
+            bitfield.set(0, totalPieces);
+        }
+    }
+    
+    private void clearPieces() {
+        synchronized (bitfield) {
             bitfield.clear();
-            log.info("Bitfield reset to 0 pieces");
         }
     }
     
-    public boolean hasCompletedDownload() {
-        // Re-scan the piece directory to ensure our bitfield matches reality
-        if (currentFileName != null && localPeerId != null) {
-            String peerDir = "peer_" + localPeerId;
-            // First make sure directory exists
-            java.io.File directory = new java.io.File(peerDir);
-            if (!directory.exists()) {
-                directory.mkdirs();
+    private int pieceCount() {
+        synchronized (bitfield) {
+            return bitfield.cardinality();
+        }
+    }
+    
+    /**
+     * The pieces we announce to peers: the bitfield without pieces that are not durable yet.
+     */
+    public BitSet getDurableBitfield() {
+        BitSet durable = getBitfield();
+        synchronized (notDurable) {
+            durable.andNot(notDurable);
+        }
+        return durable;
+    }
+    
+    /**
+     * @return true once every piece is received and durable, i.e. the download can be completed
+     */
+    public boolean isDownloadDurable() {
+        synchronized (notDurable) {
+            if (!notDurable.isEmpty()) {
+                return false;
             }
-            
-            for (int i = 0; i < totalPieces; i++) {
-                String pieceFileName = peerDir + "/piece_" + i;
-                java.io.File pieceFile = new java.io.File(pieceFileName);
-                if (pieceFile.exists() && pieceFile.length() > 0 && !bitfield.get(i)) {
-                    log.info("Found piece {} on disk that wasn't in bitfield, updating", i);
-                    bitfield.set(i);
+        }
+        return hasCompletedDownload();
+    }
+    
+    /**
+     * Called with the received pieces that became durable, on the disk writer's thread.
+     */
+    public void setDurableListener(Consumer<List<Integer>> durableListener) {
+        this.durableListener = durableListener;
+    }
+    
+    /**
+     * Called with the manifest of the file we seed when it had to be hashed, once it is ready.
+     */
+    public void setManifestListener(Consumer<Manifest> manifestListener) {
+        this.manifestListener = manifestListener;
+    }
+    
+    public void resetBitfield() {
+        clearPieces();
+        if (resumeFile != null) {
+            rewriteResume(new BitSet());
+        }
+        log.info("Bitfield reset to 0 pieces");
+    }
+    
+    public boolean hasPiece(int pieceIndex) {
+        if (pieceIndex < 0 || pieceIndex >= totalPieces) {
+            return false;
+        }
+        synchronized (bitfield) {
+            return bitfield.get(pieceIndex);
+        }
+    }
+    
+    /**
+     * Waits until the piece is in the bitfield. It can be read with {@link #getPiece} from then on,
+     * even before the disk writer got to it.
+     *
+     * @return false if it did not arrive within the timeout
+     */
+    public boolean awaitPiece(int pieceIndex, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (pieceArrival) {
+            while (!hasPiece(pieceIndex)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
                 }
+                pieceArrival.wait(remaining);
             }
         }
-        
-        boolean result = bitfield != null && bitfield.cardinality() == totalPieces;
-        log.info("Download status check: has {}/{} pieces, complete: {}", 
-                 bitfield != null ? bitfield.cardinality() : 0, 
-                 totalPieces, 
-                 result);
+        return true;
+    }
+    
+    private void pieceArrived() {
+        synchronized (pieceArrival) {
+            pieceArrival.notifyAll();
+        }
+    }
+    
+    public boolean hasCompletedDownload() {
+        // Every stored or received piece enters the bitfield, so it is authoritative
+        int have = pieceCount();
+        boolean result = have == totalPieces;
+        log.debug("Download status check: has {}/{} pieces, complete: {}", have, totalPieces, result);
         return result;
     }
     
@@ -552,15 +1293,24 @@ public class FileService {
     }
     
     public void mergeFile(String peerId) {
+        // Queued pieces have to be in place before the file is completed
+        diskWriter.flush();
+        
+        if (isSingleFileStorage() && peerId.equals(localPeerId)) {
+            // Pieces already sit at their final offsets, completing is just a rename
+            completeDownloadFile();
+            return;
+        }
+        
         // Allow merging even if download is incomplete
         if (!hasCompletedDownload()) {
             log.warn("Merging file even though download is not complete (has {} of {} pieces)", 
-                    bitfield.cardinality(), totalPieces);
+                    pieceCount(), totalPieces);
         }
         
         log.info("Merging pieces from peer {} into complete file", peerId);
         
-        String peerDir = "peer_" + peerId;
+        String peerDir = peerDir(peerId).toString();
         // Make sure directory exists
         java.io.File directory = new java.io.File(peerDir);
         if (!directory.exists()) {
@@ -613,15 +1363,480 @@ public class FileService {
                 }
             }
             log.info("Successfully merged file {} for peer {}", fileName, peerId);
+            
+            // The merged file changed the piece directory, it is not a sign of tampering
+            ResumeFile resume = resumeFile;
+            if (resume != null && peerId.equals(localPeerId)) {
+                resume.updateStamp(storageStamp());
+            }
         } catch (IOException e) {
             log.error("Failed to merge file for peer {}", peerId, e);
         }
     }
     
+    /**
+     * Locates a piece on disk without reading it.
+     *
+     * @return the region holding the piece, or null if the peer has no copy of it on disk
+     */
+    public PieceRegion getPieceRegion(String peerId, int pieceIndex) {
+        if (pieceIndex < 0 || pieceIndex >= totalPieces) {
+            return null;
+        }
+        if (peerId.equals(localPeerId) && unwritten.containsKey(pieceIndex)) {
+            // Not on disk yet, only getPiece has it
+            return null;
+        }
+        
+        try {
+            long position = (long) pieceIndex * pieceSize;
+            if (peerId.equals(localPeerId) && dataFile != null) {
+                if (!hasPiece(pieceIndex)) {
+                    return null;
+                }
+                long length = Math.min(getPieceLength(pieceIndex), Files.size(dataFile) - position);
+                return length > 0 ? new PieceRegion(dataFile, position, length) : null;
+            }
+            
+            Path pieceFile = peerDir(peerId).resolve("piece_" + pieceIndex);
+            if (Files.exists(pieceFile) && Files.size(pieceFile) > 0) {
+                return new PieceRegion(pieceFile, 0, Files.size(pieceFile));
+            }
+            
+            // Another peer in this working directory that keeps the whole file
+            Path completeFile = findCompleteFile(peerId);
+            if (completeFile != null) {
+                long length = Math.min(pieceSize, Files.size(completeFile) - position);
+                return length > 0 ? new PieceRegion(completeFile, position, length) : null;
+            }
+        } catch (IOException e) {
+            log.error("Failed to locate piece {} for peer {}: {}", pieceIndex, peerId, e.getMessage());
+        }
+        return null;
+    }
+    
+    /**
+     * Reads {@code [offset, offset + length)} of a local piece, clipped to the piece, without loading
+     * the rest of it: straight from memory if the piece is there, otherwise with one positional read
+     * of the data file or the piece file.
+     *
+     * @return the block, empty if {@code offset} is at or past the end of the piece, or null if the
+     *         piece is not here
+     */
+    public byte[] readBlock(int pieceIndex, int offset, int length) {
+        if (pieceIndex < 0 || pieceIndex >= totalPieces || !hasPiece(pieceIndex)) {
+            return null;
+        }
+        
+        byte[] piece = pieceCache.get(cacheSpace, pieceIndex);
+        if (piece == null) {
+            piece = unwritten.get(pieceIndex);
+        }
+        if (piece != null) {
+            int from = Math.min(Math.max(offset, 0), piece.length);
+            return Arrays.copyOfRange(piece, from, (int) Math.min((long) from + Math.max(length, 0), piece.length));
+        }
+        
+        int pieceLength = getPieceLength(pieceIndex);
+        int from = Math.min(Math.max(offset, 0), pieceLength);
+        int blockLength = Math.min(Math.max(length, 0), pieceLength - from);
+        
+        dataFileLock.readLock().lock();
+        try {
+            if (dataChannel != null) {
+                long startedAt = System.nanoTime();
+                byte[] block = readFully(dataChannel, (long) pieceIndex * pieceSize + from, blockLength);
+                transferMetrics.diskRead("data_file", System.nanoTime() - startedAt);
+                return block;
+            }
+        } catch (IOException e) {
+            log.error("Failed to read piece {} block @{} from {}", pieceIndex, offset, dataFile, e);
+            return null;
+        } finally {
+            dataFileLock.readLock().unlock();
+        }
+        
+        Path pieceFile = peerDir(localPeerId).resolve("piece_" + pieceIndex);
+        try (FileChannel channel = FileChannel.open(pieceFile, StandardOpenOption.READ)) {
+            long startedAt = System.nanoTime();
+            byte[] block = readFully(channel, from, blockLength);
+            transferMetrics.diskRead("piece_file", System.nanoTime() - startedAt);
+            return block;
+        } catch (IOException e) {
+            log.warn("Failed to read piece {} block @{} from {}: {}", pieceIndex, offset, pieceFile, e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * @return up to {@code length} bytes from {@code position}, fewer if the file ends first
+     */
+    private static byte[] readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        return buffer.hasRemaining() ? Arrays.copyOf(buffer.array(), buffer.position()) : buffer.array();
+    }
+    
+    /**
+     * @return the local complete file (the seeded source or the finished download), null if there is none yet
+     */
+    public Path getCompleteFile() {
+        try {
+            return localPeerId != null ? findCompleteFile(localPeerId) : null;
+        } catch (IOException e) {
+            log.warn("Failed to locate the complete file of peer {}: {}", localPeerId, e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * The complete file of a peer: the source a seeder recorded in its metadata, or a finished download.
+     */
+    private Path findCompleteFile(String peerId) throws IOException {
+        Path fileNamePath = peerDir(peerId).resolve("metadata").resolve("filename");
+        if (Files.exists(fileNamePath)) {
+            Path recorded = Paths.get(new String(Files.readAllBytes(fileNamePath)).trim());
+            Path file = recorded.isAbsolute() ? recorded : peerDir(peerId).resolve(recorded);
+            if (Files.isRegularFile(file)) {
+                return file;
+            }
+        }
+        
+        Path target = downloadTarget(peerId);
+        return Files.isRegularFile(target) ? target : null;
+    }
+    
+    public boolean isSingleFileStorage() {
+        return config.getStorageMode() == TorrentConfig.StorageMode.SINGLE_FILE;
+    }
+    
+    /**
+     * @return the file pieces are served from in single-file mode, null otherwise
+     */
+    public Path getDataFile() {
+        return dataFile;
+    }
+    
+    /**
+     * Releases open files and cached pieces, e.g. when the swarm is removed. Stored data stays on disk.
+     */
+    public synchronized void close() {
+        seedGeneration++;
+        manifestHasher.shutdownNow();
+        diskWriter.flush();
+        closeResumeFile();
+        closeDataFile();
+        pieceCache.clear(cacheSpace);
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        manifestHasher.shutdownNow();
+    }
+    
+    /**
+     * Stores the pieces the disk writer hands back: runs of adjacent pieces of the local download go
+     * into the data file with one write each, everything else into piece files.
+     */
+    private final class PieceWrites implements DiskWriter.Store {
+        @Override
+        public Collection<Path> write(List<DiskWriter.PieceWrite> writes, List<DiskWriter.PieceWrite> failed) {
+            List<Path> files = new ArrayList<>();
+            List<DiskWriter.PieceWrite> dataFileWrites = new ArrayList<>();
+            for (DiskWriter.PieceWrite write : writes) {
+                if (isSingleFileStorage() && write.peerId.equals(localPeerId) && dataChannel != null) {
+                    dataFileWrites.add(write);
+                } else if (writePieceFile(write.peerId, write.pieceIndex, write.data, write.data.length)) {
+                    files.add(peerDir(write.peerId).resolve("piece_" + write.pieceIndex));
+                } else {
+                    failed.add(write);
+                }
+            }
+            
+            if (!dataFileWrites.isEmpty()) {
+                dataFileWrites.sort(Comparator.comparingInt(write -> write.pieceIndex));
+                int start = 0;
+                while (start < dataFileWrites.size()) {
+                    // A run goes on while the pieces are adjacent, which only full pieces can be
+                    List<byte[]> run = new ArrayList<>();
+                    int end = start;
+                    do {
+                        run.add(dataFileWrites.get(end).data);
+                        end++;
+                    } while (end < dataFileWrites.size()
+                             && dataFileWrites.get(end).pieceIndex == dataFileWrites.get(end - 1).pieceIndex + 1
+                             && dataFileWrites.get(end - 1).data.length == pieceSize);
+                    if (!writeToDataFile(dataFileWrites.get(start).pieceIndex, run)) {
+                        failed.addAll(dataFileWrites.subList(start, end));
+                    }
+                    start = end;
+                }
+                Path written = dataFile;
+                if (written != null) {
+                    files.add(written);
+                }
+            }
+            
+            // Failed pieces stay until they are taken back
+            writes.stream()
+                .filter(write -> !failed.contains(write))
+                .forEach(write -> unwritten.remove(write.pieceIndex, write.data));
+            return files;
+        }
+        
+        @Override
+        public void durable(List<DiskWriter.PieceWrite> writes) {
+            List<Integer> pieces = new ArrayList<>(writes.size());
+            synchronized (notDurable) {
+                for (DiskWriter.PieceWrite write : writes) {
+                    notDurable.clear(write.pieceIndex);
+                    pieces.add(write.pieceIndex);
+                }
+            }
+            
+            ResumeFile resume = resumeFile;
+            if (resume != null) {
+                long stamp = storageStamp();
+                writes.forEach(write -> resume.updatePiece(write.pieceIndex, write.verified, fileLength, stamp));
+            }
+            
+            Consumer<List<Integer>> listener = durableListener;
+            if (listener != null) {
+                listener.accept(pieces);
+            }
+        }
+        
+        @Override
+        public void failed(List<DiskWriter.PieceWrite> writes) {
+            for (DiskWriter.PieceWrite write : writes) {
+                int pieceIndex = write.pieceIndex;
+                // Only pieces still waiting for this write; a re-initialized download has none
+                if (!unwritten.remove(pieceIndex, write.data)) {
+                    continue;
+                }
+                synchronized (bitfield) {
+                    bitfield.clear(pieceIndex);
+                    synchronized (notDurable) {
+                        notDurable.clear(pieceIndex);
+                    }
+                }
+                pieceCache.remove(cacheSpace, pieceIndex);
+                piecePicker.pieceAbandoned(pieceIndex);
+                log.warn("Dropped piece {} for peer {}: it could not be written, requesting it again",
+                         pieceIndex, write.peerId);
+            }
+        }
+        
+        @Override
+        public boolean isComplete() {
+            return hasCompletedDownload();
+        }
+    }
+    
+    private Path peerDir(String peerId) {
+        Path peerDir = Paths.get("peer_" + peerId);
+        return swarmId != null ? peerDir.resolve("swarms").resolve(swarmId) : peerDir;
+    }
+    
+    private Path downloadTarget(String peerId) {
+        return peerDir(peerId).resolve(Paths.get(config.getFileName()).getFileName().toString());
+    }
+    
+    /**
+     * Opens the file a leecher downloads into. The data goes to a sparse {@code <name>.part} file
+     * sized for all pieces, which is renamed to {@code <name>} once the last piece is written.
+     */
+    private void openDownloadFile(String peerId) {
+        Path target = downloadTarget(peerId);
+        try {
+            if (Files.exists(target) && Files.size(target) > 0) {
+                fileLength = Files.size(target);
+                openDataFile(target, false);
+                setAllPieces();
+                log.info("INIT: Found completed download {} ({} bytes) for leecher {}", target, fileLength, peerId);
+                return;
+            }
+            
+            Path partFile = target.resolveSibling(target.getFileName() + ".part");
+            openDataFile(partFile, true);
+            
+            long capacity = (long) totalPieces * pieceSize;
+            if (dataChannel.size() < capacity) {
+                // Writing the last byte reserves the length without allocating blocks
+                dataChannel.write(ByteBuffer.wrap(new byte[1]), capacity - 1);
+            }
+            log.info("INIT: Preallocated {} ({} bytes) for leecher {}", partFile, capacity, peerId);
+        } catch (IOException e) {
+            log.error("INIT ERROR: Failed to prepare download file {}: {}", target, e.getMessage(), e);
+        }
+    }
+    
+    private void openDataFile(Path path, boolean writable) throws IOException {
+        dataFileLock.writeLock().lock();
+        try {
+            closeChannel();
+            dataChannel = writable
+                ? FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE, StandardOpenOption.SPARSE)
+                : FileChannel.open(path, StandardOpenOption.READ);
+            dataFile = path;
+            dataFileWritable = writable;
+        } finally {
+            dataFileLock.writeLock().unlock();
+        }
+    }
+    
+    private void closeDataFile() {
+        dataFileLock.writeLock().lock();
+        try {
+            closeChannel();
+            dataFile = null;
+        } finally {
+            dataFileLock.writeLock().unlock();
+        }
+    }
+    
+    private void closeChannel() {
+        if (dataChannel != null) {
+            try {
+                dataChannel.close();
+            } catch (IOException e) {
+                log.warn("Failed to close data file {}: {}", dataFile, e.getMessage());
+            }
+            dataChannel = null;
+        }
+    }
+    
+    private void writePieceToDataFile(int pieceIndex, byte[] data) {
+        writeToDataFile(pieceIndex, Collections.singletonList(data));
+    }
+    
+    /**
+     * Writes adjacent pieces, starting at {@code firstIndex}, into the data file. A single piece is a
+     * positional write; a run goes out as one gathering write from the channel position, which only
+     * the disk writer thread uses.
+     *
+     * @return false if the pieces could not be written
+     */
+    private boolean writeToDataFile(int firstIndex, List<byte[]> pieces) {
+        int lastIndex = firstIndex + pieces.size() - 1;
+        dataFileLock.readLock().lock();
+        try {
+            if (!dataFileWritable) {
+                log.debug("Data file {} is read-only, not writing pieces {}-{}", dataFile, firstIndex, lastIndex);
+                return true;
+            }
+            
+            long position = (long) firstIndex * pieceSize;
+            ByteBuffer[] buffers = pieces.stream().map(ByteBuffer::wrap).toArray(ByteBuffer[]::new);
+            ByteBuffer last = buffers[buffers.length - 1];
+            long startedAt = System.nanoTime();
+            if (buffers.length == 1) {
+                while (last.hasRemaining()) {
+                    position += dataChannel.write(last, position);
+                }
+            } else {
+                dataChannel.position(position);
+                while (last.hasRemaining()) {
+                    dataChannel.write(buffers);
+                }
+            }
+            transferMetrics.diskWrite("data_file", System.nanoTime() - startedAt);
+            
+            // The last piece tells us how long the file really is
+            if (lastIndex == totalPieces - 1) {
+                fileLength = (long) lastIndex * pieceSize + pieces.get(pieces.size() - 1).length;
+            }
+            return true;
+        } catch (IOException e) {
+            log.error("Failed to write pieces {}-{} to {}", firstIndex, lastIndex, dataFile, e);
+            return false;
+        } finally {
+            dataFileLock.readLock().unlock();
+        }
+    }
+    
+    private byte[] readPieceFromDataFile(int pieceIndex) {
+        dataFileLock.readLock().lock();
+        try {
+            if (dataChannel == null) {
+                return null;
+            }
+            
+            long position = (long) pieceIndex * pieceSize;
+            int length = (int) Math.max(0, Math.min(getPieceLength(pieceIndex), dataChannel.size() - position));
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            long startedAt = System.nanoTime();
+            while (buffer.hasRemaining()) {
+                int read = dataChannel.read(buffer, position + buffer.position());
+                if (read < 0) {
+                    break;
+                }
+            }
+            transferMetrics.diskRead("data_file", System.nanoTime() - startedAt);
+            return buffer.array();
+        } catch (IOException e) {
+            log.error("Failed to read piece {} from {}", pieceIndex, dataFile, e);
+            return null;
+        } finally {
+            dataFileLock.readLock().unlock();
+        }
+    }
+    
+    private void completeDownloadFile() {
+        dataFileLock.writeLock().lock();
+        try {
+            if (dataChannel == null || !dataFileWritable) {
+                return;
+            }
+            int have = pieceCount();
+            if (have < totalPieces) {
+                log.warn("Not completing {}, only {} of {} pieces written", dataFile, have, totalPieces);
+                return;
+            }
+            
+            if (fileLength > 0) {
+                dataChannel.truncate(fileLength);
+            }
+            dataChannel.force(true);
+            
+            Path target = downloadTarget(localPeerId);
+            closeChannel();
+            Files.move(dataFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dataChannel = FileChannel.open(target, StandardOpenOption.READ);
+            dataFile = target;
+            dataFileWritable = false;
+            log.info("Download complete, {} is ready ({} bytes)", target, Files.size(target));
+            
+            // A complete file is recognised on its own, the resume record is no longer needed
+            ResumeFile resume = resumeFile;
+            resumeFile = null;
+            if (resume != null) {
+                resume.delete();
+            }
+        } catch (IOException e) {
+            log.error("Failed to complete download file {}", dataFile, e);
+            if (dataChannel == null && dataFile != null) {
+                try {
+                    dataChannel = FileChannel.open(dataFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                } catch (IOException reopenError) {
+                    log.error("Failed to reopen data file {}", dataFile, reopenError);
+                }
+            }
+        } finally {
+            dataFileLock.writeLock().unlock();
+        }
+    }
+    
     public List<Integer> getMissingPieces() {
         List<Integer> missingPieces = new ArrayList<>();
+        BitSet have = getBitfield();
         for (int i = 0; i < totalPieces; i++) {
-            if (!bitfield.get(i)) {
+            if (!have.get(i)) {
                 missingPieces.add(i);
             }
         }
@@ -0,0 +1,224 @@
+package com.p2p.torrent.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.p2p.torrent.model.Manifest;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Builds, stores and checks {@link Manifest}s.
+ *
+ * Hashing splits the file into runs of consecutive pieces that are hashed on a fork-join pool
+ * sized to the machine, each worker reading its run with positional reads into one reusable
+ * buffer. That keeps every core busy while each worker still reads the disk sequentially.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class ManifestService {
+    public static final String MANIFEST_FILE = "manifest.json";
+
+    // Runs per worker, so a slow run does not leave the other cores idle at the end
+    private static final int RUNS_PER_WORKER = 4;
+
+    private final ObjectMapper objectMapper;
+
+    /**
+     * Hashes every piece of the file in parallel.
+     */
+    public Manifest build(Path file, String fileName, int pieceSize) throws IOException {
+        long started = System.nanoTime();
+        long fileLength = Files.size(file);
+        int pieceCount = pieceCount(fileLength, pieceSize);
+        String[] hashes = new String[pieceCount];
+
+        int workers = Runtime.getRuntime().availableProcessors();
+        int runLength = Math.max(1, pieceCount / (workers * RUNS_PER_WORKER));
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            pool.invoke(new HashRun(channel, fileLength, pieceSize, hashes, 0, pieceCount, runLength));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+
+        Manifest manifest = fromHashes(fileName, fileLength, pieceSize, Arrays.asList(hashes));
+        log.info("MANIFEST: Hashed {} ({} bytes, {} pieces) on {} threads in {} ms, content {}",
+                 file, fileLength, pieceCount, workers, (System.nanoTime() - started) / 1_000_000,
+                 manifest.getContentId());
+        return manifest;
+    }
+
+    /**
+     * Assembles a manifest from piece hashes computed elsewhere, e.g. while an upload streamed in.
+     */
+    public Manifest fromHashes(String fileName, long fileLength, int pieceSize, List<String> pieceHashes) {
+        MessageDigest digest = sha256();
+        digest.update((fileLength + ":" + pieceSize + ":").getBytes(StandardCharsets.US_ASCII));
+        for (String hash : pieceHashes) {
+            digest.update(hash.getBytes(StandardCharsets.US_ASCII));
+        }
+        return new Manifest(toHex(digest.digest()), fileName, fileLength, pieceSize,
+                            pieceHashes.size(), pieceHashes);
+    }
+
+    /**
+     * @return true if the data matches the hash the manifest records for the piece
+     */
+    public boolean verify(Manifest manifest, int pieceIndex, byte[] data) {
+        if (pieceIndex < 0 || pieceIndex >= manifest.getPieceCount()
+            || data.length != manifest.pieceLength(pieceIndex)) {
+            return false;
+        }
+        return toHex(sha256().digest(data)).equals(manifest.getPieceHashes().get(pieceIndex));
+    }
+
+    /**
+     * Sanity check for manifests received from other peers.
+     */
+    public boolean isConsistent(Manifest manifest) {
+        if (manifest == null || manifest.getPieceSize() <= 0 || manifest.getFileLength() < 0
+            || manifest.getFileLength() / manifest.getPieceSize() >= Integer.MAX_VALUE
+            || manifest.getPieceHashes() == null) {
+            return false;
+        }
+        if (manifest.getPieceCount() != pieceCount(manifest.getFileLength(), manifest.getPieceSize())
+            || manifest.getPieceHashes().size() != manifest.getPieceCount()) {
+            return false;
+        }
+        Manifest expected = fromHashes(manifest.getFileName(), manifest.getFileLength(),
+                                       manifest.getPieceSize(), manifest.getPieceHashes());
+        return expected.getContentId().equals(manifest.getContentId());
+    }
+
+    /**
+     * Writes {@code metadata/manifest.json} under the peer directory, replacing it atomically.
+     */
+    public void save(Path peerDir, Manifest manifest) throws IOException {
+        Path metadataDir = peerDir.resolve("metadata");
+        Files.createDirectories(metadataDir);
+        Path target = metadataDir.resolve(MANIFEST_FILE);
+        Path temp = metadataDir.resolve(MANIFEST_FILE + ".tmp");
+        Files.write(temp, objectMapper.writeValueAsBytes(manifest));
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the stored manifest of the peer, or null if there is none or it is unreadable
+     */
+    public Manifest load(Path peerDir) {
+        Path file = peerDir.resolve("metadata").resolve(MANIFEST_FILE);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            Manifest manifest = objectMapper.readValue(file.toFile(), Manifest.class);
+            return isConsistent(manifest) ? manifest : null;
+        } catch (IOException e) {
+            log.warn("MANIFEST: Ignoring unreadable {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the file has more pieces than an int can index
+     */
+    public static int pieceCount(long fileLength, int pieceSize) {
+        long count = (fileLength + pieceSize - 1) / pieceSize;
+        if (count > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("File of " + fileLength + " bytes needs " + count
+                + " pieces of " + pieceSize + " bytes, use larger pieces");
+        }
+        return (int) count;
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Hashes pieces [from, to), splitting in half until a run is short enough to do directly.
+     */
+    private static final class HashRun extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long fileLength;
+        private final int pieceSize;
+        private final String[] hashes;
+        private final int from;
+        private final int to;
+        private final int runLength;
+
+        HashRun(FileChannel channel, long fileLength, int pieceSize, String[] hashes, int from, int to, int runLength) {
+            this.channel = channel;
+            this.fileLength = fileLength;
+            this.pieceSize = pieceSize;
+            this.hashes = hashes;
+            this.from = from;
+            this.to = to;
+            this.runLength = runLength;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > runLength) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new HashRun(channel, fileLength, pieceSize, hashes, from, middle, runLength),
+                          new HashRun(channel, fileLength, pieceSize, hashes, middle, to, runLength));
+                return;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(pieceSize);
+            MessageDigest digest = sha256();
+            try {
+                for (int i = from; i < to; i++) {
+                    long position = (long) i * pieceSize;
+                    buffer.clear().limit((int) Math.min(pieceSize, fileLength - position));
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, position + buffer.position()) < 0) {
+                            throw new IOException("File ended before piece " + i + " was read");
+                        }
+                    }
+                    buffer.flip();
+                    digest.update(buffer);
+                    hashes[i] = toHex(digest.digest());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
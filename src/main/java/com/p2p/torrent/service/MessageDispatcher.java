@@ -0,0 +1,342 @@
+package com.p2p.torrent.service;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.stereotype.Service;
+
+import com.p2p.torrent.config.TorrentConfig;
+import com.p2p.torrent.model.Message;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs inbound peer messages (and delayed follow-ups) on a bounded, shared worker pool while
+ * keeping the messages of each peer in arrival order.
+ *
+ * Every peer gets a serial queue. A queue with work is drained by at most one worker at a time,
+ * which hands the queue back to the pool after a batch so one chatty peer cannot starve the rest.
+ * A queue holds at most {@code p2p.dispatchQueueDepth} tasks: REQUESTs beyond that are rejected,
+ * and the caller tells the sender so. REQUESTs are the one type a peer can send without bound; PIECEs
+ * only answer our own pipelined requests. Every other message changes the peer's protocol state and
+ * must not be lost, so once the queue is {@link #HARD_LIMIT_FACTOR} times over the thread reading
+ * from the peer waits for room, and only gives up (and the caller drops the connection) after
+ * {@link #OVERFLOW_WAIT_MILLIS}.
+ */
+@Service
+@Slf4j
+public class MessageDispatcher {
+    private static final int BATCH_SIZE = 64;
+    private static final int HARD_LIMIT_FACTOR = 4;
+    private static final long OVERFLOW_WAIT_MILLIS = 5000;
+    private static final long OVERFLOW_POLL_MILLIS = 50;
+    private static final String INTERNAL = "INTERNAL";
+
+    private final int queueDepth;
+    private final int threads;
+    private final boolean virtualThreads;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService timer;
+    private final TransferMetrics transferMetrics;
+
+    private final Map<String, PeerQueue> queues = new ConcurrentHashMap<>();
+
+    // Notified when a task leaves a queue at its hard limit, for senders waiting for room
+    private final Object room = new Object();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final AtomicLong rejected = new AtomicLong();
+    private final LongAdder overflowWaits = new LongAdder();
+    private final Map<String, LongAdder> rejectedByType = new ConcurrentHashMap<>();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    public MessageDispatcher(TorrentConfig config, TransferMetrics transferMetrics) {
+        this.transferMetrics = transferMetrics;
+        this.queueDepth = Math.max(1, config.getDispatchQueueDepth());
+        this.threads = config.getDispatchThreads() > 0
+            ? config.getDispatchThreads() : Runtime.getRuntime().availableProcessors();
+
+        ExecutorService virtual = config.isDispatchVirtualThreads() ? newVirtualThreadExecutor() : null;
+        this.virtualThreads = virtual != null;
+        this.workers = virtual != null ? virtual
+            : new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                                     new LinkedBlockingQueue<>(), daemonThreads("peer-dispatch-"));
+        this.timer = Executors.newSingleThreadScheduledExecutor(daemonThreads("peer-dispatch-timer-"));
+
+        transferMetrics.gauge("p2p_dispatch_queued", "Inbound messages waiting on peer dispatcher queues",
+                              this::queuedTasks);
+        transferMetrics.gauge("p2p_dispatch_active_peers", "Peers with work on their dispatcher queue", queues::size);
+        transferMetrics.counter("p2p_dispatch_rejected_total", "Inbound messages dropped because a peer's queue was full",
+                                rejected::get);
+
+        log.info("DISPATCHER: {} workers, {} tasks per peer queue",
+                 virtualThreads ? "virtual-thread" : String.valueOf(threads), queueDepth);
+    }
+
+    /**
+     * Queues a task behind everything already queued for the peer. A peer message other than a
+     * REQUEST that finds the queue at its hard limit waits for room, up to
+     * {@link #OVERFLOW_WAIT_MILLIS}.
+     *
+     * @param type the message being handled, null for internal follow-ups
+     * @return false if the peer's queue is full and the task was dropped
+     */
+    public boolean submit(String peerId, Message.MessageType type, Runnable task) {
+        long queuedAt = System.nanoTime();
+        Runnable timed = () -> {
+            long startedAt = System.nanoTime();
+            try {
+                task.run();
+            } finally {
+                transferMetrics.messageHandled(type, startedAt - queuedAt, System.nanoTime() - startedAt);
+            }
+        };
+
+        // [0] accepted, [1] the queue was idle and needs a worker
+        boolean[] outcome = new boolean[2];
+        long waitUntil = 0;
+        while (!enqueue(peerId, type, timed, outcome)) {
+            if (type == null || type == Message.MessageType.REQUEST) {
+                reject(peerId, type);
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            if (waitUntil == 0) {
+                waitUntil = now + OVERFLOW_WAIT_MILLIS;
+                overflowWaits.increment();
+            }
+            if (now >= waitUntil || !awaitRoom(Math.min(OVERFLOW_POLL_MILLIS, waitUntil - now))) {
+                reject(peerId, type);
+                return false;
+            }
+        }
+        submitted.increment();
+        if (outcome[1]) {
+            execute(peerId);
+        }
+        return true;
+    }
+
+    /**
+     * Queues a task for the peer once the delay has passed. If the peer's queue is full by then, or
+     * the dispatcher is shutting down, the task is dropped and {@code onRejected} runs instead, on
+     * the timer thread or the caller's.
+     */
+    public void schedule(String peerId, long delayMillis, Runnable task, Runnable onRejected) {
+        try {
+            timer.schedule(() -> {
+                if (!submit(peerId, null, task)) {
+                    onRejected.run();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.debug("DISPATCHER: Not scheduling task for peer {}, shutting down", peerId);
+            onRejected.run();
+        }
+    }
+
+    /**
+     * Runs a periodic task (a choker round, a scheduler sweep) on the worker pool, so every swarm of
+     * the node shares the same threads. A run that fails is logged and does not stop later runs.
+     *
+     * @return the handle to cancel the task with, null if the dispatcher is shutting down
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(String name, long initialDelayMillis, long periodMillis, Runnable task) {
+        Runnable guarded = () -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                log.error("DISPATCHER: Periodic task {} failed: {}", name, e.getMessage(), e);
+            }
+        };
+        try {
+            return timer.scheduleAtFixedRate(() -> {
+                try {
+                    workers.execute(guarded);
+                } catch (RejectedExecutionException e) {
+                    log.debug("DISPATCHER: Skipping periodic task {}, shutting down", name);
+                }
+            }, initialDelayMillis, periodMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.debug("DISPATCHER: Not scheduling periodic task {}, shutting down", name);
+            return null;
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("workers", virtualThreads ? "virtual" : threads);
+        stats.put("queueDepthLimit", queueDepth);
+        stats.put("activePeers", queues.size());
+        stats.put("queued", queuedTasks());
+        stats.put("maxQueueDepth", maxQueueDepth.get());
+        stats.put("submitted", submitted.sum());
+        stats.put("completed", completed.sum());
+        stats.put("failed", failed.sum());
+        stats.put("rejected", rejected.get());
+        stats.put("overflowWaits", overflowWaits.sum());
+        Map<String, Long> byType = new LinkedHashMap<>();
+        rejectedByType.forEach((type, count) -> byType.put(type, count.sum()));
+        stats.put("rejectedByType", byType);
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timer.shutdownNow();
+        workers.shutdown();
+    }
+
+    private boolean enqueue(String peerId, Message.MessageType type, Runnable task, boolean[] outcome) {
+        queues.compute(peerId, (id, existing) -> {
+            PeerQueue queue = existing != null ? existing : new PeerQueue();
+            if (!queue.admits(type)) {
+                return existing;
+            }
+            queue.tasks.add(task);
+            maxQueueDepth.accumulateAndGet(queue.tasks.size(), Math::max);
+            outcome[0] = true;
+            if (!queue.running) {
+                queue.running = true;
+                outcome[1] = true;
+            }
+            return queue;
+        });
+        return outcome[0];
+    }
+
+    /**
+     * @return false if the thread was interrupted
+     */
+    private boolean awaitRoom(long millis) {
+        try {
+            synchronized (room) {
+                room.wait(Math.max(1, millis));
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Counts the queued tasks under the same per-peer lock that guards the queues.
+     */
+    private int queuedTasks() {
+        int[] total = new int[1];
+        for (String peerId : queues.keySet()) {
+            queues.computeIfPresent(peerId, (id, queue) -> {
+                total[0] += queue.tasks.size();
+                return queue;
+            });
+        }
+        return total[0];
+    }
+
+    private void execute(String peerId) {
+        try {
+            workers.execute(() -> drain(peerId));
+        } catch (RejectedExecutionException e) {
+            log.debug("DISPATCHER: Dropping work for peer {}, shutting down", peerId);
+        }
+    }
+
+    private void drain(String peerId) {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            Runnable task = next(peerId);
+            if (task == null) {
+                return;
+            }
+            try {
+                task.run();
+                completed.increment();
+            } catch (Exception e) {
+                failed.increment();
+                log.error("MESSAGE HANDLING ERROR: peer {}: {}", peerId, e.getMessage(), e);
+            }
+        }
+        // Still busy: go to the back of the pool's queue so other peers get a turn
+        execute(peerId);
+    }
+
+    /**
+     * @return the peer's next task, or null after marking the queue idle and dropping it
+     */
+    private Runnable next(String peerId) {
+        Runnable[] next = new Runnable[1];
+        boolean[] freed = new boolean[1];
+        queues.computeIfPresent(peerId, (id, queue) -> {
+            freed[0] = queue.tasks.size() >= queueDepth * HARD_LIMIT_FACTOR;
+            next[0] = queue.tasks.poll();
+            return next[0] != null ? queue : null;
+        });
+        if (freed[0]) {
+            synchronized (room) {
+                room.notifyAll();
+            }
+        }
+        return next[0];
+    }
+
+    private void reject(String peerId, Message.MessageType type) {
+        long count = rejected.incrementAndGet();
+        rejectedByType.computeIfAbsent(type != null ? type.name() : INTERNAL, key -> new LongAdder()).increment();
+        if (count == 1 || count % 1000 == 0) {
+            log.warn("DISPATCHER: Queue of peer {} is full, dropped {} ({} dropped so far)", peerId, type, count);
+        }
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.warn("DISPATCHER: Virtual threads need JDK 21+, running on {} with platform threads",
+                     System.getProperty("java.version"));
+            return null;
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private final class PeerQueue {
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        private boolean running;
+
+        boolean admits(Message.MessageType type) {
+            int size = tasks.size();
+            if (type == Message.MessageType.REQUEST) {
+                return size < queueDepth;
+            }
+            return size < queueDepth * HARD_LIMIT_FACTOR;
+        }
+    }
+}
@@ -1,20 +1,26 @@
 package com.p2p.torrent.service;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.stereotype.Service;
 
+import com.p2p.torrent.model.BitfieldCodec;
 import com.p2p.torrent.model.FilePiece;
+import com.p2p.torrent.model.Manifest;
 import com.p2p.torrent.model.Message;
-import com.p2p.torrent.model.Peer;
+import com.p2p.torrent.model.PartialPiece;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -24,13 +30,34 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class MessageService {
     private final SimpMessagingTemplate messagingTemplate;
+    private final PeerMessenger peerMessenger;
     private final PeerService peerService;
     private final FileService fileService;
+    private final DownloadScheduler downloadScheduler;
+    private final MessageDispatcher messageDispatcher;
+    private final BandwidthLimiter bandwidthLimiter;
+    private final TransferMetrics transferMetrics;
+    
+    // Bitfield encodings we can read, announced with HANDSHAKE and BITFIELD
+    private static final List<String> SUPPORTED_BITFIELD_FORMATS = Arrays.stream(BitfieldCodec.Format.values())
+        .map(BitfieldCodec.Format::wireName)
+        .collect(Collectors.toList());
     
     private String localPeerId;
     
+    // Block requests received from each peer that are not answered yet, and those the peer cancelled
+    private final Map<String, Set<Long>> pendingRequests = new ConcurrentHashMap<>();
+    private final Map<String, Set<Long>> cancelledRequests = new ConcurrentHashMap<>();
+    
+    // Peers that announced other content than this swarm is pinned to; ignored until they reconnect
+    // with a HANDSHAKE for the right content
+    private final Set<String> refusedPeers = ConcurrentHashMap.newKeySet();
+    
     public void setLocalPeerId(String peerId) {
         this.localPeerId = peerId;
+        downloadScheduler.reset(peerId);
+        fileService.setDurableListener(this::onPiecesDurable);
+        fileService.setManifestListener(manifest -> onManifestHashed());
         log.info("PEER ID SET: MessageService local peer ID is now {}", peerId);
     }
     
@@ -59,6 +86,10 @@ public class MessageService {
     
     public void handleMessage(Message message) {
         String senderPeerId = message.getPeerId();
+        if (refusedPeers.contains(senderPeerId) && message.getType() != Message.MessageType.HANDSHAKE) {
+            log.debug("Ignoring {} from refused peer {}", message.getType(), senderPeerId);
+            return;
+        }
         
         switch (message.getType()) {
             case CHOKE:
@@ -77,17 +108,33 @@ public class MessageService {
                 handleHave(senderPeerId, message.getPieceIndex());
                 break;
             case BITFIELD:
-                handleBitfield(senderPeerId, message.getBitfield());
+                if (!applyManifest(senderPeerId, message.getManifest())) {
+                    break;
+                }
+                recordBitfieldFormats(senderPeerId, message.getBitfieldFormats());
+                handleBitfield(senderPeerId, message.getBitfield(), message.getBitfieldFormat());
                 break;
             case REQUEST:
-                handleRequest(senderPeerId, message.getPieceIndex());
+                handleRequest(senderPeerId, message.getPieceIndex(), message.getOffset(), message.getLength());
                 break;
             case PIECE:
-                handlePiece(senderPeerId, message.getPieceIndex(), message.getData());
+                handlePiece(senderPeerId, message.getPieceIndex(), message.getOffset(), message.getData());
                 break;
             case HANDSHAKE:
+                // A new connection, the peer knows nothing of the choke/interest state we sent before
+                peerMessenger.resetPeerState(senderPeerId);
+                if (!applyManifest(senderPeerId, message.getManifest())) {
+                    break;
+                }
+                recordBitfieldFormats(senderPeerId, message.getBitfieldFormats());
                 handleHandshake(senderPeerId);
                 break;
+            case CANCEL:
+                handleCancel(senderPeerId, message.getPieceIndex(), message.getOffset());
+                break;
+            case HAVE_BATCH:
+                handleHaveBatch(senderPeerId, message.getBitfield(), message.getBitfieldFormat());
+                break;
             default:
                 log.warn("Received unknown message type: {}", message.getType());
         }
@@ -95,54 +142,66 @@ public class MessageService {
     
     private void handleChoke(String peerId) {
         log.info("Received CHOKE from peer {}", peerId);
-        // Mark that this peer has choked us
+        transferMetrics.chokeReceived(Message.MessageType.CHOKE);
+        // Mark that this peer has choked us; whether we choke it is up to our choker
         peerService.getPeer(peerId).ifPresent(peer -> {
-            peer.setChoked(true);
+            peer.setPeerChoking(true);
         });
+        
+        // Choked peers discard our pending requests, let other peers fetch those blocks
+        downloadScheduler.releasePeer(peerId);
+    }
+    
+    /**
+     * A peer's connection closed: drop its pending block requests and its piece availability.
+     */
+    public void handlePeerDisconnected(String peerId) {
+        log.info("Peer {} disconnected", peerId);
+        downloadScheduler.releasePeer(peerId);
+        forgetRequestsFrom(peerId);
+        peerMessenger.resetPeerState(peerId);
+        peerService.peerDisconnected(peerId);
+    }
+    
+    /**
+     * A peer left the swarm for good.
+     */
+    public void removePeer(String peerId) {
+        refusedPeers.remove(peerId);
+        downloadScheduler.releasePeer(peerId);
+        forgetRequestsFrom(peerId);
+        peerMessenger.resetPeerState(peerId);
+        peerService.removePeer(peerId);
+    }
+    
+    private void forgetRequestsFrom(String peerId) {
+        pendingRequests.remove(peerId);
+        cancelledRequests.remove(peerId);
+    }
+    
+    private static long blockKey(int pieceIndex, int offset) {
+        return ((long) pieceIndex << 32) | (offset & 0xFFFFFFFFL);
     }
     
     private void handleUnchoke(String peerId) {
         log.info("Received UNCHOKE from peer {}", peerId);
+        transferMetrics.chokeReceived(Message.MessageType.UNCHOKE);
         peerService.getPeer(peerId).ifPresent(peer -> {
-            peer.setChoked(false);
-            // Request multiple pieces now that we're unchoked
-            requestPiecesAfterUnchoke(peerId);
+            peer.setPeerChoking(false);
         });
-    }
-    
-    public void requestPiecesAfterUnchoke(String peerId) {
-        log.info("Requesting multiple pieces after being unchoked by peer {}", peerId);
         
-        // Get how many pieces we need
-        List<Integer> missingPieces = fileService.getMissingPieces();
-        if (missingPieces.isEmpty()) {
-            log.info("No missing pieces to request from peer {}", peerId);
-            return;
-        }
-        
-        // Request up to 10 pieces at once
-        int piecesToRequest = Math.min(10, missingPieces.size());
-        log.info("Will request {} pieces from peer {}", piecesToRequest, peerId);
-        
-        for (int i = 0; i < piecesToRequest; i++) {
-            int pieceIndex = missingPieces.get(i);
-            log.info("Auto-requesting piece {} from peer {} after unchoke", pieceIndex, peerId);
-            requestSpecificPiece(peerId, pieceIndex);
-        }
+        // Fill the pipeline now that we're unchoked
+        downloadScheduler.topUp(peerId);
     }
     
     private void handleInterested(String peerId) {
         log.info("Received INTERESTED from peer {}", peerId);
-        peerService.getPeer(peerId).ifPresent(peer -> {
-            peer.setInterested(true);
-        });
+        peerService.peerInterested(peerId, true);
     }
     
     private void handleNotInterested(String peerId) {
         log.info("Received NOT_INTERESTED from peer {}", peerId);
-        peerService.getPeer(peerId).ifPresent(peer -> {
-            peer.setInterested(false);
-        });
+        peerService.peerInterested(peerId, false);
     }
     
     private void handleHave(String peerId, int pieceIndex) {
@@ -151,6 +210,31 @@ public class MessageService {
         // Update peer's bitfield
         peerService.updatePeerBitfield(peerId, pieceIndex);
         
+        onPeerPiecesAdded(peerId);
+    }
+    
+    private void handleHaveBatch(String peerId, String bitfieldStr, String bitfieldFormat) {
+        BitSet pieces;
+        try {
+            pieces = BitfieldCodec.decode(bitfieldStr, fileService.getTotalPieces(), BitfieldCodec.Format.parse(bitfieldFormat));
+        } catch (IllegalArgumentException e) {
+            log.warn("Ignoring HAVE_BATCH from peer {} in format {}: {}", peerId, bitfieldFormat, e.getMessage());
+            return;
+        }
+        log.info("Received HAVE_BATCH from peer {} for {} pieces", peerId, pieces.cardinality());
+        
+        for (int i = pieces.nextSetBit(0); i >= 0; i = pieces.nextSetBit(i + 1)) {
+            peerService.updatePeerBitfield(peerId, i);
+        }
+        
+        onPeerPiecesAdded(peerId);
+    }
+    
+    /**
+     * The peer announced new pieces: it may have become interesting, and we may be able to ask it
+     * for more.
+     */
+    private void onPeerPiecesAdded(String peerId) {
         // Check if we're interested in this peer now
         peerService.getPeer(peerId).ifPresent(peer -> {
             BitSet localBitfield = fileService.getBitfield();
@@ -164,41 +248,40 @@ public class MessageService {
             missingPieces.and(peerBitfield);
             
             // If there are any bits set, we're interested
-            if (missingPieces.cardinality() > 0 && !peer.isInterested()) {
-                peer.setInterested(true);
+            if (missingPieces.cardinality() > 0 && !peer.isAmInterested()) {
+                peer.setAmInterested(true);
                 
                 // Send INTERESTED message
                 Message interestedMsg = new Message(Message.MessageType.INTERESTED, localPeerId, null, null, null);
-                messagingTemplate.convertAndSendToUser(peerId, "/queue/messages", interestedMsg);
+                peerMessenger.send(peerId, interestedMsg);
                 
                 log.info("Sent INTERESTED to peer {}", peerId);
             }
         });
+        
+        // The new pieces may be ones we can ask this peer for
+        downloadScheduler.topUp(peerId);
     }
     
-    private void handleBitfield(String peerId, String bitfieldStr) {
+    private void handleBitfield(String peerId, String bitfieldStr, String bitfieldFormat) {
         log.info("Received BITFIELD from peer {}", peerId);
         
         peerService.getPeer(peerId).ifPresent(peer -> {
-            // Convert string representation to BitSet
-            BitSet peerBitfield = new BitSet(fileService.getTotalPieces());
-            
-            // Handle case where bitfield string length doesn't match total pieces
             int totalPieces = fileService.getTotalPieces();
-            if (bitfieldStr.length() < totalPieces) {
-                log.warn("Received bitfield length {} is shorter than total pieces {}, padding with zeros", 
-                         bitfieldStr.length(), totalPieces);
-            } else if (bitfieldStr.length() > totalPieces) {
-                log.warn("Received bitfield length {} is longer than total pieces {}, truncating", 
-                         bitfieldStr.length(), totalPieces);
+            BitfieldCodec.Format format;
+            BitSet peerBitfield;
+            try {
+                format = BitfieldCodec.Format.parse(bitfieldFormat);
+                peerBitfield = BitfieldCodec.decode(bitfieldStr, totalPieces, format);
+            } catch (IllegalArgumentException e) {
+                log.warn("Ignoring BITFIELD from peer {} in format {}: {}", peerId, bitfieldFormat, e.getMessage());
+                return;
             }
             
-            // Process bits up to the min of bitfield length and total pieces
-            int processLength = Math.min(bitfieldStr.length(), totalPieces);
-            for (int i = 0; i < processLength; i++) {
-                if (bitfieldStr.charAt(i) == '1') {
-                    peerBitfield.set(i);
-                }
+            // Handle case where an ascii bitfield's length doesn't match total pieces
+            if (format == BitfieldCodec.Format.ASCII && bitfieldStr != null && bitfieldStr.length() != totalPieces) {
+                log.warn("Received bitfield length {} does not match total pieces {}, {}", bitfieldStr.length(), totalPieces,
+                         bitfieldStr.length() < totalPieces ? "padding with zeros" : "truncating");
             }
             
             // If peer has the complete file, ensure its bitfield shows that
@@ -208,11 +291,11 @@ public class MessageService {
                 peerBitfield.set(0, totalPieces);
             }
             
-            log.debug("Peer {} bitfield: {} (has {}/{} pieces)", 
-                     peerId, bitfieldStr, peerBitfield.cardinality(), totalPieces);
+            log.debug("Peer {} bitfield: {} bytes of {} (has {}/{} pieces)", peerId,
+                      bitfieldStr != null ? bitfieldStr.length() : 0, format.wireName(), peerBitfield.cardinality(), totalPieces);
             
-            // Update peer's bitfield
-            peer.setBitfield(peerBitfield);
+            // Update peer's bitfield (and with it the piece availability index)
+            peerService.setPeerBitfield(peer, peerBitfield);
             
             // Check if we're interested in this peer
             BitSet localBitfield = fileService.getBitfield();
@@ -221,266 +304,155 @@ public class MessageService {
             missingPieces.and(peerBitfield);
             
             if (missingPieces.cardinality() > 0) {
-                peer.setInterested(true);
+                peer.setAmInterested(true);
                 
                 // Send INTERESTED message
                 Message interestedMsg = new Message(Message.MessageType.INTERESTED, localPeerId, null, null, null);
-                messagingTemplate.convertAndSendToUser(peerId, "/queue/messages", interestedMsg);
+                peerMessenger.send(peerId, interestedMsg);
                 
                 log.info("Sent INTERESTED to peer {} (they have {} pieces we need)", 
                          peerId, missingPieces.cardinality());
                 
                 // Force unchoke the peer if it's a seeder
-                if (peer.isHasFile() && peer.isChoked()) {
+                if (peer.isHasFile() && peer.isAmChoking()) {
                     // Send unchoke message to the seeder
+                    peer.setAmChoking(false);
                     Message unchokeMsg = new Message(Message.MessageType.UNCHOKE, localPeerId, null, null, null);
-                    messagingTemplate.convertAndSendToUser(peerId, "/queue/messages", unchokeMsg);
+                    peerMessenger.send(peerId, unchokeMsg);
                     log.info("Force-sent UNCHOKE to seeder peer {}", peerId);
                 }
             } else {
                 // Send NOT_INTERESTED message
                 Message notInterestedMsg = new Message(Message.MessageType.NOT_INTERESTED, localPeerId, null, null, null);
-                messagingTemplate.convertAndSendToUser(peerId, "/queue/messages", notInterestedMsg);
+                peerMessenger.send(peerId, notInterestedMsg);
                 
                 log.info("Sent NOT_INTERESTED to peer {}", peerId);
             }
         });
+        
+        downloadScheduler.topUp(peerId);
     }
     
-    private void handleRequest(String peerId, int pieceIndex) {
-        log.info("REQUEST PROCESSING: Peer {} wants piece {}", peerId, pieceIndex);
+    private void handleRequest(String peerId, int pieceIndex, Integer offset, Integer length) {
+        log.debug("REQUEST PROCESSING: Peer {} wants piece {}{}", peerId, pieceIndex,
+                  offset != null ? " block @" + offset : "");
         
-        boolean peerFound = false;
-        try {
-            peerFound = peerService.getPeer(peerId).isPresent();
-            log.info("PEER FOUND: {}", peerFound);
-        } catch (Exception e) {
-            log.error("PEER LOOKUP ERROR: {}", e.getMessage());
+        if (offset != null) {
+            // A fresh request supersedes an earlier cancel of the same block
+            cancelledRequests.getOrDefault(peerId, Collections.emptySet()).remove(blockKey(pieceIndex, offset));
         }
         
         peerService.getPeer(peerId).ifPresent(peer -> {
-            // Force unchoke the peer making the request
-            if (peer.isChoked()) {
-                log.info("UNCHOKE ACTION: Auto-unchoking peer {} to fulfill piece request", peerId);
-                peer.setChoked(false);
-                
-                // Send UNCHOKE message
-                try {
-                    Message unchokeMsg = new Message(Message.MessageType.UNCHOKE, localPeerId, null, null, null);
-                    messagingTemplate.convertAndSendToUser(peerId, "/queue/messages", unchokeMsg);
-                    log.info("UNCHOKE SENT: To peer {}", peerId);
-                } catch (Exception e) {
-                    log.error("UNCHOKE FAILED: Could not send unchoke to peer {}: {}", peerId, e.getMessage());
-                }
-            }
-            
-            // Check if we have the complete file ourselves
-            boolean hasCompleteFile = false;
-            String fileName = null;
-            File sourceFile = null;
-            
-            // Try multiple possible file path locations
-            File configFile = null;
-            File peerDirFile = null;
-            File relativeFile = null;
-            
-            try {
-                // Check config file path
-                fileName = fileService.getCurrentFilename();
-                log.info("CHECKING FILES: Current filename from config is '{}'", fileName);
-                
-                if (fileName != null) {
-                    // Try different locations
-                    configFile = new File(fileName);
-                    peerDirFile = new File("peer_" + localPeerId, fileName);
-                    relativeFile = new File(".", fileName);
-                    
-                    log.info("CHECKING FILES: Config path '{}' exists: {}", configFile.getPath(), configFile.exists());
-                    log.info("CHECKING FILES: Peer dir path '{}' exists: {}", peerDirFile.getPath(), peerDirFile.exists());
-                    log.info("CHECKING FILES: Relative path '{}' exists: {}", relativeFile.getPath(), relativeFile.exists());
-                    
-                    // Get the first one that exists
-                    if (configFile.exists()) {
-                        sourceFile = configFile;
-                        hasCompleteFile = true;
-                        log.info("FILE FOUND: Using config path: {}", configFile.getAbsolutePath());
-                    } else if (peerDirFile.exists()) {
-                        sourceFile = peerDirFile;
-                        hasCompleteFile = true;
-                        log.info("FILE FOUND: Using peer dir path: {}", peerDirFile.getAbsolutePath());
-                    } else if (relativeFile.exists()) {
-                        sourceFile = relativeFile;
-                        hasCompleteFile = true;
-                        log.info("FILE FOUND: Using relative path: {}", relativeFile.getAbsolutePath());
-                    } else {
-                        // Look in all peer directories
-                        log.info("SEARCHING PEERS: Checking all peer directories for the file");
-                        File peersRoot = new File(".");
-                        File[] peerDirs = peersRoot.listFiles(file -> 
-                            file.isDirectory() && file.getName().startsWith("peer_"));
-                        
-                        if (peerDirs != null) {
-                            for (File dir : peerDirs) {
-                                File possibleFile = new File(dir, fileName);
-                                if (possibleFile.exists()) {
-                                    sourceFile = possibleFile;
-                                    hasCompleteFile = true;
-                                    log.info("FILE FOUND: In peer directory: {}", possibleFile.getAbsolutePath());
-                                    break;
-                                }
-                            }
-                        }
-                    }
-                }
-                
-                // Log final result
-                if (hasCompleteFile && sourceFile != null) {
-                    log.info("FILE CHECK: Found source file: {} (size: {} bytes)", 
-                            sourceFile.getAbsolutePath(), sourceFile.length());
-                } else {
-                    log.warn("FILE CHECK: Source file not found in any location");
-                }
-            } catch (Exception e) {
-                log.error("FILE CHECK ERROR: {}", e.getMessage(), e);
+            // Only the choker unchokes; a peer we choke knows its requests are void
+            if (peer.isAmChoking()) {
+                log.debug("Ignoring REQUEST for piece {} from peer {}, we are choking it", pieceIndex, peerId);
+                return;
             }
             
-            // Always try to send piece, regardless of choke state
-            log.info("PIECE RETRIEVAL: Getting piece {} for peer {} (we are {})", 
-                     pieceIndex, peerId, hasCompleteFile ? "a seeder" : "not a seeder");
-            
             // Check if this is us trying to request from ourselves (which is a problem)
             if (peerId.equals(localPeerId)) {
                 log.error("SELF REQUEST: Peer {} is requesting piece {} from itself!", peerId, pieceIndex);
                 return;
             }
             
+            // The source a seeder serves was located once by FileService.initialize; a block request
+            // reads just that block out of it (or out of the data or piece file of a download), and
+            // never more than a block, so no frame outgrows the transport's message size limit
+            int blockSize = fileService.getBlockSize();
             byte[] pieceData = null;
             try {
-                pieceData = fileService.getPiece(localPeerId, pieceIndex);
-                if (pieceData == null) {
-                    log.warn("PIECE NULL: getPiece returned null for piece {}", pieceIndex);
-                } else if (pieceData.length == 0) {
-                    log.warn("PIECE EMPTY: getPiece returned empty data for piece {}", pieceIndex);
+                if (offset != null) {
+                    int blockLength = length != null ? Math.min(length, blockSize) : blockSize;
+                    pieceData = fileService.readBlock(pieceIndex, offset, blockLength);
                 } else {
-                    log.info("PIECE FOUND: piece {} has {} bytes", pieceIndex, pieceData.length);
+                    pieceData = fileService.getPiece(localPeerId, pieceIndex);
                 }
             } catch (Exception e) {
-                log.error("PIECE RETRIEVAL ERROR: Failed to get piece {}: {}", pieceIndex, e.getMessage());
-                e.printStackTrace();
+                log.error("PIECE RETRIEVAL ERROR: Failed to get piece {}: {}", pieceIndex, e.getMessage(), e);
             }
             
-            if (pieceData != null && pieceData.length > 0) {
-                sendPieceToUser(peerId, pieceIndex, pieceData);
-            } else {
-                log.warn("PIECE MISSING: Piece {} not found for peer {} (data is {})", 
-                         pieceIndex, localPeerId, pieceData == null ? "null" : "empty");
-                
-                // If we're supposed to be a seeder but can't find the piece, try direct file access
-                if (hasCompleteFile && sourceFile != null) {
-                    log.info("EMERGENCY MODE: Attempting direct file access for piece {}", pieceIndex);
-                    try {
-                        int pieceSize = 1048576; // 1MB default
-                        
-                        // Try to get the actual piece size from config
-                        try {
-                            if (fileService.getTotalPieces() > 0) {
-                                pieceSize = (int)(sourceFile.length() / fileService.getTotalPieces());
-                                log.info("EMERGENCY MODE: Calculated piece size: {} bytes", pieceSize);
-                            }
-                        } catch (Exception e) {
-                            log.warn("EMERGENCY MODE: Could not calculate piece size, using default: {}", pieceSize);
-                        }
-                        
-                        try (RandomAccessFile raf = new RandomAccessFile(sourceFile, "r")) {
-                            long fileSize = raf.length();
-                            log.info("EMERGENCY MODE: File size: {} bytes, piece size: {} bytes, pieceIndex: {}", 
-                                    fileSize, pieceSize, pieceIndex);
-                            
-                            if (pieceIndex * pieceSize < fileSize) {
-                                int currentPieceSize = (int) Math.min(pieceSize, fileSize - pieceIndex * pieceSize);
-                                byte[] newPiece = new byte[currentPieceSize];
-                                
-                                log.info("EMERGENCY MODE: Reading {} bytes at offset {} for piece {}", 
-                                        currentPieceSize, pieceIndex * pieceSize, pieceIndex);
-                                
-                                raf.seek(pieceIndex * pieceSize);
-                                raf.readFully(newPiece, 0, currentPieceSize);
-                                
-                                log.info("EMERGENCY MODE: Successfully read piece {} (size: {})", 
-                                        pieceIndex, currentPieceSize);
-                                
-                                if (newPiece.length > 0) {
-                                    sendPieceToUser(peerId, pieceIndex, newPiece);
-                                    
-                                    // Save piece for future requests
-                                    fileService.savePieceToDisk(localPeerId, pieceIndex, newPiece);
-                                    log.info("EMERGENCY MODE: Saved piece {} to disk for future use", pieceIndex);
-                                } else {
-                                    log.error("EMERGENCY MODE: Read piece is empty!");
-                                }
-                            } else {
-                                log.error("EMERGENCY MODE: Piece index {} is beyond file size {} (piece size: {})", 
-                                        pieceIndex, fileSize, pieceSize);
-                            }
-                        }
-                    } catch (Exception e) {
-                        log.error("EMERGENCY MODE ERROR: Direct file access failed for piece {}: {}", 
-                                 pieceIndex, e.getMessage());
-                        e.printStackTrace();
-                    }
-                } else {
-                    // If we're not a seeder, try to send a HAVE message for pieces we actually have
-                    log.info("NOT A SEEDER: Cannot provide piece {}, checking what pieces we have", pieceIndex);
-                    try {
-                        BitSet ourBitfield = fileService.getBitfield();
-                        int totalPieces = fileService.getTotalPieces();
-                        log.info("OUR BITFIELD: We have {}/{} pieces", ourBitfield.cardinality(), totalPieces);
-                        
-                        // If we have at least one piece, try to send a HAVE message to keep communication going
-                        if (ourBitfield.cardinality() > 0) {
-                            int pieceWeHave = -1;
-                            for (int i = 0; i < totalPieces; i++) {
-                                if (ourBitfield.get(i)) {
-                                    pieceWeHave = i;
-                                    break;
-                                }
-                            }
-                            
-                            if (pieceWeHave >= 0) {
-                                log.info("FALLBACK: Sending HAVE for piece {} instead", pieceWeHave);
-                                Message haveMsg = new Message(Message.MessageType.HAVE, localPeerId, pieceWeHave, null, null);
-                                messagingTemplate.convertAndSendToUser(peerId, "/queue/messages", haveMsg);
-                                log.info("FALLBACK: HAVE message sent for piece {}", pieceWeHave);
-                            }
-                        }
-                    } catch (Exception e) {
-                        log.error("FALLBACK ERROR: {}", e.getMessage());
-                    }
+            // An empty block past the end of the piece is still an answer, it tells the requester where the piece ends
+            if (pieceData != null && offset != null) {
+                sendPieceToUser(peerId, pieceIndex, offset, pieceData);
+            } else if (pieceData != null && pieceData.length > 0) {
+                // A whole-piece request is answered block by block
+                for (int from = 0; from < pieceData.length; from += blockSize) {
+                    byte[] block = Arrays.copyOfRange(pieceData, from, Math.min(pieceData.length, from + blockSize));
+                    sendPieceToUser(peerId, pieceIndex, from, block);
                 }
+            } else {
+                // Nothing to answer with; the requester's request expires and goes to another peer
+                log.warn("PIECE MISSING: Piece {} not available for peer {}", pieceIndex, peerId);
             }
         });
     }
     
     /**
-     * Helper method to send piece data to a user with robust error handling
+     * Helper method to send piece data (or one block of it, already cut to size) to a user with robust error handling
      */
-    private void sendPieceToUser(String peerId, int pieceIndex, byte[] pieceData) {
+    private void sendPieceToUser(String peerId, int pieceIndex, Integer offset, byte[] pieceData) {
+        // Pending until it is sent, so a CANCEL that arrives in the meantime can still drop it
+        if (offset != null) {
+            pendingRequests.computeIfAbsent(peerId, id -> ConcurrentHashMap.newKeySet()).add(blockKey(pieceIndex, offset));
+        }
+        
+        // Over the upload limit: send it from the peer's queue once the buckets have refilled,
+        // a CANCEL that arrives in the meantime still drops it
+        long delay = bandwidthLimiter.reserveUpload(peerId, pieceData.length);
+        if (delay > 0) {
+            byte[] delayed = pieceData;
+            log.debug("THROTTLED: Holding piece {}{} for peer {} back {} ms", pieceIndex,
+                      offset != null ? " block @" + offset : "", peerId, delay);
+            messageDispatcher.schedule(peerId, delay, () -> transmitPiece(peerId, pieceIndex, offset, delayed),
+                                       () -> dropPiece(peerId, pieceIndex, offset, delayed.length));
+            return;
+        }
+        transmitPiece(peerId, pieceIndex, offset, pieceData);
+    }
+    
+    /**
+     * A held-back piece could not be queued for sending; the requester's request expires and goes
+     * to another peer.
+     */
+    private void dropPiece(String peerId, int pieceIndex, Integer offset, int length) {
+        if (offset != null) {
+            takePendingRequest(peerId, pieceIndex, offset);
+        }
+        bandwidthLimiter.refund(BandwidthLimiter.Direction.UPLOAD, peerId, length);
+        log.warn("THROTTLED: Dropped piece {}{} for peer {}, its dispatcher queue was full", pieceIndex,
+                 offset != null ? " block @" + offset : "", peerId);
+    }
+    
+    private void transmitPiece(String peerId, int pieceIndex, Integer offset, byte[] pieceData) {
+        if (offset != null && !takePendingRequest(peerId, pieceIndex, offset)) {
+            bandwidthLimiter.refund(BandwidthLimiter.Direction.UPLOAD, peerId, pieceData.length);
+            log.debug("REQUEST CANCELLED: Not sending piece {} block @{} to peer {}", pieceIndex, offset, peerId);
+            return;
+        }
+        
         try {
-            log.info("SENDING PIECE: {} (size: {} bytes) to peer {}", 
-                    pieceIndex, pieceData.length, peerId);
+            log.debug("SENDING PIECE: {}{} (size: {} bytes) to peer {}", 
+                      pieceIndex, offset != null ? " block @" + offset : "", pieceData.length, peerId);
             
-            // Send using traditional route
+            // Send over the peer's binary socket if it has one, otherwise the STOMP user queue
             try {
-                Message pieceMsg = new Message(Message.MessageType.PIECE, localPeerId, pieceIndex, pieceData, null);
-                messagingTemplate.convertAndSendToUser(peerId, "/queue/messages", pieceMsg);
-                log.info("PIECE SENT: {} to peer {} (size: {} bytes) via user queue", 
-                        pieceIndex, peerId, pieceData.length);
+                Message pieceMsg = new Message(Message.MessageType.PIECE, localPeerId, pieceIndex, pieceData, null,
+                                               offset, offset != null ? pieceData.length : null);
+                peerMessenger.send(peerId, pieceMsg);
+                bandwidthLimiter.record(BandwidthLimiter.Direction.UPLOAD, peerId, pieceData.length);
+                peerService.recordUpload(peerId, pieceData.length);
+                transferMetrics.pieceSent(peerId, pieceData.length);
+                log.debug("PIECE SENT: {} to peer {} (size: {} bytes) via {}", 
+                          pieceIndex, peerId, pieceData.length,
+                          peerMessenger.hasBinarySession(peerId) ? "binary frame" : "user queue");
             } catch (Exception e) {
                 log.error("PIECE SEND ERROR (user queue): Failed to send piece {}: {}", pieceIndex, e.getMessage());
                 
                 // Try alternate send method
                 try {
-                    Message pieceMsg = new Message(Message.MessageType.PIECE, localPeerId, pieceIndex, pieceData, null);
+                    Message pieceMsg = new Message(Message.MessageType.PIECE, localPeerId, pieceIndex, pieceData, null,
+                                                   offset, offset != null ? pieceData.length : null);
+                    pieceMsg.setTorrentId(peerMessenger.getTorrentId());
                     messagingTemplate.convertAndSend("/user/" + peerId + "/queue/messages", pieceMsg);
                     log.info("PIECE SENT: {} to peer {} (size: {} bytes) via direct path", 
                             pieceIndex, peerId, pieceData.length);
@@ -489,7 +461,9 @@ public class MessageService {
                     
                     // Try third method - via topic
                     try {
-                        Message pieceMsg = new Message(Message.MessageType.PIECE, localPeerId, pieceIndex, pieceData, null);
+                        Message pieceMsg = new Message(Message.MessageType.PIECE, localPeerId, pieceIndex, pieceData, null,
+                                                       offset, offset != null ? pieceData.length : null);
+                        pieceMsg.setTorrentId(peerMessenger.getTorrentId());
                         messagingTemplate.convertAndSend("/topic/pieces", pieceMsg);
                         log.info("PIECE SENT: {} (size: {} bytes) via topic broadcast", pieceIndex, pieceData.length);
                     } catch (Exception e3) {
@@ -503,20 +477,49 @@ public class MessageService {
         }
     }
     
-    private void handlePiece(String peerId, int pieceIndex, byte[] data) {
+    /**
+     * @return false if the peer cancelled this block request before we got to send it
+     */
+    private boolean takePendingRequest(String peerId, int pieceIndex, int offset) {
+        long key = blockKey(pieceIndex, offset);
+        Set<Long> pending = pendingRequests.get(peerId);
+        if (pending != null) {
+            pending.remove(key);
+        }
+        Set<Long> cancelled = cancelledRequests.get(peerId);
+        return cancelled == null || !cancelled.remove(key);
+    }
+    
+    private void handleCancel(String peerId, Integer pieceIndex, Integer offset) {
+        if (pieceIndex == null || offset == null) {
+            return;
+        }
+        
+        // Only requests we have not answered yet can be dropped
+        long key = blockKey(pieceIndex, offset);
+        Set<Long> pending = pendingRequests.get(peerId);
+        if (pending != null && pending.contains(key)) {
+            cancelledRequests.computeIfAbsent(peerId, id -> ConcurrentHashMap.newKeySet()).add(key);
+            log.info("Received CANCEL for piece {} block @{} from peer {}", pieceIndex, offset, peerId);
+        } else {
+            log.debug("Received CANCEL for piece {} block @{} from peer {}, nothing pending", pieceIndex, offset, peerId);
+        }
+    }
+    
+    private void handlePiece(String peerId, int pieceIndex, Integer offset, byte[] data) {
+        if (offset != null) {
+            handleBlock(peerId, pieceIndex, offset, data);
+            return;
+        }
+        
         log.info("Received PIECE {} (size: {} bytes) from peer {}", 
                  pieceIndex, (data != null ? data.length : 0), peerId);
         
         if (data == null || data.length == 0) {
-            log.error("Received empty data for piece {} from peer {}, requesting again", pieceIndex, peerId);
+            log.error("Received empty data for piece {} from peer {}", pieceIndex, peerId);
             
-            // Request the same piece again
-            Message requestMsg = new Message(Message.MessageType.REQUEST, localPeerId, pieceIndex, null, null);
-            messagingTemplate.convertAndSendToUser(peerId, "/queue/messages", requestMsg);
-            log.info("Re-sent REQUEST for piece {} to peer {} due to empty data", pieceIndex, peerId);
-            
-            // Also request a different piece to keep the download moving
-            requestPieceFrom(peerId);
+            // Keep the download moving, the piece is still missing and will be picked again
+            downloadScheduler.topUp(peerId);
             return;
         }
         
@@ -528,30 +531,55 @@ public class MessageService {
             
             // Record download statistics
             peerService.recordDownload(peerId, data.length);
-            
-            // Notify all peers that we have this piece
-            Message haveMsg = new Message(Message.MessageType.HAVE, localPeerId, pieceIndex, null, null);
-            peerService.getAllPeers().forEach(p -> {
-                if (!p.getPeerId().equals(localPeerId)) {
-                    try {
-                        messagingTemplate.convertAndSendToUser(p.getPeerId(), "/queue/messages", haveMsg);
-                    } catch (Exception e) {
-                        log.error("Error sending HAVE message to peer {}: {}", p.getPeerId(), e.getMessage());
-                    }
-                }
-            });
-            
-            log.info("Sent HAVE for piece {} to all peers", pieceIndex);
+            bandwidthLimiter.record(BandwidthLimiter.Direction.DOWNLOAD, peerId, data.length);
+            transferMetrics.pieceReceived(peerId, data.length);
         } catch (Exception e) {
             log.error("Error saving received piece {}: {}", pieceIndex, e.getMessage());
             e.printStackTrace();
         }
         
+        onPieceCompleted(peerId, pieceIndex);
+    }
+    
+    /**
+     * Stores one block; once the piece is fully assembled the usual completion handling runs.
+     */
+    private void handleBlock(String peerId, int pieceIndex, int offset, byte[] data) {
+        int size = data != null ? data.length : 0;
+        log.debug("Received block {}@{} (size: {} bytes) from peer {}", pieceIndex, offset, size, peerId);
+        
+        downloadScheduler.blockReceived(peerId, pieceIndex, offset);
+        peerService.recordDownload(peerId, size);
+        bandwidthLimiter.record(BandwidthLimiter.Direction.DOWNLOAD, peerId, size);
+        transferMetrics.pieceReceived(peerId, size);
+        
+        boolean completed;
+        try {
+            completed = fileService.receiveBlock(localPeerId, pieceIndex, offset, data);
+        } catch (Exception e) {
+            log.error("Error saving block {}@{}: {}", pieceIndex, offset, e.getMessage(), e);
+            completed = false;
+        }
+        
+        if (completed) {
+            log.info("Assembled piece {} from blocks (last block from peer {})", pieceIndex, peerId);
+            onPieceCompleted(peerId, pieceIndex);
+        } else {
+            // Keep this peer's request pipeline full
+            downloadScheduler.topUp(peerId);
+        }
+    }
+    
+    /**
+     * A piece was received and handed to the disk writer. It is announced, and the download
+     * completed, from {@link #onPiecesDurable} once it is durable.
+     */
+    private void onPieceCompleted(String peerId, int pieceIndex) {
+        transferMetrics.pieceCompleted();
         try {
             // Check if file is complete
             if (fileService.hasCompletedDownload()) {
-                log.info("Download complete! Merging file...");
-                fileService.mergeFile(localPeerId);
+                log.info("All pieces received, completing the file once they are on disk");
             } else {
                 // Check how many pieces we have now
                 BitSet bitfield = fileService.getBitfield();
@@ -567,15 +595,15 @@ public class MessageService {
                     if (peer.isHasFile()) {
                         try {
                             Message interestedMsg = new Message(Message.MessageType.INTERESTED, localPeerId, null, null, null);
-                            messagingTemplate.convertAndSendToUser(peerId, "/queue/messages", interestedMsg);
+                            peerMessenger.send(peerId, interestedMsg);
                             log.info("Re-sent INTERESTED to seeder peer {} to maintain connection", peerId);
-                            peer.setInterested(true);
+                            peer.setAmInterested(true);
                             
                             // Also send unchoke message to the seeder
                             Message unchokeMsg = new Message(Message.MessageType.UNCHOKE, localPeerId, null, null, null);
-                            messagingTemplate.convertAndSendToUser(peerId, "/queue/messages", unchokeMsg);
+                            peerMessenger.send(peerId, unchokeMsg);
                             log.info("Re-sent UNCHOKE to seeder peer {} to maintain connection", peerId);
-                            peer.setChoked(false);
+                            peer.setAmChoking(false);
                         } catch (Exception e) {
                             log.error("Error sending messages to maintain connection with peer {}: {}", 
                                     peerId, e.getMessage());
@@ -583,182 +611,137 @@ public class MessageService {
                     }
                 });
                 
-                // Immediately request the next piece from the same peer that just sent us data
-                // This prioritizes peers that are actively sending data
-                log.info("Immediately requesting next piece from peer {} that just sent data", peerId);
-                requestPieceFrom(peerId);
-                
-                // Request more pieces in parallel - but stagger them slightly to avoid overwhelming the network
-                Thread requestMorePiecesThread = new Thread(() -> {
-                    try {
-                        // Wait a tiny bit before requesting more pieces
-                        Thread.sleep(50);
-                        
-                        // Request multiple pieces in parallel from the current peer
-                        for (int i = 0; i < 5; i++) {
-                            requestPieceFrom(peerId);
-                        }
-                        
-                        // Request pieces from all available unchoked peers
-                        List<Peer> unchokedPeers = peerService.getAllPeers().stream()
-                            .filter(p -> !p.getPeerId().equals(localPeerId))
-                            .filter(p -> !p.isChoked() && p.getBitfield().cardinality() > 0)
-                            .collect(Collectors.toList());
-                        
-                        log.info("Requesting pieces from {} available unchoked peers", unchokedPeers.size());
-                        
-                        for (Peer p : unchokedPeers) {
-                            if (!p.getPeerId().equals(peerId)) { // Skip the peer we just requested from above
-                                log.info("Requesting piece from additional peer {}", p.getPeerId());
-                                requestPieceFrom(p.getPeerId());
-                            }
-                        }
-                    } catch (Exception e) {
-                        log.error("Error in request thread: {}", e.getMessage());
-                    }
-                });
-                requestMorePiecesThread.setDaemon(true);
-                requestMorePiecesThread.start();
+                // Refill the pipeline of the peer that just sent us data; other peers are
+                // topped up by their own events and the scheduler's sweep
+                downloadScheduler.topUp(peerId);
             }
         } catch (Exception e) {
             log.error("Error in piece handling: {}", e.getMessage());
             e.printStackTrace();
             
             // Continue requesting pieces despite errors
-            requestPieceFrom(peerId);
+            downloadScheduler.topUp(peerId);
         }
     }
     
+    /**
+     * Takes over the file layout a peer announced, see {@link FileService#applyManifest}. A peer whose
+     * manifest does not match the one this swarm is pinned to is disconnected from the swarm.
+     *
+     * @return false if the peer was refused
+     */
+    private boolean applyManifest(String peerId, Manifest manifest) {
+        FileService.ManifestMatch match = fileService.applyManifest(manifest);
+        if (match == FileService.ManifestMatch.MISMATCH) {
+            log.warn("MANIFEST: Peer {} announced {}, disconnecting it", peerId, manifest.getContentId());
+            refusedPeers.add(peerId);
+            handleNotInterested(peerId);
+            handlePeerDisconnected(peerId);
+            return false;
+        }
+        if (refusedPeers.remove(peerId)) {
+            log.info("MANIFEST: Peer {} is back with matching content", peerId);
+        }
+        if (match == FileService.ManifestMatch.ADOPTED) {
+            log.info("MANIFEST: Using manifest {} from peer {}", manifest.getContentId(), peerId);
+            downloadScheduler.layoutChanged();
+            peerService.rebuildAvailability();
+        }
+        return true;
+    }
+    
     private void handleHandshake(String peerId) {
         log.info("Received HANDSHAKE from peer {}", peerId);
         
         // Send our bitfield
-        BitSet bitfield = fileService.getBitfield();
-        StringBuilder bitfieldStr = new StringBuilder();
-        
-        for (int i = 0; i < fileService.getTotalPieces(); i++) {
-            bitfieldStr.append(bitfield.get(i) ? '1' : '0');
-        }
+        Message bitfieldMsg = bitfieldMessage(peerId);
+        peerMessenger.send(peerId, bitfieldMsg);
         
-        Message bitfieldMsg = new Message(Message.MessageType.BITFIELD, localPeerId, null, null, bitfieldStr.toString());
-        messagingTemplate.convertAndSendToUser(peerId, "/queue/messages", bitfieldMsg);
-        
-        log.info("Sent BITFIELD to peer {}", peerId);
+        log.info("Sent BITFIELD to peer {} ({})", peerId, bitfieldMsg.getBitfieldFormat());
     }
     
-    private void requestPieceFrom(String peerId) {
-        peerService.getPeer(peerId).ifPresent(peer -> {
-            if (!peer.isChoked()) {
-                log.info("Requesting piece from peer {} (not choked)", peerId);
-                List<Integer> missingPieces = fileService.getMissingPieces();
-                
-                log.info("We have {} missing pieces total", missingPieces.size());
-                
-                // Find pieces that the peer has
-                BitSet peerBitfield = peer.getBitfield();
-                
-                // Always ensure seeder has complete bitfield
-                if (peer.isHasFile()) {
-                    int totalPieces = fileService.getTotalPieces();
-                    if (peerBitfield.cardinality() < totalPieces) {
-                        log.info("Peer {} is a seeder, ensuring full bitfield ({} pieces)", 
-                                peerId, totalPieces);
-                        peerBitfield.set(0, totalPieces);
-                        peer.setBitfield(peerBitfield);
-                    }
-                }
-                
-                StringBuilder bitfieldStr = new StringBuilder();
-                for (int i = 0; i < fileService.getTotalPieces(); i++) {
-                    bitfieldStr.append(peerBitfield.get(i) ? '1' : '0');
-                }
-                log.info("Peer {} bitfield: {}", peerId, bitfieldStr.toString());
-                
-                // Debug peerBitfield cardinality
-                log.info("Peer {} has {} pieces according to bitfield", peerId, peerBitfield.cardinality());
-                
-                if (missingPieces.isEmpty()) {
-                    log.info("No missing pieces to request from peer {}", peerId);
-                    return;
-                }
-                
-                // Find pieces that the peer has and we don't
-                List<Integer> piecesToRequest = new ArrayList<>(missingPieces);
-                piecesToRequest.removeIf(pieceIndex -> !peerBitfield.get(pieceIndex));
-                log.info("After filtering, peer {} has {} of our missing pieces", 
-                          peerId, piecesToRequest.size());
-                
-                if (piecesToRequest.isEmpty() && peer.isHasFile()) {
-                    log.warn("Seeder peer {} shows no available pieces despite having the file", peerId);
-                    
-                    // For seeders, explicitly request the next missing piece even if bitfield doesn't show it
-                    // This handles the case where bitfield might be incorrect but the seeder actually has all pieces
-                    if (!missingPieces.isEmpty()) {
-                        int nextPieceToRequest = missingPieces.get(0);
-                        log.info("Forcing request for piece {} from seeder peer {} despite bitfield", 
-                                nextPieceToRequest, peerId);
-                        
-                        // Send REQUEST message
-                        Message requestMsg = new Message(Message.MessageType.REQUEST, localPeerId, nextPieceToRequest, null, null);
-                        messagingTemplate.convertAndSendToUser(peerId, "/queue/messages", requestMsg);
-                        
-                        log.info("Sent FORCED REQUEST for piece {} to seeder peer {}", nextPieceToRequest, peerId);
-                        return;
+    /**
+     * Announces pieces the disk writer made durable and completes the download after the last one.
+     * Runs on the disk writer's thread.
+     */
+    private void onPiecesDurable(List<Integer> pieces) {
+        try {
+            // Notify all peers that we have these pieces, batched with other HAVEs for a short while
+            peerService.getAllPeers().forEach(p -> {
+                if (!p.getPeerId().equals(localPeerId)) {
+                    try {
+                        pieces.forEach(pieceIndex -> peerMessenger.queueHave(p.getPeerId(), localPeerId, pieceIndex));
+                    } catch (Exception e) {
+                        log.error("Error sending HAVE message to peer {}: {}", p.getPeerId(), e.getMessage());
                     }
                 }
-                
-                if (!piecesToRequest.isEmpty()) {
-                    int selectedPieceIndex;
-                    
-                    // For video files, request pieces sequentially for better streaming
-                    String filename = fileService.getCurrentFilename();
-                    boolean isVideo = filename != null && 
-                                     (filename.toLowerCase().endsWith(".mp4") || 
-                                      filename.toLowerCase().endsWith(".webm") ||
-                                      filename.toLowerCase().endsWith(".mov"));
-                    
-                    if (isVideo) {
-                        // For video streaming, pick the lowest index missing piece
-                        selectedPieceIndex = piecesToRequest.stream()
-                                            .min(Integer::compare)
-                                            .orElse(piecesToRequest.get(0));
-                        log.info("Video streaming mode: Selected piece {} (sequential)", selectedPieceIndex);
-                    } else {
-                        // For other files, random selection
-                        int randomIndex = new Random().nextInt(piecesToRequest.size());
-                        selectedPieceIndex = piecesToRequest.get(randomIndex);
-                        log.info("Normal mode: Selected piece {} (random)", selectedPieceIndex);
-                    }
-                    
-                    // Send REQUEST message
-                    Message requestMsg = new Message(Message.MessageType.REQUEST, localPeerId, selectedPieceIndex, null, null);
-                    messagingTemplate.convertAndSendToUser(peerId, "/queue/messages", requestMsg);
-                    
-                    log.info("Sent REQUEST for piece {} to peer {}", selectedPieceIndex, peerId);
-                } else {
-                    // Only send NOT_INTERESTED if this isn't a seeder - we're always interested in seeders
-                    if (!peer.isHasFile()) {
-                        // We're not interested in this peer anymore
-                        peer.setInterested(false);
-                        
-                        Message notInterestedMsg = new Message(Message.MessageType.NOT_INTERESTED, localPeerId, null, null, null);
-                        messagingTemplate.convertAndSendToUser(peerId, "/queue/messages", notInterestedMsg);
-                        
-                        log.info("Sent NOT_INTERESTED to peer {} (no needed pieces)", peerId);
-                    }
+            });
+            
+            log.info("Queued HAVE for {} durable pieces to all peers", pieces.size());
+        } catch (Exception e) {
+            log.error("Error announcing pieces {}: {}", pieces, e.getMessage());
+        }
+        
+        if (fileService.isDownloadDurable()) {
+            log.info("Download complete! Merging file...");
+            fileService.mergeFile(localPeerId);
+        }
+    }
+    
+    /**
+     * The file we seed had to be hashed, in the background. Peers got our BITFIELD without a
+     * manifest until now, so they get it again with one.
+     */
+    private void onManifestHashed() {
+        peerService.getAllPeers().forEach(p -> {
+            if (!p.getPeerId().equals(localPeerId)) {
+                try {
+                    peerMessenger.send(p.getPeerId(), bitfieldMessage(p.getPeerId()));
+                } catch (Exception e) {
+                    log.error("Error sending manifest to peer {}: {}", p.getPeerId(), e.getMessage());
                 }
-            } else {
-                // Try sending INTERESTED to see if the peer will unchoke us
-                log.info("Peer {} has choked us, sending INTERESTED to request unchoke", peerId);
-                Message interestedMsg = new Message(Message.MessageType.INTERESTED, localPeerId, null, null, null);
-                messagingTemplate.convertAndSendToUser(peerId, "/queue/messages", interestedMsg);
-                peer.setInterested(true);
             }
         });
+        log.info("Sent BITFIELD with the manifest of our file to all peers");
+    }
+    
+    /**
+     * Our durable pieces, in the most compact encoding the peer said it can read, with our manifest.
+     */
+    private Message bitfieldMessage(String peerId) {
+        BitSet bitfield = fileService.getDurableBitfield();
+        int totalPieces = fileService.getTotalPieces();
+        BitfieldCodec.Format format = BitfieldCodec.choose(bitfield, totalPieces, peerMessenger.getBitfieldFormats(peerId));
+        
+        Message bitfieldMsg = new Message(Message.MessageType.BITFIELD, localPeerId, null, null,
+                                          BitfieldCodec.encode(bitfield, totalPieces, format));
+        bitfieldMsg.setBitfieldFormat(format.wireName());
+        bitfieldMsg.setBitfieldFormats(SUPPORTED_BITFIELD_FORMATS);
+        bitfieldMsg.setManifest(fileService.getManifest());
+        return bitfieldMsg;
+    }
+    
+    private void recordBitfieldFormats(String peerId, List<String> formats) {
+        // Peers that do not announce any formats only read ascii, and single HAVEs
+        if (formats == null) {
+            peerMessenger.setBitfieldFormats(peerId, null);
+            return;
+        }
+        Set<BitfieldCodec.Format> accepted = EnumSet.of(BitfieldCodec.Format.ASCII);
+        for (String name : formats) {
+            try {
+                accepted.add(BitfieldCodec.Format.parse(name));
+            } catch (IllegalArgumentException e) {
+                log.debug("Peer {} announced unknown bitfield format {}", peerId, name);
+            }
+        }
+        peerMessenger.setBitfieldFormats(peerId, accepted);
     }
     
     public void sendHandshake(String targetPeerId) {
         Message handshakeMsg = new Message(Message.MessageType.HANDSHAKE, localPeerId, null, null, null);
+        handshakeMsg.setManifest(fileService.getManifest());
+        handshakeMsg.setBitfieldFormats(SUPPORTED_BITFIELD_FORMATS);
         
         try {
             // Get target peer info
@@ -769,71 +752,38 @@ public class MessageService {
                 }
             });
             
-            messagingTemplate.convertAndSendToUser(targetPeerId, "/queue/messages", handshakeMsg);
+            peerMessenger.send(targetPeerId, handshakeMsg);
             log.info("Sent HANDSHAKE to peer {}", targetPeerId);
             
-            // Force immediate BITFIELD message to follow handshake
-            BitSet bitfield = fileService.getBitfield();
-            StringBuilder bitfieldStr = new StringBuilder();
-            
-            for (int i = 0; i < fileService.getTotalPieces(); i++) {
-                bitfieldStr.append(bitfield.get(i) ? '1' : '0');
-            }
-            
-            Message bitfieldMsg = new Message(Message.MessageType.BITFIELD, localPeerId, null, null, bitfieldStr.toString());
-            messagingTemplate.convertAndSendToUser(targetPeerId, "/queue/messages", bitfieldMsg);
-            log.info("Sent BITFIELD to peer {} after handshake (we have {}/{} pieces)", 
-                    targetPeerId, bitfield.cardinality(), fileService.getTotalPieces());
+            // Force immediate BITFIELD message to follow handshake. Until the peer has told us which
+            // encodings it reads this is ascii, its reply to the handshake tells us for next time
+            Message bitfieldMsg = bitfieldMessage(targetPeerId);
+            peerMessenger.send(targetPeerId, bitfieldMsg);
+            log.info("Sent BITFIELD to peer {} after handshake ({}, we have {}/{} pieces)", targetPeerId,
+                     bitfieldMsg.getBitfieldFormat(), fileService.getBitfield().cardinality(), fileService.getTotalPieces());
             
             // Always send INTERESTED to seeders to ensure connection stays alive
             peerService.getPeer(targetPeerId).ifPresent(peer -> {
                 if (peer.isHasFile()) {
                     // Send INTERESTED message to the seeder
                     Message interestedMsg = new Message(Message.MessageType.INTERESTED, localPeerId, null, null, null);
-                    messagingTemplate.convertAndSendToUser(targetPeerId, "/queue/messages", interestedMsg);
+                    peerMessenger.send(targetPeerId, interestedMsg);
                     log.info("Sent INTERESTED to seeder peer {}", targetPeerId);
                     
                     // Also send UNCHOKE to the seeder (even though they're not downloading from us)
                     // This helps establish bidirectional communication
                     Message unchokeMsg = new Message(Message.MessageType.UNCHOKE, localPeerId, null, null, null);
-                    messagingTemplate.convertAndSendToUser(targetPeerId, "/queue/messages", unchokeMsg);
+                    peerMessenger.send(targetPeerId, unchokeMsg);
                     log.info("Sent UNCHOKE to seeder peer {}", targetPeerId);
                     
                     // Update peer state in our local tracking
-                    peer.setInterested(true);
-                    peer.setChoked(false);
+                    peer.setAmInterested(true);
+                    peer.setAmChoking(false);
                 }
             });
             
             // Now force a connection from the other direction too
             sendRequestForMissingPieces(targetPeerId);
-            
-            // For seeders, schedule repeated piece requests to maintain connection
-            peerService.getPeer(targetPeerId).ifPresent(peer -> {
-                if (peer.isHasFile()) {
-                    Thread keepAliveThread = new Thread(() -> {
-                        try {
-                            // Wait a bit before starting the keep-alive requests
-                            Thread.sleep(1000);
-                            
-                            // Send request for up to 5 missing pieces immediately
-                            List<Integer> missingPieces = fileService.getMissingPieces();
-                            int piecesToRequest = Math.min(5, missingPieces.size());
-                            
-                            for (int i = 0; i < piecesToRequest; i++) {
-                                int pieceIndex = missingPieces.get(i);
-                                requestSpecificPiece(targetPeerId, pieceIndex);
-                                // Add a small delay between requests
-                                Thread.sleep(100);
-                            }
-                        } catch (Exception e) {
-                            log.error("Error in keep-alive thread for seeder {}", targetPeerId, e);
-                        }
-                    });
-                    keepAliveThread.setDaemon(true);
-                    keepAliveThread.start();
-                }
-            });
         } catch (Exception e) {
             log.error("Error sending handshake to peer {}", targetPeerId, e);
         }
@@ -848,20 +798,15 @@ public class MessageService {
                 peerService.getPeer(targetPeerId).ifPresent(peer -> {
                     // Send INTERESTED message
                     Message interestedMsg = new Message(Message.MessageType.INTERESTED, localPeerId, null, null, null);
-                    messagingTemplate.convertAndSendToUser(targetPeerId, "/queue/messages", interestedMsg);
+                    peerMessenger.send(targetPeerId, interestedMsg);
                     log.info("Sent INTERESTED to peer {} to start download", targetPeerId);
                     
                     // Mark as interested so future unchokes will trigger requests
-                    peer.setInterested(true);
+                    peer.setAmInterested(true);
                     
-                    // If peer is a seeder, also attempt to immediately request a piece
-                    if (peer.isHasFile() && !peer.isChoked()) {
-                        // Only request if we're not choked
-                        int pieceToRequest = missingPieces.get(0); // Get first missing piece
-                        log.info("Seeder detected: Immediately requesting piece {} from peer {}", pieceToRequest, targetPeerId);
-                        
-                        Message requestMsg = new Message(Message.MessageType.REQUEST, localPeerId, pieceToRequest, null, null);
-                        messagingTemplate.convertAndSendToUser(targetPeerId, "/queue/messages", requestMsg);
+                    // If the seeder already unchoked us, start requesting blocks
+                    if (!peer.isPeerChoking()) {
+                        downloadScheduler.scheduleTopUp(targetPeerId);
                     }
                 });
             }
@@ -869,35 +814,4 @@ public class MessageService {
             log.error("Error sending requests for missing pieces to peer {}", targetPeerId, e);
         }
     }
-    
-    /**
-     * Manually request a specific piece from a peer
-     * This is useful for testing or recovering from stalled downloads
-     */
-    public void requestSpecificPiece(String targetPeerId, int pieceIndex) {
-        log.info("Manually requesting piece {} from peer {}", pieceIndex, targetPeerId);
-        
-        peerService.getPeer(targetPeerId).ifPresent(peer -> {
-            // First make sure we're not choked
-            if (peer.isChoked()) {
-                log.info("Peer {} has choked us, sending INTERESTED first", targetPeerId);
-                Message interestedMsg = new Message(Message.MessageType.INTERESTED, localPeerId, null, null, null);
-                messagingTemplate.convertAndSendToUser(targetPeerId, "/queue/messages", interestedMsg);
-                
-                // Force unchoke the peer so we can request pieces immediately
-                log.info("Force-unchoking peer {} to allow immediate piece requests", targetPeerId);
-                peer.setChoked(false);
-                
-                // Send an unchoke message to the peer as well
-                Message unchokeMsg = new Message(Message.MessageType.UNCHOKE, localPeerId, null, null, null);
-                messagingTemplate.convertAndSendToUser(targetPeerId, "/queue/messages", unchokeMsg);
-            }
-            
-            // Now send the REQUEST message regardless of previous choke state
-            Message requestMsg = new Message(Message.MessageType.REQUEST, localPeerId, pieceIndex, null, null);
-            messagingTemplate.convertAndSendToUser(targetPeerId, "/queue/messages", requestMsg);
-            
-            log.info("Sent REQUEST for piece {} to peer {}", pieceIndex, targetPeerId);
-        });
-    }
-}
\ No newline at end of file
+}
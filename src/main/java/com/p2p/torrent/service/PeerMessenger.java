@@ -0,0 +1,360 @@
+package com.p2p.torrent.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.p2p.torrent.config.TorrentConfig;
+import com.p2p.torrent.model.BitfieldCodec;
+import com.p2p.torrent.model.Message;
+import com.p2p.torrent.model.MessageCodec;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Single outbound path for peer messages.
+ *
+ * Peers connected to the raw {@code /ws-binary} endpoint get PIECE, REQUEST, HAVE and CANCEL as binary
+ * frames and everything else as JSON text frames on the same socket, so ordering is preserved.
+ * All other peers are reached through the STOMP user queue as before.
+ *
+ * Two kinds of control traffic are thinned out on the way:
+ * <ul>
+ *   <li>HAVEs are collected per peer for {@code p2p.haveBatchWindowMillis} and go out as one
+ *       HAVE_BATCH to peers that announced {@code bitfieldFormats} (older peers get the HAVEs one
+ *       by one at the end of the window)</li>
+ *   <li>CHOKE/UNCHOKE and INTERESTED/NOT_INTERESTED are dropped when they repeat the last state
+ *       sent to the peer; a HANDSHAKE or a closed connection starts over</li>
+ * </ul>
+ *
+ * The bean speaks for the default swarm. Every other swarm of the node sends through its own view
+ * from {@link #forSwarm}, which stamps the torrent ID on each message and keeps its own choke,
+ * interest and HAVE state, while connections, announced formats and counters stay shared.
+ */
+@Service
+@Slf4j
+public class PeerMessenger {
+    private static final String USER_QUEUE = "/queue/messages";
+
+    private final SimpMessagingTemplate messagingTemplate;
+    private final ObjectMapper objectMapper;
+    private final TorrentConfig config;
+    private final TransferMetrics transferMetrics;
+
+    // Torrent ID stamped on outgoing messages, null for the default swarm
+    private final String torrentId;
+
+    private final Map<String, WebSocketSession> binarySessions;
+
+    // Bitfield encodings each peer announced it reads; peers in here also accept HAVE_BATCH
+    private final Map<String, Set<BitfieldCodec.Format>> bitfieldFormats;
+
+    // HAVEs waiting for the end of the batch window, and the last choke/interest state sent per peer
+    private final Map<String, PendingHaves> pendingHaves = new ConcurrentHashMap<>();
+    private final Map<String, Message.MessageType> chokeSent = new ConcurrentHashMap<>();
+    private final Map<String, Message.MessageType> interestSent = new ConcurrentHashMap<>();
+
+    // This messenger and every swarm view made from it
+    private final List<PeerMessenger> views;
+
+    private final ScheduledExecutorService haveFlusher;
+
+    private final LongAdder havesQueued;
+    private final LongAdder haveMessagesSent;
+    private final LongAdder haveBatchesSent;
+    private final Map<Message.MessageType, LongAdder> suppressed;
+
+    @Autowired
+    public PeerMessenger(SimpMessagingTemplate messagingTemplate, ObjectMapper objectMapper, TorrentConfig config,
+                         TransferMetrics transferMetrics) {
+        this.messagingTemplate = messagingTemplate;
+        this.objectMapper = objectMapper;
+        this.config = config;
+        this.transferMetrics = transferMetrics;
+        this.torrentId = null;
+        this.binarySessions = new ConcurrentHashMap<>();
+        this.bitfieldFormats = new ConcurrentHashMap<>();
+        this.views = new CopyOnWriteArrayList<>();
+        this.haveFlusher = Executors.newSingleThreadScheduledExecutor();
+        this.havesQueued = new LongAdder();
+        this.haveMessagesSent = new LongAdder();
+        this.haveBatchesSent = new LongAdder();
+        this.suppressed = new ConcurrentHashMap<>();
+        views.add(this);
+    }
+
+    private PeerMessenger(PeerMessenger shared, String torrentId) {
+        this.messagingTemplate = shared.messagingTemplate;
+        this.objectMapper = shared.objectMapper;
+        this.config = shared.config;
+        this.transferMetrics = shared.transferMetrics;
+        this.torrentId = torrentId;
+        this.binarySessions = shared.binarySessions;
+        this.bitfieldFormats = shared.bitfieldFormats;
+        this.views = shared.views;
+        this.haveFlusher = shared.haveFlusher;
+        this.havesQueued = shared.havesQueued;
+        this.haveMessagesSent = shared.haveMessagesSent;
+        this.haveBatchesSent = shared.haveBatchesSent;
+        this.suppressed = shared.suppressed;
+        views.add(this);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        haveFlusher.shutdownNow();
+    }
+
+    /**
+     * A messenger for another swarm on the same connections.
+     */
+    public PeerMessenger forSwarm(String torrentId) {
+        return new PeerMessenger(this, torrentId);
+    }
+
+    /**
+     * @return the torrent ID stamped on outgoing messages, null for the default swarm
+     */
+    public String getTorrentId() {
+        return torrentId;
+    }
+
+    /**
+     * Detaches a swarm view; HAVEs still waiting for their window are dropped.
+     */
+    public void close() {
+        views.remove(this);
+        pendingHaves.clear();
+    }
+
+    public void registerSession(String peerId, WebSocketSession session) {
+        WebSocketSession previous = binarySessions.put(peerId, session);
+        if (previous != session) {
+            log.info("BINARY SESSION: Peer {} bound to session {}", peerId, session.getId());
+        }
+    }
+
+    /**
+     * @return the peers that were bound to the closed session
+     */
+    public List<String> unregisterSession(WebSocketSession session) {
+        List<String> peerIds = new ArrayList<>();
+        binarySessions.entrySet().removeIf(entry -> {
+            if (entry.getValue().getId().equals(session.getId())) {
+                peerIds.add(entry.getKey());
+                return true;
+            }
+            return false;
+        });
+        views.forEach(view -> peerIds.forEach(view::resetPeerState));
+        return peerIds;
+    }
+
+    public boolean hasBinarySession(String peerId) {
+        WebSocketSession session = binarySessions.get(peerId);
+        return session != null && session.isOpen();
+    }
+
+    /**
+     * Records the bitfield encodings a peer announced; null means it announced none and only
+     * understands ascii bitfields and single HAVEs.
+     */
+    public void setBitfieldFormats(String peerId, Set<BitfieldCodec.Format> formats) {
+        if (formats == null) {
+            bitfieldFormats.remove(peerId);
+        } else {
+            bitfieldFormats.put(peerId, formats);
+        }
+    }
+
+    public Set<BitfieldCodec.Format> getBitfieldFormats(String peerId) {
+        return bitfieldFormats.getOrDefault(peerId, EnumSet.of(BitfieldCodec.Format.ASCII));
+    }
+
+    /**
+     * The peer (re)connected or left: it knows nothing about the state we sent before.
+     */
+    public void resetPeerState(String peerId) {
+        chokeSent.remove(peerId);
+        interestSent.remove(peerId);
+    }
+
+    /**
+     * Announces a piece to the peer at the end of the current batch window.
+     */
+    public void queueHave(String peerId, String senderId, int pieceIndex) {
+        havesQueued.increment();
+        long window = config.getHaveBatchWindowMillis();
+        if (window <= 0) {
+            sendHave(peerId, new Message(Message.MessageType.HAVE, senderId, pieceIndex, null, null));
+            return;
+        }
+
+        boolean[] opened = new boolean[1];
+        pendingHaves.compute(peerId, (id, pending) -> {
+            if (pending == null) {
+                pending = new PendingHaves(senderId);
+                opened[0] = true;
+            }
+            pending.pieces.set(pieceIndex);
+            return pending;
+        });
+        if (opened[0]) {
+            try {
+                haveFlusher.schedule(() -> flushHaves(peerId), window, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                flushHaves(peerId);
+            }
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        long queued = havesQueued.sum();
+        long sent = haveMessagesSent.sum() + haveBatchesSent.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("haveBatchWindowMillis", config.getHaveBatchWindowMillis());
+        stats.put("havesQueued", queued);
+        stats.put("haveMessagesSent", haveMessagesSent.sum());
+        stats.put("haveBatchesSent", haveBatchesSent.sum());
+        stats.put("haveMessagesSaved", queued - sent - pendingHaves.values().stream().mapToLong(PendingHaves::size).sum());
+        Map<String, Long> suppressedByType = new LinkedHashMap<>();
+        suppressed.forEach((type, count) -> suppressedByType.put(type.name(), count.sum()));
+        stats.put("stateMessagesSuppressed", suppressedByType.values().stream().mapToLong(Long::longValue).sum());
+        stats.put("stateMessagesSuppressedByType", suppressedByType);
+        return stats;
+    }
+
+    public void send(String peerId, Message message) {
+        if (isRedundantState(peerId, message.getType())) {
+            suppressed.computeIfAbsent(message.getType(), type -> new LongAdder()).increment();
+            log.debug("Not sending {} to peer {}, it already has that state", message.getType(), peerId);
+            return;
+        }
+        if (message.getType() == Message.MessageType.HANDSHAKE) {
+            resetPeerState(peerId);
+        } else if (message.getType() == Message.MessageType.CHOKE || message.getType() == Message.MessageType.UNCHOKE) {
+            transferMetrics.chokeSent(message.getType());
+        }
+        if (torrentId != null) {
+            message.setTorrentId(torrentId);
+        }
+
+        WebSocketSession session = binarySessions.get(peerId);
+        if (session == null || !session.isOpen()) {
+            messagingTemplate.convertAndSendToUser(peerId, USER_QUEUE, message);
+            return;
+        }
+
+        try {
+            // Frames for one peer must not interleave, in particular the two halves of a piece
+            synchronized (session) {
+                if (MessageCodec.isBinary(message.getType())) {
+                    sendBinary(session, message);
+                } else {
+                    session.sendMessage(new TextMessage(objectMapper.writeValueAsString(message)));
+                }
+            }
+        } catch (IOException e) {
+            log.warn("BINARY SEND FAILED: {} to peer {} ({}), falling back to STOMP",
+                     message.getType(), peerId, e.getMessage());
+            binarySessions.remove(peerId, session);
+            messagingTemplate.convertAndSendToUser(peerId, USER_QUEUE, message);
+        }
+    }
+
+    /**
+     * @return true for a choke or interest message that repeats what the peer was last told
+     */
+    private boolean isRedundantState(String peerId, Message.MessageType type) {
+        switch (type) {
+            case CHOKE:
+            case UNCHOKE:
+                return chokeSent.put(peerId, type) == type;
+            case INTERESTED:
+            case NOT_INTERESTED:
+                return interestSent.put(peerId, type) == type;
+            default:
+                return false;
+        }
+    }
+
+    private void flushHaves(String peerId) {
+        PendingHaves pending = pendingHaves.remove(peerId);
+        if (pending == null) {
+            return;
+        }
+
+        Set<BitfieldCodec.Format> formats = bitfieldFormats.get(peerId);
+        if (formats == null || pending.size() == 1) {
+            for (int i = pending.pieces.nextSetBit(0); i >= 0; i = pending.pieces.nextSetBit(i + 1)) {
+                sendHave(peerId, new Message(Message.MessageType.HAVE, pending.senderId, i, null, null));
+            }
+            return;
+        }
+
+        // Encoded like a bitfield that only has the new pieces set
+        int length = pending.pieces.length();
+        BitfieldCodec.Format format = BitfieldCodec.choose(pending.pieces, length, formats);
+        Message batch = new Message(Message.MessageType.HAVE_BATCH, pending.senderId, null, null,
+                                    BitfieldCodec.encode(pending.pieces, length, format));
+        batch.setBitfieldFormat(format.wireName());
+        send(peerId, batch);
+        haveBatchesSent.increment();
+        log.debug("Sent HAVE_BATCH of {} pieces to peer {}", pending.size(), peerId);
+    }
+
+    private void sendHave(String peerId, Message have) {
+        send(peerId, have);
+        haveMessagesSent.increment();
+    }
+
+    private void sendBinary(WebSocketSession session, Message message) throws IOException {
+        ByteBuffer header = MessageCodec.encodeHeader(message);
+        byte[] data = message.getData();
+
+        if (data == null || data.length == 0) {
+            session.sendMessage(new BinaryMessage(header, true));
+            return;
+        }
+
+        // Header and payload go out as two fragments of one frame, so the piece is never copied
+        session.sendMessage(new BinaryMessage(header, false));
+        session.sendMessage(new BinaryMessage(ByteBuffer.wrap(data), true));
+    }
+
+    private static final class PendingHaves {
+        private final String senderId;
+        private final BitSet pieces = new BitSet();
+
+        PendingHaves(String senderId) {
+            this.senderId = senderId;
+        }
+
+        long size() {
+            return pieces.cardinality();
+        }
+    }
+}
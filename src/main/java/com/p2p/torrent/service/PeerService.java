@@ -1,6 +1,7 @@
 package com.p2p.torrent.service;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -9,18 +10,18 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
-import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.stereotype.Service;
 
 import com.p2p.torrent.config.TorrentConfig;
 import com.p2p.torrent.model.Message;
+import com.p2p.torrent.model.PartialPiece;
 import com.p2p.torrent.model.Peer;
 
 import lombok.RequiredArgsConstructor;
@@ -31,35 +32,39 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class PeerService {
     private final TorrentConfig config;
-    private final SimpMessagingTemplate messagingTemplate;
+    private final PeerMessenger peerMessenger;
     private final FileService fileService;
+    private final PiecePicker piecePicker;
+    private final MessageDispatcher messageDispatcher;
     
     public FileService getFileService() {
         return fileService;
     }
     
     private final Map<String, Peer> peers = new ConcurrentHashMap<>();
-    private final Map<String, Long> downloadStatistics = new ConcurrentHashMap<>();
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+    // Rolling rates per peer: what it sends us and what we deliver to it
+    private final Map<String, RateEstimator> downloadRates = new ConcurrentHashMap<>();
+    private final Map<String, RateEstimator> uploadRates = new ConcurrentHashMap<>();
+    private final List<ScheduledFuture<?>> chokerTasks = new ArrayList<>();
     private String localPeerId;
     
     @PostConstruct
     public void initialize() {
-        // Schedule preferred neighbors selection
-        scheduler.scheduleAtFixedRate(
-            this::selectPreferredNeighbors, 
-            config.getUnchokingInterval(), 
-            config.getUnchokingInterval(), 
-            TimeUnit.SECONDS
-        );
+        // Schedule preferred neighbors selection, on the worker pool every swarm shares
+        long unchokingMillis = TimeUnit.SECONDS.toMillis(config.getUnchokingInterval());
+        chokerTasks.add(messageDispatcher.scheduleAtFixedRate(
+            "preferred neighbors", unchokingMillis, unchokingMillis, this::selectPreferredNeighbors));
         
         // Schedule optimistic unchoke selection
-        scheduler.scheduleAtFixedRate(
-            this::selectOptimisticUnchokedNeighbor, 
-            config.getOptimisticUnchokingInterval(), 
-            config.getOptimisticUnchokingInterval(), 
-            TimeUnit.SECONDS
-        );
+        long optimisticMillis = TimeUnit.SECONDS.toMillis(config.getOptimisticUnchokingInterval());
+        chokerTasks.add(messageDispatcher.scheduleAtFixedRate(
+            "optimistic unchoke", optimisticMillis, optimisticMillis, this::selectOptimisticUnchokedNeighbor));
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        chokerTasks.stream().filter(task -> task != null).forEach(task -> task.cancel(false));
+        chokerTasks.clear();
     }
     
     public void setLocalPeerId(String peerId, boolean hasFile) {
@@ -79,6 +84,34 @@ public class PeerService {
         
         // Share the peers map with the file service
         fileService.setPeers(peers);
+        
+        rebuildAvailability();
+    }
+    
+    /**
+     * Recomputes piece availability from every known remote peer, e.g. after the local download
+     * was (re)initialized or a manifest changed the number of pieces.
+     */
+    public void rebuildAvailability() {
+        int totalPieces = fileService.getTotalPieces();
+        piecePicker.reset(totalPieces, fileService.getBitfield());
+        peers.forEach((id, peer) -> {
+            if (peer.getBitfield() == null) {
+                return;
+            }
+            // Fit bitfields announced under the old piece count to the current one
+            if (peer.isHasFile()) {
+                peer.getBitfield().set(0, totalPieces);
+            }
+            peer.getBitfield().clear(totalPieces, Math.max(totalPieces, peer.getBitfield().length()));
+            if (!id.equals(localPeerId)) {
+                piecePicker.addBitfield(peer.getBitfield());
+            }
+        });
+        for (PartialPiece partial : fileService.getPartialPieces()) {
+            piecePicker.pieceStarted(partial.getPieceIndex());
+            piecePicker.setAllRequested(partial.getPieceIndex(), !partial.hasUnrequestedBlocks());
+        }
     }
     
     public void registerPeer(String peerId, String hostname, int port, boolean hasFile) {
@@ -95,13 +128,80 @@ public class PeerService {
         
         Peer peer = new Peer(peerId, hostname, port, hasFile);
         peer.initializeBitfield(fileService.getTotalPieces());
-        peers.put(peerId, peer);
         
         if (hasFile) {
             // If this peer has the complete file, ensure its bitfield shows that
             peer.getBitfield().set(0, fileService.getTotalPieces());
             log.info("Set full bitfield for peer {} since it has the complete file", peerId);
         }
+        
+        Peer previous = peers.put(peerId, peer);
+        if (!peerId.equals(localPeerId)) {
+            piecePicker.replaceBitfield(previous != null ? previous.getBitfield() : null, peer.getBitfield());
+        }
+    }
+    
+    /**
+     * Forgets a peer that left the swarm, including its contribution to piece availability.
+     */
+    public void removePeer(String peerId) {
+        Peer peer = peers.remove(peerId);
+        downloadRates.remove(peerId);
+        uploadRates.remove(peerId);
+        if (peer != null && peer.getBitfield() != null && !peerId.equals(localPeerId)) {
+            piecePicker.removeBitfield(peer.getBitfield());
+        }
+        log.info("Removed peer {}", peerId);
+    }
+    
+    /**
+     * The peer's connection dropped: it stays registered but no longer counts as a source until it
+     * announces its bitfield again.
+     */
+    public void peerDisconnected(String peerId) {
+        getPeer(peerId).ifPresent(peer -> setPeerBitfield(peer, new BitSet(fileService.getTotalPieces())));
+    }
+    
+    /**
+     * Some of the peer's REQUESTs were dropped because its dispatcher queue was full. Choking it
+     * tells it every outstanding request is void; the choker unchokes it again in a later round.
+     */
+    public void chokeOverloaded(String peerId) {
+        Peer peer = peers.get(peerId);
+        if (peer == null || peer.isAmChoking()) {
+            return;
+        }
+        peer.setAmChoking(true);
+        peer.setOptimisticallyUnchoked(false);
+        peerMessenger.send(peerId, new Message(Message.MessageType.CHOKE, localPeerId, null, null, null));
+        log.warn("Choked peer {}, its REQUESTs overflowed the dispatcher queue", peerId);
+    }
+    
+    /**
+     * The peer sent INTERESTED or NOT_INTERESTED. A newly interested peer is unchoked right away
+     * while fewer than {@code numberOfPreferredNeighbors} peers are, instead of waiting for the
+     * next choker round; the choker decides from then on.
+     */
+    public void peerInterested(String peerId, boolean interested) {
+        Peer peer = peers.get(peerId);
+        if (peer == null) {
+            return;
+        }
+        peer.setPeerInterested(interested);
+        if (!interested || !peer.isAmChoking() || peerId.equals(localPeerId)) {
+            return;
+        }
+        synchronized (this) {
+            long unchoked = peers.values().stream()
+                .filter(p -> !p.isAmChoking() && p.isPeerInterested() && !p.getPeerId().equals(localPeerId))
+                .count();
+            if (unchoked >= config.getNumberOfPreferredNeighbors() || !peer.isAmChoking()) {
+                return;
+            }
+            peer.setAmChoking(false);
+        }
+        peerMessenger.send(peerId, new Message(Message.MessageType.UNCHOKE, localPeerId, null, null, null));
+        log.info("Unchoked peer {}, a preferred slot was free", peerId);
     }
     
     public Optional<Peer> getPeer(String peerId) {
@@ -114,26 +214,92 @@ public class PeerService {
     
     public void updatePeerBitfield(String peerId, int pieceIndex) {
         getPeer(peerId).ifPresent(peer -> {
-            peer.getBitfield().set(pieceIndex);
+            if (!peer.getBitfield().get(pieceIndex)) {
+                peer.getBitfield().set(pieceIndex);
+                if (!peerId.equals(localPeerId)) {
+                    piecePicker.addPiece(pieceIndex);
+                }
+            }
         });
     }
     
+    /**
+     * Replaces a peer's bitfield, keeping piece availability in sync.
+     */
+    public void setPeerBitfield(Peer peer, BitSet bitfield) {
+        BitSet previous = peer.getBitfield();
+        peer.setBitfield(bitfield);
+        if (!peer.getPeerId().equals(localPeerId)) {
+            piecePicker.replaceBitfield(previous, bitfield);
+        }
+    }
+    
+    /**
+     * Marks a seeder as having every piece.
+     */
+    public void markPeerComplete(Peer peer) {
+        int totalPieces = fileService.getTotalPieces();
+        if (peer.getBitfield() == null || peer.getBitfield().cardinality() < totalPieces) {
+            BitSet full = new BitSet(totalPieces);
+            full.set(0, totalPieces);
+            setPeerBitfield(peer, full);
+        }
+    }
+    
     public void recordDownload(String peerId, int bytes) {
-        downloadStatistics.compute(peerId, (key, value) -> (value == null) ? bytes : value + bytes);
+        rateEstimator(downloadRates, peerId).record(bytes);
+    }
+    
+    /**
+     * Piece data we delivered to the peer.
+     */
+    public void recordUpload(String peerId, int bytes) {
+        rateEstimator(uploadRates, peerId).record(bytes);
+    }
+    
+    /**
+     * @return bytes per second the peer has been sending us lately
+     */
+    public long getDownloadRate(String peerId) {
+        RateEstimator estimator = downloadRates.get(peerId);
+        return estimator != null ? estimator.rate() : 0;
+    }
+    
+    /**
+     * @return bytes per second we have been delivering to the peer lately
+     */
+    public long getUploadRate(String peerId) {
+        RateEstimator estimator = uploadRates.get(peerId);
+        return estimator != null ? estimator.rate() : 0;
+    }
+    
+    /**
+     * What the choker ranks peers by: while leeching, how fast a peer sends to us (tit-for-tat);
+     * once seeding, how fast it takes what we send, so the slots go to peers that spread the file.
+     */
+    private long chokeRate(String peerId, boolean seeding) {
+        return seeding ? getUploadRate(peerId) : getDownloadRate(peerId);
+    }
+    
+    private RateEstimator rateEstimator(Map<String, RateEstimator> rates, String peerId) {
+        long halfLifeMillis = TimeUnit.SECONDS.toMillis(config.getRateHalfLifeSeconds());
+        return rates.computeIfAbsent(peerId, id -> new RateEstimator(halfLifeMillis));
     }
     
     private void selectPreferredNeighbors() {
+        boolean seeding = fileService.hasCompletedDownload();
         List<Map.Entry<String, Long>> interestedPeers = new ArrayList<>();
         
-        // Get all interested peers with their download rates
+        // Get all interested peers with their current rates
         peers.forEach((id, peer) -> {
-            if (peer.isInterested() && !id.equals(localPeerId)) {
-                interestedPeers.add(Map.entry(id, downloadStatistics.getOrDefault(id, 0L)));
+            if (peer.isPeerInterested() && !id.equals(localPeerId)) {
+                interestedPeers.add(Map.entry(id, chokeRate(id, seeding)));
             }
         });
         
-        // Sort by download rate (descending)
-        Collections.sort(interestedPeers, Map.Entry.<String, Long>comparingByValue().reversed());
+        // Sort by rate (descending), peers with equal rates in random order
+        Collections.shuffle(interestedPeers);
+        interestedPeers.sort(Map.Entry.<String, Long>comparingByValue().reversed());
         
         // Select top k peers as preferred neighbors
         int k = Math.min(config.getNumberOfPreferredNeighbors(), interestedPeers.size());
@@ -147,30 +313,30 @@ public class PeerService {
         peers.forEach((id, peer) -> {
             if (!id.equals(localPeerId)) {
                 boolean shouldBeUnchoked = preferredNeighbors.contains(id) || peer.isOptimisticallyUnchoked();
-                if (shouldBeUnchoked && peer.isChoked()) {
+                if (shouldBeUnchoked && peer.isAmChoking()) {
                     // Unchoke this peer
-                    peer.setChoked(false);
+                    peer.setAmChoking(false);
                     
                     // Send unchoke message
                     Message unchokeMsg = new Message(Message.MessageType.UNCHOKE, localPeerId, null, null, null);
-                    messagingTemplate.convertAndSendToUser(id, "/queue/messages", unchokeMsg);
+                    peerMessenger.send(id, unchokeMsg);
                     
                     log.info("Unchoked peer: {}", id);
-                } else if (!shouldBeUnchoked && !peer.isChoked()) {
+                } else if (!shouldBeUnchoked && !peer.isAmChoking()) {
                     // Choke this peer
-                    peer.setChoked(true);
+                    peer.setAmChoking(true);
                     
                     // Send choke message
                     Message chokeMsg = new Message(Message.MessageType.CHOKE, localPeerId, null, null, null);
-                    messagingTemplate.convertAndSendToUser(id, "/queue/messages", chokeMsg);
+                    peerMessenger.send(id, chokeMsg);
                     
                     log.info("Choked peer: {}", id);
                 }
             }
         });
         
-        // Reset download statistics
-        downloadStatistics.clear();
+        log.debug("CHOKER: Preferred {} by {} rate out of {}", preferredNeighbors,
+                  seeding ? "upload" : "download", interestedPeers);
     }
     
     private void selectOptimisticUnchokedNeighbor() {
@@ -179,23 +345,46 @@ public class PeerService {
         
         // Get all interested and choked peers
         List<Peer> candidates = peers.values().stream()
-            .filter(peer -> peer.isInterested() && peer.isChoked() && !peer.getPeerId().equals(localPeerId))
+            .filter(peer -> peer.isPeerInterested() && peer.isAmChoking() && !peer.getPeerId().equals(localPeerId))
             .collect(Collectors.toList());
         
         if (!candidates.isEmpty()) {
-            // Randomly select one peer
-            int randomIndex = new Random().nextInt(candidates.size());
-            Peer selectedPeer = candidates.get(randomIndex);
+            Peer selectedPeer = pickOptimistic(candidates, fileService.hasCompletedDownload());
             
             // Set as optimistically unchoked
             selectedPeer.setOptimisticallyUnchoked(true);
-            selectedPeer.setChoked(false);
+            selectedPeer.setAmChoking(false);
             
             // Send unchoke message
             Message unchokeMsg = new Message(Message.MessageType.UNCHOKE, localPeerId, null, null, null);
-            messagingTemplate.convertAndSendToUser(selectedPeer.getPeerId(), "/queue/messages", unchokeMsg);
+            peerMessenger.send(selectedPeer.getPeerId(), unchokeMsg);
             
             log.info("Optimistically unchoked peer: {}", selectedPeer.getPeerId());
         }
     }
+    
+    /**
+     * Random pick weighted by the peers' rates, so a peer that moved data fast before it was choked
+     * is tried again sooner. Every peer also gets the average weight, which keeps new peers with no
+     * rate yet in the draw.
+     */
+    private Peer pickOptimistic(List<Peer> candidates, boolean seeding) {
+        long[] weights = new long[candidates.size()];
+        long total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = chokeRate(candidates.get(i).getPeerId(), seeding);
+            total += weights[i];
+        }
+        long base = Math.max(1, total / weights.length);
+        total += base * weights.length;
+        
+        long draw = (long) (new Random().nextDouble() * total);
+        for (int i = 0; i < weights.length; i++) {
+            draw -= weights[i] + base;
+            if (draw < 0) {
+                return candidates.get(i);
+            }
+        }
+        return candidates.get(weights.length - 1);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,171 @@
+package com.p2p.torrent.service;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.stereotype.Service;
+
+import com.p2p.torrent.config.TorrentConfig;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Byte-budgeted in-memory cache of piece data, in front of the piece files on disk.
+ *
+ * Eviction is segmented LRU: new pieces enter a probation segment and move to the protected
+ * segment on their second hit. Protected overflow is demoted back to probation and only probation
+ * pieces are evicted, so a single sequential pass (splitting, streaming a download) cannot flush
+ * the pieces that are requested over and over.
+ *
+ * One cache (and one budget) serves every swarm of the node; each swarm reads and writes its own
+ * key space, so equal piece indexes of different swarms never collide.
+ */
+@Service
+@Slf4j
+public class PieceCache {
+    // Share of the budget reserved for pieces that were hit more than once
+    private static final double PROTECTED_RATIO = 0.8;
+
+    private final long maxBytes;
+    private final long protectedMaxBytes;
+
+    private final LinkedHashMap<Long, byte[]> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Long, byte[]> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private long probationBytes;
+    private long protectedBytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public PieceCache(TorrentConfig config, TransferMetrics transferMetrics) {
+        this.maxBytes = Math.max(0, config.getCacheMaxBytes());
+        this.protectedMaxBytes = (long) (maxBytes * PROTECTED_RATIO);
+        transferMetrics.counter("p2p_cache_hits_total", "Piece cache hits", () -> snapshot()[0]);
+        transferMetrics.counter("p2p_cache_misses_total", "Piece cache misses", () -> snapshot()[1]);
+        transferMetrics.counter("p2p_cache_evictions_total", "Pieces evicted from the cache", () -> snapshot()[2]);
+        transferMetrics.gauge("p2p_cache_hit_ratio", "Piece cache hits over all lookups", () -> {
+            long[] counts = snapshot();
+            return counts[0] + counts[1] > 0 ? (double) counts[0] / (counts[0] + counts[1]) : 0;
+        });
+        transferMetrics.gauge("p2p_cache_bytes", "Piece data held in the cache", () -> snapshot()[3]);
+        log.info("PIECE CACHE: Budget {} bytes", maxBytes);
+    }
+
+    public synchronized byte[] get(int space, int pieceIndex) {
+        long key = key(space, pieceIndex);
+        byte[] data = protectedSegment.get(key);
+        if (data != null) {
+            hits++;
+            return data;
+        }
+
+        data = probation.remove(key);
+        if (data == null) {
+            misses++;
+            return null;
+        }
+
+        // Second hit: promote
+        hits++;
+        probationBytes -= data.length;
+        protectedSegment.put(key, data);
+        protectedBytes += data.length;
+        demoteOverflow();
+        evictOverflow();
+        return data;
+    }
+
+    public synchronized void put(int space, int pieceIndex, byte[] data) {
+        if (data == null || data.length > maxBytes) {
+            return;
+        }
+
+        remove(space, pieceIndex);
+        probation.put(key(space, pieceIndex), data);
+        probationBytes += data.length;
+        evictOverflow();
+    }
+
+    public synchronized void remove(int space, int pieceIndex) {
+        long key = key(space, pieceIndex);
+        byte[] data = probation.remove(key);
+        if (data != null) {
+            probationBytes -= data.length;
+        }
+        data = protectedSegment.remove(key);
+        if (data != null) {
+            protectedBytes -= data.length;
+        }
+    }
+
+    /**
+     * Drops every piece of one key space.
+     */
+    public synchronized void clear(int space) {
+        probationBytes -= removeSpace(probation, space);
+        protectedBytes -= removeSpace(protectedSegment, space);
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("maxBytes", maxBytes);
+        stats.put("usedBytes", probationBytes + protectedBytes);
+        stats.put("pieces", probation.size() + protectedSegment.size());
+        stats.put("protectedPieces", protectedSegment.size());
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("evictions", evictions);
+        long lookups = hits + misses;
+        stats.put("hitRatio", lookups > 0 ? (double) hits / lookups : 0.0);
+        return stats;
+    }
+
+    /**
+     * @return hits, misses, evictions and bytes held
+     */
+    private synchronized long[] snapshot() {
+        return new long[] {hits, misses, evictions, probationBytes + protectedBytes};
+    }
+
+    private void demoteOverflow() {
+        Iterator<Map.Entry<Long, byte[]>> it = protectedSegment.entrySet().iterator();
+        while (protectedBytes > protectedMaxBytes && it.hasNext()) {
+            Map.Entry<Long, byte[]> eldest = it.next();
+            it.remove();
+            protectedBytes -= eldest.getValue().length;
+            probation.put(eldest.getKey(), eldest.getValue());
+            probationBytes += eldest.getValue().length;
+        }
+    }
+
+    private void evictOverflow() {
+        Iterator<Map.Entry<Long, byte[]>> it = probation.entrySet().iterator();
+        while (probationBytes + protectedBytes > maxBytes && it.hasNext()) {
+            Map.Entry<Long, byte[]> eldest = it.next();
+            it.remove();
+            probationBytes -= eldest.getValue().length;
+            evictions++;
+            log.debug("PIECE CACHE: Evicted piece {} of space {} ({} bytes)",
+                      (int) (long) eldest.getKey(), eldest.getKey() >>> 32, eldest.getValue().length);
+        }
+    }
+
+    private static long removeSpace(Map<Long, byte[]> segment, int space) {
+        long removed = 0;
+        Iterator<Map.Entry<Long, byte[]>> it = segment.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, byte[]> entry = it.next();
+            if (entry.getKey() >>> 32 == space) {
+                removed += entry.getValue().length;
+                it.remove();
+            }
+        }
+        return removed;
+    }
+
+    private static long key(int space, int pieceIndex) {
+        return (long) space << 32 | (pieceIndex & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,332 @@
+package com.p2p.torrent.service;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.springframework.stereotype.Service;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Rarest-first piece selection backed by an incrementally maintained availability index.
+ *
+ * Availability counts how many remote peers announced each piece (BITFIELD / HAVE) and is
+ * decremented again when a peer goes away. Pieces we are still missing and nobody is downloading
+ * yet are kept in one bitset per availability count, so the rarest piece a peer has is found by
+ * intersecting the peer's bitfield with the buckets from the rarest up, a word at a time, instead
+ * of walking pieces one by one. A piece leaves its bucket when its download starts (see
+ * {@link FileService#startPiece}) and returns if the download is abandoned.
+ *
+ * Pieces a reader is waiting for (see {@link DownloadScheduler#streamAt}) carry a deadline and are
+ * picked before all others, earliest deadline first. Each reader has deadlines of its own; a piece
+ * several readers wait for counts with the earliest of them. A piece drops out of the deadline
+ * order while every one of its blocks is requested.
+ */
+@Service
+@Slf4j
+public class PiecePicker {
+    private final Random random = new Random();
+    private int totalPieces;
+    private int[] availability = new int[0];
+    private final BitSet missing = new BitSet();
+
+    // Missing pieces with a download under way, and the other missing pieces by how many peers have
+    // them: byAvailability.get(n) holds those announced by n peers
+    private final BitSet inProgress = new BitSet();
+    private final BitSet candidates = new BitSet();
+    private final List<BitSet> byAvailability = new ArrayList<>();
+
+    // Deadlines of each reader, and the earliest one of every missing piece that has any, in
+    // System.currentTimeMillis() terms
+    private final Map<Object, Map<Integer, Long>> readerDeadlines = new HashMap<>();
+    private final Map<Integer, Long> deadlines = new HashMap<>();
+
+    // Pieces with a deadline and blocks left to request, earliest first
+    private final BitSet allRequested = new BitSet();
+    private final TreeSet<Integer> byDeadline = new TreeSet<>(this::compareDeadline);
+
+    /**
+     * Starts over for a new download; availability is re-added by the caller, and so are the pieces
+     * already in progress.
+     */
+    public synchronized void reset(int totalPieces, BitSet have) {
+        this.totalPieces = totalPieces;
+        this.availability = new int[totalPieces];
+
+        byDeadline.clear();
+        deadlines.clear();
+        readerDeadlines.clear();
+        allRequested.clear();
+        inProgress.clear();
+        missing.clear();
+        missing.set(0, totalPieces);
+        missing.andNot(have);
+        candidates.clear();
+        candidates.or(missing);
+        byAvailability.clear();
+        bucket(0).or(missing);
+
+        log.info("PICKER: Reset for {} pieces, {} missing", totalPieces, missing.cardinality());
+    }
+
+    public synchronized void addBitfield(BitSet bitfield) {
+        for (int i = bitfield.nextSetBit(0); i >= 0 && i < totalPieces; i = bitfield.nextSetBit(i + 1)) {
+            adjust(i, 1);
+        }
+    }
+
+    public synchronized void removeBitfield(BitSet bitfield) {
+        for (int i = bitfield.nextSetBit(0); i >= 0 && i < totalPieces; i = bitfield.nextSetBit(i + 1)) {
+            adjust(i, -1);
+        }
+    }
+
+    /**
+     * Applies the difference between a peer's previous and new bitfield.
+     */
+    public synchronized void replaceBitfield(BitSet previous, BitSet current) {
+        BitSet added = (BitSet) current.clone();
+        if (previous != null) {
+            added.andNot(previous);
+
+            BitSet removed = (BitSet) previous.clone();
+            removed.andNot(current);
+            removeBitfield(removed);
+        }
+        addBitfield(added);
+    }
+
+    public synchronized void addPiece(int pieceIndex) {
+        if (pieceIndex >= 0 && pieceIndex < totalPieces) {
+            adjust(pieceIndex, 1);
+        }
+    }
+
+    /**
+     * The local peer now has this piece, so it is no longer a candidate.
+     */
+    public synchronized void pieceCompleted(int pieceIndex) {
+        if (pieceIndex >= 0 && pieceIndex < totalPieces && missing.get(pieceIndex)) {
+            removeCandidate(pieceIndex);
+            if (deadlines.containsKey(pieceIndex) && !allRequested.get(pieceIndex)) {
+                byDeadline.remove(pieceIndex);
+            }
+            deadlines.remove(pieceIndex);
+            readerDeadlines.values().forEach(window -> window.remove(pieceIndex));
+            allRequested.clear(pieceIndex);
+            inProgress.clear(pieceIndex);
+            missing.clear(pieceIndex);
+        }
+    }
+
+    /**
+     * The download of a piece started; only the scheduler's in-progress pass requests it from now on.
+     */
+    public synchronized void pieceStarted(int pieceIndex) {
+        if (pieceIndex >= 0 && pieceIndex < totalPieces && missing.get(pieceIndex) && !inProgress.get(pieceIndex)) {
+            inProgress.set(pieceIndex);
+            removeCandidate(pieceIndex);
+        }
+    }
+
+    /**
+     * The download of a piece was given up, e.g. it failed its hash check, or a completed piece could
+     * not be written, so it is a candidate again.
+     */
+    public synchronized void pieceAbandoned(int pieceIndex) {
+        if (pieceIndex < 0 || pieceIndex >= totalPieces) {
+            return;
+        }
+        if (missing.get(pieceIndex) && !inProgress.get(pieceIndex)) {
+            return;
+        }
+        setAllRequested(pieceIndex, false);
+        inProgress.clear(pieceIndex);
+        missing.set(pieceIndex);
+        candidates.set(pieceIndex);
+        bucket(availability[pieceIndex]).set(pieceIndex);
+    }
+
+    /**
+     * Records whether every block of a piece in progress is requested; such a piece is not picked as
+     * urgent until blocks are released again.
+     */
+    public synchronized void setAllRequested(int pieceIndex, boolean requested) {
+        if (pieceIndex < 0 || pieceIndex >= totalPieces || !missing.get(pieceIndex)
+                || allRequested.get(pieceIndex) == requested) {
+            return;
+        }
+        if (deadlines.containsKey(pieceIndex)) {
+            if (requested) {
+                byDeadline.remove(pieceIndex);
+            } else {
+                byDeadline.add(pieceIndex);
+            }
+        }
+        allRequested.set(pieceIndex, requested);
+    }
+
+    /**
+     * Gives a missing piece the time a reader needs it by, replacing that reader's earlier deadline.
+     */
+    public synchronized void setDeadline(Object reader, int pieceIndex, long deadline) {
+        if (pieceIndex < 0 || pieceIndex >= totalPieces || !missing.get(pieceIndex)) {
+            return;
+        }
+        readerDeadlines.computeIfAbsent(reader, r -> new HashMap<>()).put(pieceIndex, deadline);
+        updateDeadline(pieceIndex);
+    }
+
+    /**
+     * Drops the deadlines of one reader; those other readers set stay.
+     */
+    public synchronized void clearDeadlines(Object reader) {
+        Map<Integer, Long> cleared = readerDeadlines.remove(reader);
+        if (cleared != null) {
+            cleared.keySet().forEach(this::updateDeadline);
+        }
+    }
+
+    public synchronized boolean hasDeadlines() {
+        return !deadlines.isEmpty();
+    }
+
+    /**
+     * @return true if the piece has a deadline that has passed by {@code now}
+     */
+    public synchronized boolean isOverdue(int pieceIndex, long now) {
+        Long deadline = deadlines.get(pieceIndex);
+        return deadline != null && deadline <= now;
+    }
+
+    /**
+     * Only pieces with blocks left to request are in the deadline order, and it only holds the
+     * readahead windows of open streams, so the pieces passed over are ones in those windows the
+     * peer lacks.
+     *
+     * @return the missing piece with the earliest deadline the peer has and blocks left to request, or -1
+     */
+    public synchronized int pickUrgent(BitSet peerHas) {
+        for (int pieceIndex : byDeadline) {
+            if (peerHas.get(pieceIndex)) {
+                return pieceIndex;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Pieces in progress are not candidates. Among equally rare pieces the search starts at a random
+     * index, so peers don't all chase the same one.
+     *
+     * @return the rarest missing piece the peer has and nobody is downloading yet, or -1
+     */
+    public synchronized int pickRarest(BitSet peerHas) {
+        for (BitSet bucket : byAvailability) {
+            if (!bucket.intersects(peerHas)) {
+                continue;
+            }
+            int pieceIndex = firstCommon(bucket, peerHas, random.nextInt(Math.max(1, totalPieces)));
+            return pieceIndex >= 0 ? pieceIndex : firstCommon(bucket, peerHas, 0);
+        }
+        return -1;
+    }
+
+    /**
+     * @return the lowest-index missing piece the peer has and nobody is downloading yet, or -1
+     */
+    public synchronized int pickSequential(BitSet peerHas) {
+        return firstCommon(candidates, peerHas, 0);
+    }
+
+    public synchronized boolean hasPieceFor(BitSet peerHas) {
+        return missing.intersects(peerHas);
+    }
+
+    public synchronized int getMissingCount() {
+        return missing.cardinality();
+    }
+
+    public synchronized int getAvailability(int pieceIndex) {
+        return pieceIndex >= 0 && pieceIndex < totalPieces ? availability[pieceIndex] : 0;
+    }
+
+    private void adjust(int pieceIndex, int delta) {
+        int previous = availability[pieceIndex];
+        availability[pieceIndex] = Math.max(0, previous + delta);
+        if (candidates.get(pieceIndex)) {
+            bucket(previous).clear(pieceIndex);
+            bucket(availability[pieceIndex]).set(pieceIndex);
+        }
+    }
+
+    private void removeCandidate(int pieceIndex) {
+        if (candidates.get(pieceIndex)) {
+            candidates.clear(pieceIndex);
+            bucket(availability[pieceIndex]).clear(pieceIndex);
+        }
+    }
+
+    private BitSet bucket(int count) {
+        while (byAvailability.size() <= count) {
+            byAvailability.add(new BitSet());
+        }
+        return byAvailability.get(count);
+    }
+
+    /**
+     * @return the first index from {@code from} on that is set in both, or -1; runs of clear bits
+     *         in either are skipped a word at a time
+     */
+    private static int firstCommon(BitSet a, BitSet b, int from) {
+        int i = a.nextSetBit(from);
+        while (i >= 0) {
+            int j = b.nextSetBit(i);
+            if (j < 0) {
+                return -1;
+            }
+            if (j == i) {
+                return i;
+            }
+            i = a.nextSetBit(j);
+        }
+        return -1;
+    }
+
+    /**
+     * Re-keys a piece under the earliest deadline any reader has for it; the comparator reads the
+     * map, so the tree entry is removed around the change.
+     */
+    private void updateDeadline(int pieceIndex) {
+        Long earliest = null;
+        for (Map<Integer, Long> window : readerDeadlines.values()) {
+            Long deadline = window.get(pieceIndex);
+            if (deadline != null && (earliest == null || deadline < earliest)) {
+                earliest = deadline;
+            }
+        }
+        boolean ordered = !allRequested.get(pieceIndex);
+        if (deadlines.containsKey(pieceIndex)) {
+            if (ordered) {
+                byDeadline.remove(pieceIndex);
+            }
+            deadlines.remove(pieceIndex);
+        }
+        if (earliest != null) {
+            deadlines.put(pieceIndex, earliest);
+            if (ordered) {
+                byDeadline.add(pieceIndex);
+            }
+        }
+    }
+
+    private int compareDeadline(Integer a, Integer b) {
+        int byTime = Long.compare(deadlines.get(a), deadlines.get(b));
+        return byTime != 0 ? byTime : Integer.compare(a, b);
+    }
+}
@@ -0,0 +1,43 @@
+package com.p2p.torrent.service;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exponentially weighted moving average of a byte rate. Every byte counts in full when it is
+ * recorded and its weight halves every half-life, so the estimate follows a real change in rate
+ * within a few half-lives but does not jump on a single piece or drop to zero between two.
+ */
+final class RateEstimator {
+    // Decay per nanosecond: ln 2 / half-life
+    private final double decay;
+
+    // Bytes recorded so far, each weighted by how long ago it was recorded
+    private double weightedBytes;
+    private long updatedAt = System.nanoTime();
+
+    RateEstimator(long halfLifeMillis) {
+        this.decay = Math.log(2) / TimeUnit.MILLISECONDS.toNanos(Math.max(1, halfLifeMillis));
+    }
+
+    synchronized void record(long bytes) {
+        decayTo(System.nanoTime());
+        weightedBytes += bytes;
+    }
+
+    /**
+     * @return bytes per second
+     */
+    synchronized long rate() {
+        decayTo(System.nanoTime());
+        // A steady rate r settles at weightedBytes = r / decay
+        return Math.round(weightedBytes * decay * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private void decayTo(long now) {
+        long elapsed = now - updatedAt;
+        if (elapsed > 0) {
+            weightedBytes *= Math.exp(-decay * elapsed);
+            updatedAt = now;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.p2p.torrent.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Fast-resume record of a download, so a restarting peer knows what it has without probing every
+ * piece. Kept in {@code metadata/resume.dat}, big endian:
+ * <pre>
+ *   magic:4 | version:1 | pieceCount:4 | pieceSize:4 | storageStamp:8 | fileLength:8 | idLength:2 | contentId | flags:pieceCount
+ * </pre>
+ * Each piece has one flag byte ({@link #HAVE}, {@link #VERIFIED}); piece sizes follow from
+ * {@code pieceSize} and {@code fileLength}. The storage stamp is the last-modified time of the
+ * storage (data file or piece directory) after the last recorded write, so changes made behind our
+ * back show up as a different stamp.
+ *
+ * A full write goes to a temporary file that is renamed over the old one. After that, every piece
+ * that lands only rewrites its flag byte and the stamp/length fields in place.
+ */
+@Slf4j
+final class ResumeFile {
+    static final byte HAVE = 1;
+    static final byte VERIFIED = 2;
+
+    private static final int MAGIC = 0x50325052; // "P2PR"
+    private static final byte VERSION = 1;
+    private static final int STAMP_OFFSET = 4 + 1 + 4 + 4;
+
+    private final Path path;
+    private FileChannel channel;
+    private long flagsOffset;
+
+    private int pieceCount;
+    private long storageStamp;
+    private long fileLength;
+    private final BitSet have = new BitSet();
+    private final BitSet verified = new BitSet();
+
+    ResumeFile(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Reads the record, which is only accepted if it was written for the same layout and content.
+     *
+     * @return false if there is no usable record
+     */
+    synchronized boolean load(int expectedPieces, int expectedPieceSize, String expectedContentId) {
+        if (!Files.exists(path)) {
+            return false;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+            if (buffer.getInt() != MAGIC || buffer.get() != VERSION) {
+                log.warn("RESUME: Ignoring {}, unknown format", path);
+                return false;
+            }
+            int count = buffer.getInt();
+            int size = buffer.getInt();
+            long stamp = buffer.getLong();
+            long length = buffer.getLong();
+            byte[] id = new byte[buffer.getShort()];
+            buffer.get(id);
+            String recordedId = id.length > 0 ? new String(id, StandardCharsets.UTF_8) : null;
+
+            if (count != expectedPieces || size != expectedPieceSize
+                || (expectedContentId != null && !expectedContentId.equals(recordedId))
+                || buffer.remaining() < count) {
+                log.info("RESUME: Ignoring {}, it was written for another layout or content", path);
+                return false;
+            }
+
+            have.clear();
+            verified.clear();
+            for (int i = 0; i < count; i++) {
+                byte flags = buffer.get();
+                if ((flags & HAVE) != 0) {
+                    have.set(i);
+                }
+                if ((flags & VERIFIED) != 0) {
+                    verified.set(i);
+                }
+            }
+            pieceCount = count;
+            storageStamp = stamp;
+            fileLength = length;
+            flagsOffset = headerLength(id.length);
+            openChannel();
+            return true;
+        } catch (IOException | RuntimeException e) {
+            log.warn("RESUME: Ignoring unreadable {}: {}", path, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Replaces the whole record atomically.
+     */
+    synchronized void rewrite(int pieceCount, int pieceSize, long fileLength, String contentId,
+                              long storageStamp, BitSet have, BitSet verified) throws IOException {
+        this.pieceCount = pieceCount;
+        this.fileLength = fileLength;
+        this.storageStamp = storageStamp;
+        this.have.clear();
+        this.have.or(have);
+        this.verified.clear();
+        this.verified.or(verified);
+
+        byte[] id = contentId != null ? contentId.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        flagsOffset = headerLength(id.length);
+        ByteBuffer buffer = ByteBuffer.allocate((int) flagsOffset + pieceCount);
+        buffer.putInt(MAGIC).put(VERSION).putInt(pieceCount).putInt(pieceSize)
+              .putLong(storageStamp).putLong(fileLength).putShort((short) id.length).put(id);
+        for (int i = 0; i < pieceCount; i++) {
+            buffer.put(flags(i));
+        }
+
+        closeChannel();
+        Files.createDirectories(path.getParent());
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                                                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        openChannel();
+    }
+
+    /**
+     * Records one piece in place, together with the storage stamp taken after it was written.
+     */
+    synchronized void updatePiece(int pieceIndex, boolean pieceVerified, long fileLength, long storageStamp) {
+        if (channel == null || pieceIndex < 0 || pieceIndex >= pieceCount) {
+            return;
+        }
+        have.set(pieceIndex);
+        verified.set(pieceIndex, pieceVerified);
+        this.fileLength = fileLength;
+        this.storageStamp = storageStamp;
+        try {
+            channel.write(ByteBuffer.wrap(new byte[] { flags(pieceIndex) }), flagsOffset + pieceIndex);
+            writeStamp();
+        } catch (IOException e) {
+            log.warn("RESUME: Failed to record piece {} in {}: {}", pieceIndex, path, e.getMessage());
+        }
+    }
+
+    synchronized void updateStamp(long storageStamp) {
+        if (channel == null) {
+            return;
+        }
+        this.storageStamp = storageStamp;
+        try {
+            writeStamp();
+        } catch (IOException e) {
+            log.warn("RESUME: Failed to update {}: {}", path, e.getMessage());
+        }
+    }
+
+    synchronized void delete() {
+        closeChannel();
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("RESUME: Failed to delete {}: {}", path, e.getMessage());
+        }
+    }
+
+    synchronized void close() {
+        closeChannel();
+    }
+
+    synchronized BitSet getHave() {
+        return (BitSet) have.clone();
+    }
+
+    synchronized BitSet getVerified() {
+        return (BitSet) verified.clone();
+    }
+
+    synchronized long getStorageStamp() {
+        return storageStamp;
+    }
+
+    synchronized long getFileLength() {
+        return fileLength;
+    }
+
+    private byte flags(int pieceIndex) {
+        return (byte) ((have.get(pieceIndex) ? HAVE : 0) | (verified.get(pieceIndex) ? VERIFIED : 0));
+    }
+
+    private void writeStamp() throws IOException {
+        ByteBuffer fields = ByteBuffer.allocate(16).putLong(storageStamp).putLong(fileLength);
+        fields.flip();
+        channel.write(fields, STAMP_OFFSET);
+    }
+
+    private static long headerLength(int idLength) {
+        return STAMP_OFFSET + 8 + 8 + 2 + idLength;
+    }
+
+    private void openChannel() throws IOException {
+        closeChannel();
+        channel = FileChannel.open(path, StandardOpenOption.WRITE);
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("RESUME: Failed to close {}: {}", path, e.getMessage());
+            }
+            channel = null;
+        }
+    }
+}
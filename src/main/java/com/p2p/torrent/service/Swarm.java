@@ -0,0 +1,53 @@
+package com.p2p.torrent.service;
+
+import com.p2p.torrent.model.Manifest;
+
+import lombok.Getter;
+
+/**
+ * One shared file and everything the node keeps for it: piece store, piece picker, peer set with
+ * its choker, download scheduler and message handling. Made and routed to by {@link TorrentRegistry}.
+ */
+@Getter
+public class Swarm {
+    // Content ID of the file, null for the default swarm behind the /api/torrent endpoints
+    private final String torrentId;
+    private final boolean seeding;
+    private final FileService fileService;
+    private final PiecePicker piecePicker;
+    private final PeerService peerService;
+    private final DownloadScheduler downloadScheduler;
+    private final MessageService messageService;
+    private final PeerMessenger peerMessenger;
+
+    Swarm(String torrentId, boolean seeding, FileService fileService, PiecePicker piecePicker,
+          PeerService peerService, DownloadScheduler downloadScheduler, MessageService messageService,
+          PeerMessenger peerMessenger) {
+        this.torrentId = torrentId;
+        this.seeding = seeding;
+        this.fileService = fileService;
+        this.piecePicker = piecePicker;
+        this.peerService = peerService;
+        this.downloadScheduler = downloadScheduler;
+        this.messageService = messageService;
+        this.peerMessenger = peerMessenger;
+    }
+
+    public Manifest getManifest() {
+        return fileService.getManifest();
+    }
+
+    public boolean isDefault() {
+        return torrentId == null;
+    }
+
+    /**
+     * Stops the periodic work and releases open files. Downloaded data stays on disk.
+     */
+    void close() {
+        peerService.shutdown();
+        downloadScheduler.shutdown();
+        peerMessenger.close();
+        fileService.close();
+    }
+}
@@ -0,0 +1,261 @@
+package com.p2p.torrent.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.BeanUtils;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.stereotype.Service;
+
+import com.p2p.torrent.config.TorrentConfig;
+import com.p2p.torrent.model.Manifest;
+import com.p2p.torrent.model.Message;
+import com.p2p.torrent.model.Peer;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The swarms of this node, keyed by the content ID of their file.
+ *
+ * The default swarm is the one the node was initialized with; it keeps its files directly in
+ * {@code peer_<id>} and its messages carry no torrent ID. Every other swarm stores under
+ * {@code peer_<id>/swarms/<contentId>} and has its own piece store, bitfields, peer set, choker and
+ * scheduler, while connections, the dispatcher's worker pool, the piece cache budget, the disk
+ * writer and the bandwidth limits are shared by all of them. Inbound messages are routed by their
+ * torrent ID.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class TorrentRegistry {
+    private final TorrentConfig config;
+    private final SimpMessagingTemplate messagingTemplate;
+    private final PeerMessenger peerMessenger;
+    private final MessageDispatcher messageDispatcher;
+    private final PieceCache pieceCache;
+    private final ManifestService manifestService;
+    private final BandwidthLimiter bandwidthLimiter;
+    private final TransferMetrics transferMetrics;
+    private final DiskWriter diskWriter;
+
+    // The default swarm's services
+    private final FileService fileService;
+    private final PiecePicker piecePicker;
+    private final PeerService peerService;
+    private final DownloadScheduler downloadScheduler;
+    private final MessageService messageService;
+
+    private final Map<String, Swarm> swarms = new ConcurrentHashMap<>();
+    private final AtomicInteger cacheSpaces = new AtomicInteger();
+
+    public Swarm getDefaultSwarm() {
+        String localPeerId = fileService.getLocalPeerId();
+        boolean seeding = localPeerId != null && peerService.getPeer(localPeerId).map(Peer::isHasFile).orElse(false);
+        return new Swarm(null, seeding, fileService, piecePicker, peerService, downloadScheduler, messageService,
+                         peerMessenger);
+    }
+
+    /**
+     * @param torrentId content ID of the swarm, null for the default swarm
+     */
+    public Optional<Swarm> get(String torrentId) {
+        return torrentId == null ? Optional.of(getDefaultSwarm()) : Optional.ofNullable(swarms.get(torrentId));
+    }
+
+    /**
+     * @return the default swarm followed by every other one
+     */
+    public List<Swarm> getSwarms() {
+        List<Swarm> all = new ArrayList<>();
+        all.add(getDefaultSwarm());
+        all.addAll(swarms.values());
+        return all;
+    }
+
+    /**
+     * @return the piece size of the swarm with the largest pieces, the bound for a whole-piece PIECE
+     */
+    public int getMaxPieceSize() {
+        int max = Math.max(config.getPieceSize(), fileService.getPieceSize());
+        for (Swarm swarm : swarms.values()) {
+            max = Math.max(max, swarm.getFileService().getPieceSize());
+        }
+        return max;
+    }
+
+    /**
+     * Starts seeding a local file in a swarm of its own. The file is hashed once, here; seeding the
+     * same content again returns the existing swarm.
+     *
+     * @throws IllegalStateException if the node has not been initialized yet
+     * @throws IllegalArgumentException if the file does not exist
+     */
+    public Swarm seed(Path file) throws IOException {
+        String localPeerId = requireLocalPeerId();
+        Path source = file.toAbsolutePath();
+        if (!Files.isRegularFile(source)) {
+            throw new IllegalArgumentException("No such file: " + source);
+        }
+
+        Manifest manifest = manifestService.build(source, source.getFileName().toString(), config.getPieceSize());
+        return create(manifest, localPeerId, source.toString(), true);
+    }
+
+    /**
+     * Joins the swarm of a manifest received out of band, to download its file.
+     *
+     * @throws IllegalStateException if the node has not been initialized yet
+     * @throws IllegalArgumentException if the manifest is inconsistent
+     */
+    public Swarm leech(Manifest manifest) throws IOException {
+        String localPeerId = requireLocalPeerId();
+        if (manifest == null || !manifestService.isConsistent(manifest)) {
+            throw new IllegalArgumentException("Manifest is missing or inconsistent");
+        }
+        return create(manifest, localPeerId, Paths.get(manifest.getFileName()).getFileName().toString(), false);
+    }
+
+    /**
+     * Leaves a swarm. Its files stay on disk, joining again resumes from them.
+     *
+     * @return false if there is no such swarm
+     */
+    public boolean remove(String torrentId) {
+        Swarm swarm = torrentId != null ? swarms.remove(torrentId) : null;
+        if (swarm == null) {
+            return false;
+        }
+        swarm.close();
+        log.info("REGISTRY: Removed swarm {}", torrentId);
+        return true;
+    }
+
+    /**
+     * Hands an inbound message to the swarm it is addressed to. Messages for swarms we are not in are
+     * dropped.
+     */
+    public void handleMessage(Message message) {
+        Swarm swarm = get(message.getTorrentId()).orElse(null);
+        if (swarm == null) {
+            log.debug("REGISTRY: Dropping {} from peer {} for unknown torrent {}",
+                      message.getType(), message.getPeerId(), message.getTorrentId());
+            return;
+        }
+        if (!swarm.isDefault()) {
+            adoptPeer(swarm, message.getPeerId());
+        }
+        swarm.getMessageService().handleMessage(message);
+    }
+
+    /**
+     * The dispatcher dropped a message because the sender's queue was full. A shed REQUEST chokes the
+     * peer in the swarm it was for, so it knows to ask again once unchoked; any other message means
+     * the protocol state with the peer is lost, so it is treated as disconnected.
+     */
+    public void handleRejected(Message message) {
+        if (message.getType() != Message.MessageType.REQUEST) {
+            log.warn("REGISTRY: Dropped {} from peer {}, disconnecting it", message.getType(), message.getPeerId());
+            handlePeerDisconnected(message.getPeerId());
+            return;
+        }
+        get(message.getTorrentId()).ifPresent(swarm -> swarm.getPeerService().chokeOverloaded(message.getPeerId()));
+    }
+
+    /**
+     * A peer's connection closed, which it used for every swarm.
+     */
+    public void handlePeerDisconnected(String peerId) {
+        getSwarms().forEach(swarm -> swarm.getMessageService().handlePeerDisconnected(peerId));
+        bandwidthLimiter.forgetPeer(peerId);
+    }
+
+    /**
+     * Makes a peer the node already knows from the default swarm a member of another swarm, so it does
+     * not have to be registered once per file.
+     *
+     * @return false if the peer is unknown to the node
+     */
+    public boolean adoptPeer(Swarm swarm, String peerId) {
+        if (swarm.getPeerService().getPeer(peerId).isPresent()) {
+            return true;
+        }
+        Peer known = peerService.getPeer(peerId).orElse(null);
+        if (known == null) {
+            return false;
+        }
+        swarm.getPeerService().registerPeer(peerId, known.getHostname(), known.getPort(), false);
+        log.info("REGISTRY: Peer {} joined swarm {}", peerId, swarm.getTorrentId());
+        return true;
+    }
+
+    private synchronized Swarm create(Manifest manifest, String localPeerId, String fileName, boolean hasFile)
+            throws IOException {
+        String torrentId = manifest.getContentId();
+        Manifest defaultManifest = fileService.getManifest();
+        if (defaultManifest != null && torrentId.equals(defaultManifest.getContentId())) {
+            return getDefaultSwarm();
+        }
+        Swarm existing = swarms.get(torrentId);
+        if (existing != null) {
+            return existing;
+        }
+
+        TorrentConfig swarmConfig = new TorrentConfig();
+        BeanUtils.copyProperties(config, swarmConfig);
+        swarmConfig.setFileName(fileName);
+        swarmConfig.setPieceSize(manifest.getPieceSize());
+        swarmConfig.setFileSize(manifest.getFileLength());
+
+        PiecePicker swarmPicker = new PiecePicker();
+        FileService swarmFiles = new FileService(swarmConfig, swarmPicker, pieceCache, manifestService,
+                                                 transferMetrics, diskWriter);
+        swarmFiles.useSwarmStorage(torrentId, cacheSpaces.incrementAndGet());
+        if (hasFile) {
+            swarmFiles.setSourceManifest(manifest);
+        } else {
+            manifestService.save(Paths.get("peer_" + localPeerId, "swarms", torrentId), manifest);
+        }
+
+        PeerMessenger swarmMessenger = peerMessenger.forSwarm(torrentId);
+        PeerService swarmPeers = new PeerService(swarmConfig, swarmMessenger, swarmFiles, swarmPicker, messageDispatcher);
+        DownloadScheduler swarmScheduler = new DownloadScheduler(swarmConfig, swarmPeers, swarmFiles, swarmPicker,
+                                                                 swarmMessenger, messageDispatcher, bandwidthLimiter,
+                                                                 transferMetrics);
+        MessageService swarmMessages = new MessageService(messagingTemplate, swarmMessenger, swarmPeers, swarmFiles,
+                                                          swarmScheduler, messageDispatcher, bandwidthLimiter,
+                                                          transferMetrics);
+
+        // Same order as initializing the node itself
+        Peer local = peerService.getPeer(localPeerId).orElse(null);
+        swarmPeers.registerPeer(localPeerId, local != null ? local.getHostname() : "localhost",
+                                local != null ? local.getPort() : 8000, hasFile);
+        swarmPeers.setLocalPeerId(localPeerId, hasFile);
+        swarmMessages.setLocalPeerId(localPeerId);
+        swarmPeers.initialize();
+        swarmScheduler.initialize();
+
+        Swarm swarm = new Swarm(torrentId, hasFile, swarmFiles, swarmPicker, swarmPeers, swarmScheduler,
+                                swarmMessages, swarmMessenger);
+        swarms.put(torrentId, swarm);
+        log.info("REGISTRY: {} swarm {} ({}, {} pieces, {} swarms in total)", hasFile ? "Seeding" : "Joined",
+                 torrentId, manifest.getFileName(), manifest.getPieceCount(), swarms.size() + 1);
+        return swarm;
+    }
+
+    private String requireLocalPeerId() {
+        String localPeerId = fileService.getLocalPeerId();
+        if (localPeerId == null) {
+            throw new IllegalStateException("Initialize the node before adding swarms");
+        }
+        return localPeerId;
+    }
+}
@@ -0,0 +1,286 @@
+package com.p2p.torrent.service;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+import org.springframework.stereotype.Service;
+
+import com.p2p.torrent.model.Message;
+
+/**
+ * Counters and latency histograms of the transfer paths, rendered in the Prometheus text format
+ * (version 0.0.4) by {@code GET /api/torrent/metrics}.
+ *
+ * Components record through the typed methods below. Figures another component already keeps
+ * (cache hits, queued messages) are read from it at scrape time through the function it
+ * registered with {@link #gauge} or {@link #counter}.
+ */
+@Service
+public class TransferMetrics {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    // Histogram bucket upper bounds, in seconds
+    private static final double[] LATENCY_BUCKETS = {
+        0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+    private static final String INTERNAL = "INTERNAL";
+
+    private final Map<String, Family> families = new ConcurrentHashMap<>();
+
+    private final Counters pieceMessagesSent = add(new Counters(
+        "p2p_piece_messages_sent_total", "PIECE messages sent, per peer", "peer"));
+    private final Counters pieceBytesSent = add(new Counters(
+        "p2p_piece_bytes_sent_total", "Piece data sent, per peer", "peer"));
+    private final Counters pieceMessagesReceived = add(new Counters(
+        "p2p_piece_messages_received_total", "PIECE messages received, per peer", "peer"));
+    private final Counters pieceBytesReceived = add(new Counters(
+        "p2p_piece_bytes_received_total", "Piece data received, per peer", "peer"));
+    private final Counters piecesCompleted = add(new Counters(
+        "p2p_pieces_completed_total", "Pieces downloaded and stored"));
+    private final Histograms requestLatency = add(new Histograms(
+        "p2p_request_latency_seconds", "Time from sending a block REQUEST to receiving its PIECE"));
+    private final Histograms diskLatency = add(new Histograms(
+        "p2p_disk_seconds", "Piece reads and writes in the piece store", "op", "storage"));
+    private final Histograms diskCommit = add(new Histograms(
+        "p2p_disk_commit_seconds", "Group commits: syncing every file written since the previous one"));
+    private final Histograms dispatchWait = add(new Histograms(
+        "p2p_dispatch_wait_seconds", "Time an inbound message waited on its peer's dispatcher queue", "type"));
+    private final Histograms dispatchHandle = add(new Histograms(
+        "p2p_dispatch_handle_seconds", "Time spent handling an inbound message", "type"));
+    private final Counters chokeSent = add(new Counters(
+        "p2p_choke_messages_sent_total", "CHOKE and UNCHOKE messages sent (repeats are not sent)", "type"));
+    private final Counters chokeReceived = add(new Counters(
+        "p2p_choke_messages_received_total", "CHOKE and UNCHOKE messages received", "type"));
+
+    public void pieceSent(String peerId, int bytes) {
+        pieceMessagesSent.add(1, peerId);
+        pieceBytesSent.add(bytes, peerId);
+    }
+
+    public void pieceReceived(String peerId, int bytes) {
+        pieceMessagesReceived.add(1, peerId);
+        pieceBytesReceived.add(bytes, peerId);
+    }
+
+    public void pieceCompleted() {
+        piecesCompleted.add(1);
+    }
+
+    public void requestAnswered(long nanos) {
+        requestLatency.observe(nanos);
+    }
+
+    /**
+     * @param storage {@code data_file} or {@code piece_file}
+     */
+    public void diskRead(String storage, long nanos) {
+        diskLatency.observe(nanos, "read", storage);
+    }
+
+    public void diskWrite(String storage, long nanos) {
+        diskLatency.observe(nanos, "write", storage);
+    }
+
+    public void diskCommit(long nanos) {
+        diskCommit.observe(nanos);
+    }
+
+    /**
+     * @param type the message handled, null for internal follow-ups
+     */
+    public void messageHandled(Message.MessageType type, long waitNanos, long handleNanos) {
+        String typeName = type != null ? type.name() : INTERNAL;
+        dispatchWait.observe(waitNanos, typeName);
+        dispatchHandle.observe(handleNanos, typeName);
+    }
+
+    public void chokeSent(Message.MessageType type) {
+        chokeSent.add(1, type.name());
+    }
+
+    public void chokeReceived(Message.MessageType type) {
+        chokeReceived.add(1, type.name());
+    }
+
+    /**
+     * A value read when scraped, e.g. the current queue depth.
+     */
+    public void gauge(String name, String help, DoubleSupplier value) {
+        add(new Function(name, help, "gauge", value));
+    }
+
+    /**
+     * A running total kept elsewhere, read when scraped.
+     */
+    public void counter(String name, String help, DoubleSupplier value) {
+        add(new Function(name, help, "counter", value));
+    }
+
+    public String scrape() {
+        StringBuilder out = new StringBuilder();
+        new TreeMap<>(families).values().forEach(family -> {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            family.write(out);
+        });
+        return out.toString();
+    }
+
+    private <F extends Family> F add(F family) {
+        families.put(family.name, family);
+        return family;
+    }
+
+    private static void sample(StringBuilder out, String name, List<String> labelNames, List<String> labelValues,
+                               String extraLabel, String extraValue, double value) {
+        out.append(name);
+        if (!labelNames.isEmpty() || extraLabel != null) {
+            out.append('{');
+            for (int i = 0; i < labelNames.size(); i++) {
+                label(out, labelNames.get(i), labelValues.get(i));
+                out.append(',');
+            }
+            if (extraLabel != null) {
+                label(out, extraLabel, extraValue);
+            } else {
+                out.setLength(out.length() - 1);
+            }
+            out.append('}');
+        }
+        out.append(' ').append(format(value)).append('\n');
+    }
+
+    private static void label(StringBuilder out, String name, String value) {
+        out.append(name).append("=\"");
+        String text = value != null ? value : "";
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    private static String format(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    private static String bucketLabel(double bound) {
+        return BigDecimal.valueOf(bound).stripTrailingZeros().toPlainString();
+    }
+
+    private abstract static class Family {
+        final String name;
+        final String help;
+        final String type;
+        final List<String> labelNames;
+
+        Family(String name, String help, String type, String... labelNames) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.labelNames = Arrays.asList(labelNames);
+        }
+
+        abstract void write(StringBuilder out);
+    }
+
+    private static final class Counters extends Family {
+        private final Map<List<String>, LongAdder> series = new ConcurrentHashMap<>();
+
+        Counters(String name, String help, String... labelNames) {
+            super(name, help, "counter", labelNames);
+        }
+
+        void add(long amount, String... labelValues) {
+            series.computeIfAbsent(Arrays.asList(labelValues), key -> new LongAdder()).add(amount);
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            if (series.isEmpty() && labelNames.isEmpty()) {
+                sample(out, name, labelNames, List.of(), null, null, 0);
+            }
+            series.forEach((labelValues, count) -> sample(out, name, labelNames, labelValues, null, null, count.sum()));
+        }
+    }
+
+    private static final class Histograms extends Family {
+        private final Map<List<String>, Histogram> series = new ConcurrentHashMap<>();
+
+        Histograms(String name, String help, String... labelNames) {
+            super(name, help, "histogram", labelNames);
+        }
+
+        void observe(long nanos, String... labelValues) {
+            series.computeIfAbsent(Arrays.asList(labelValues), key -> new Histogram()).observe(nanos);
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            series.forEach((labelValues, histogram) -> {
+                long cumulative = 0;
+                for (int i = 0; i <= LATENCY_BUCKETS.length; i++) {
+                    cumulative += histogram.buckets[i].sum();
+                    String bound = i < LATENCY_BUCKETS.length ? bucketLabel(LATENCY_BUCKETS[i]) : "+Inf";
+                    sample(out, name + "_bucket", labelNames, labelValues, "le", bound, cumulative);
+                }
+                sample(out, name + "_sum", labelNames, labelValues, null, null, histogram.sumNanos.sum() / 1e9);
+                sample(out, name + "_count", labelNames, labelValues, null, null, cumulative);
+            });
+        }
+    }
+
+    private static final class Histogram {
+        // One per bucket, not cumulative; the last one counts everything above the largest bound
+        private final LongAdder[] buckets = new LongAdder[LATENCY_BUCKETS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void observe(long nanos) {
+            double seconds = nanos / 1e9;
+            int bucket = 0;
+            while (bucket < LATENCY_BUCKETS.length && seconds > LATENCY_BUCKETS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            sumNanos.add(nanos);
+        }
+    }
+
+    private static final class Function extends Family {
+        private final DoubleSupplier value;
+
+        Function(String name, String help, String type, DoubleSupplier value) {
+            super(name, help, type);
+            this.value = value;
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            sample(out, name, labelNames, List.of(), null, null, value.getAsDouble());
+        }
+    }
+}